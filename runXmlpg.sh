@@ -1,13 +1,11 @@
 # Example for running xmlpg and generating code for DIS protocol.
 # This uses exec-maven-plugin to run, but you could run from xmlpg.jar too.
+# The XML file is parsed once and all the languages are generated concurrently,
+# each into its own subdirectory (java, cpp, ...) of xmlpg.generatedSourceDir.
 
 #schema=../DISDescription/DIS6.xml
 schema=DIS2012.xml
 
 mvn clean compile
 
-for lang in java cpp python javascript objc csharp; do
-
-mvn exec:java -Dexec.mainClass=edu.nps.moves.xmlpg.Xmlpg  -Dxmlpg.generatedSourceDir=target/generated-sources/xmlpg-`basename $schema .xml`-$lang/ -Dexec.args="$schema $lang"
-
-done;
+mvn exec:java -Dexec.mainClass=edu.nps.moves.xmlpg.Xmlpg  -Dxmlpg.generatedSourceDir=target/generated-sources/xmlpg-`basename $schema .xml`/ -Dexec.args="$schema java cpp python javascript objc csharp"
@@ -0,0 +1,260 @@
+package edu.nps.moves.xmlpg;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A record of what each class looked like the last time source code was generated for it, kept in a file in the output
+ * directory. This is used for incremental generation: a class is regenerated only if its hash has changed since the
+ * last run, which leaves the files of unchanged classes (and their modification times) alone.
+ * <p>
+ *
+ * The hash of a class covers everything that can change the code generated for it: its own attributes and initial
+ * values, the classes up its inheritsFrom chain, and every class it refers to through a classRef or as the element type
+ * of a list, transitively. For each of those classes it also covers the computed layout and the names of the
+ * subclasses, since a class that gains a subclass stops being fixed size, which changes the sizes and offsets generated
+ * for every class that refers to it. The language properties are hashed separately; if they change, every class is
+ * regenerated.
+ */
+public class ClassManifest {
+
+    /**
+     * Key in the manifest file under which the hash of the language properties is kept. Not a legal class name.
+     */
+    public static final String PROPERTIES_KEY = "@languageProperties";
+
+    /**
+     * The manifest file
+     */
+    private File manifestFile;
+
+    /**
+     * Hashes read from the manifest file, key = class name, value = hash
+     */
+    private Properties previousHashes = new Properties();
+
+    /**
+     * Constructor. Reads the manifest file, if there is one.
+     */
+    public ClassManifest(File pManifestFile) {
+        manifestFile = pManifestFile;
+
+        if (manifestFile.exists()) {
+            try {
+                Reader reader = new FileReader(manifestFile);
+                previousHashes.load(reader);
+                reader.close();
+            } catch (IOException e) {
+                System.out.println("Could not read manifest " + manifestFile + ", regenerating all classes " + e);
+                previousHashes.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the hash is the same as the one recorded for the same key in the last run
+     */
+    public boolean isUnchanged(String key, String hash) {
+        return hash.equals(previousHashes.getProperty(key));
+    }
+
+    /**
+     * Replaces the manifest file with the hashes given, unless they are the same as the ones already in it
+     */
+    public void save(Map<String, String> hashes) throws IOException {
+        if (manifestFile.exists() && previousHashes.equals(hashes)) {
+            return;
+        }
+
+        manifestFile.getParentFile().mkdirs();
+        PrintWriter pw = new PrintWriter(manifestFile);
+        pw.println("# xmlpg incremental generation manifest; delete this file to regenerate all classes");
+
+        Iterator it = new TreeMap<String, String>(hashes).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) it.next();
+            pw.println(anEntry.getKey() + "=" + anEntry.getValue());
+        }
+        pw.close();
+    }
+
+    /**
+     * Computes the hash of a class, including its superclasses and all the classes it refers to.
+     *
+     * @param aClass
+     *            the class
+     * @param model
+     *            all the classes
+     */
+    public static String hashClass(GeneratedClass aClass, ProtocolModel model) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            DataOutputStream dos = new DataOutputStream(new DigestOutputStream(new NullOutputStream(), digest));
+
+            // Visit the class and everything it depends on, depth first, each class once
+            Set<String> visited = new HashSet<String>();
+            Deque<GeneratedClass> toVisit = new ArrayDeque<GeneratedClass>();
+            toVisit.push(aClass);
+
+            while (!toVisit.isEmpty()) {
+                GeneratedClass currentClass = toVisit.pop();
+                if (!visited.add(currentClass.getName())) {
+                    continue;
+                }
+                writeClass(dos, currentClass);
+                writeLayout(dos, currentClass, model);
+
+                // Push in reverse order so dependencies are visited in the order they are declared
+                List<GeneratedClass> dependencies = new ArrayList<GeneratedClass>();
+                GeneratedClass parent = model.getParent(currentClass);
+                if (parent != null) {
+                    dependencies.add(parent);
+                }
+
+                List attributes = currentClass.getClassAttributes();
+                for (int idx = 0; idx < attributes.size(); idx++) {
+                    ClassAttribute anAttribute = (ClassAttribute) attributes.get(idx);
+                    GeneratedClass referenced = model.getReferencedClass(anAttribute);
+                    if (referenced != null) {
+                        dependencies.add(referenced);
+                    }
+                }
+
+                for (int idx = dependencies.size() - 1; idx >= 0; idx--) {
+                    toVisit.push(dependencies.get(idx));
+                }
+            }
+
+            dos.flush();
+            return toHex(digest.digest());
+        } catch (Exception e) {
+            // SHA-256 is always available, and the stream never throws
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the hash of a set of language properties, independent of the order they were set in
+     */
+    public static String hashProperties(Properties languageProperties) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            DataOutputStream dos = new DataOutputStream(new DigestOutputStream(new NullOutputStream(), digest));
+
+            Iterator it = new TreeSet(languageProperties.stringPropertyNames()).iterator();
+            while (it.hasNext()) {
+                String key = (String) it.next();
+                writeString(dos, key);
+                writeString(dos, languageProperties.getProperty(key));
+            }
+
+            dos.flush();
+            return toHex(digest.digest());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes everything that describes one class, but not the classes it refers to
+     */
+    private static void writeClass(DataOutputStream dos, GeneratedClass aClass) throws IOException {
+        writeString(dos, aClass.getName());
+        writeString(dos, aClass.getParentClass());
+        writeString(dos, aClass.getClassComments());
+        dos.writeBoolean(aClass.isXmlRootElement());
+
+        List attributes = aClass.getClassAttributes();
+        dos.writeInt(attributes.size());
+        for (int idx = 0; idx < attributes.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) attributes.get(idx);
+            writeString(dos, anAttribute.getName());
+            writeString(dos, anAttribute.getAttributeKind().name());
+            writeString(dos, anAttribute.getType());
+            writeString(dos, anAttribute.getComment());
+            dos.writeInt(anAttribute.getListLength());
+            writeString(dos, anAttribute.getCountFieldName());
+            writeString(dos, anAttribute.getDefaultValue());
+            dos.writeBoolean(anAttribute.getUnderlyingTypeIsPrimitive());
+            dos.writeBoolean(anAttribute.getCouldBeString());
+            dos.writeBoolean(anAttribute.shouldSerialize);
+            dos.writeBoolean(anAttribute.getIsDynamicListLengthField());
+            dos.writeBoolean(anAttribute.getIsBitField());
+            writeString(dos, anAttribute.getDynamicListClassAttribute() == null ? null
+                    : anAttribute.getDynamicListClassAttribute().getName());
+
+            dos.writeInt(anAttribute.bitFieldList.size());
+            for (int jdx = 0; jdx < anAttribute.bitFieldList.size(); jdx++) {
+                BitField aBitField = (BitField) anAttribute.bitFieldList.get(jdx);
+                writeString(dos, aBitField.name);
+                writeString(dos, aBitField.mask);
+                writeString(dos, aBitField.comment);
+            }
+        }
+
+        List initialValues = aClass.getInitialValues();
+        dos.writeInt(initialValues.size());
+        for (int idx = 0; idx < initialValues.size(); idx++) {
+            InitialValue anInitialValue = (InitialValue) initialValues.get(idx);
+            writeString(dos, anInitialValue.getVariable());
+            writeString(dos, anInitialValue.getVariableValue());
+        }
+    }
+
+    /**
+     * Writes the layout computed for a class, its size and the offset and size of each attribute, and its subclasses,
+     * which the layout of a class that refers to it depends on
+     */
+    private static void writeLayout(DataOutputStream dos, GeneratedClass aClass, ProtocolModel model)
+            throws IOException {
+        ProtocolLayout layout = model.getLayout();
+        dos.writeInt(layout.getMarshalledSize(aClass));
+
+        List attributes = aClass.getClassAttributes();
+        for (int idx = 0; idx < attributes.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) attributes.get(idx);
+            dos.writeInt(layout.getOffset(anAttribute));
+            dos.writeInt(layout.getSize(anAttribute));
+            dos.writeInt(layout.getElementSize(anAttribute));
+        }
+
+        List<GeneratedClass> children = model.getChildren(aClass);
+        dos.writeInt(children.size());
+        for (GeneratedClass aChild : children) {
+            writeString(dos, aChild.getName());
+        }
+    }
+
+    /**
+     * Writes a string that may be null, so that null and "" hash differently
+     */
+    private static void writeString(DataOutputStream dos, String aString) throws IOException {
+        dos.writeBoolean(aString != null);
+        if (aString != null) {
+            dos.writeUTF(aString);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (int idx = 0; idx < bytes.length; idx++) {
+            sb.append(Character.forDigit((bytes[idx] >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(bytes[idx] & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Discards everything written to it; the digest is all we want
+     */
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
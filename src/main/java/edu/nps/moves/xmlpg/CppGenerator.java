@@ -42,8 +42,8 @@ public class CppGenerator extends Generator {
      */
     Properties cppProperties;
 
-    public CppGenerator(HashMap pClassDescriptions, Properties pCppProperties) {
-        super(pClassDescriptions, pCppProperties);
+    public CppGenerator(ProtocolModel pModel, Properties pCppProperties) {
+        super(pModel, pCppProperties);
 
         pCppProperties.setProperty("directory", getDirectory());
 
@@ -95,29 +95,172 @@ public class CppGenerator extends Generator {
     }
 
     /**
-     * Generates the cpp source code classes
+     * Generates the header and cpp source code files for one class
      */
     @Override
-    public void writeClasses() {
-        this.createDirectory();
-
-        this.writeMacroFile();
-
-        Iterator it = classDescriptions.values().iterator();
-
-        // Loop through all the class descriptions, generating a header file and cpp file for each.
-        while (it.hasNext()) {
-            try {
-                GeneratedClass aClass = (GeneratedClass) it.next();
-                // System.out.println("Generating class " + aClass.getName());
-                this.writeHeaderFile(aClass);
-                this.writeCppFile(aClass);
-            } catch (Exception e) {
-                System.out.println("error creating source code " + e);
-            }
+    protected Map<String, String> renderClass(GeneratedClass aClass) {
+        Map<String, String> files = new LinkedHashMap<String, String>();
+
+        // System.out.println("Generating class " + aClass.getName());
+        StringWriter header = new StringWriter();
+        this.writeHeaderFile(new PrintWriter(header), aClass);
+        GenerationProfile.section("writeHeaderFile");
+        files.put(aClass.getName() + ".h", header.toString());
+
+        StringWriter cpp = new StringWriter();
+        this.writeCppFile(new PrintWriter(cpp), aClass);
+        files.put(aClass.getName() + ".cpp", cpp.toString());
+
+        return files;
+    }
+
+    /**
+     * The macro file and the message factory are shared by all the classes
+     */
+    @Override
+    protected void renderSharedFiles(Map<String, StringBuilder> files) {
+        StringWriter macro = new StringWriter();
+        this.writeMacroFile(new PrintWriter(macro));
+        files.put("msLibMacro.h", new StringBuilder(macro.toString()));
+
+        DispatchTable table = this.getDispatchTable();
+        if (table != null) {
+            StringWriter header = new StringWriter();
+            this.writeFactoryHeaderFile(new PrintWriter(header), table);
+            files.put(this.getFactoryName() + ".h", new StringBuilder(header.toString()));
+
+            StringWriter cpp = new StringWriter();
+            this.writeFactoryCppFile(new PrintWriter(cpp), table);
+            files.put(this.getFactoryName() + ".cpp", new StringBuilder(cpp.toString()));
+        }
+    }
+
+    /**
+     * Declares a factory that creates a message from its type and decodes messages from a byte buffer
+     */
+    private void writeFactoryHeaderFile(PrintWriter pw, DispatchTable table) {
+        String header = table.getHeaderClass().getName();
+        String typeField = table.getTypeAttribute().getName();
+        String lengthField = table.getLengthAttribute().getName();
 
-        } // End while
+        pw.println("#pragma once");
+        pw.println();
+        pw.println("#include \"" + header + ".h\"");
+        pw.println("#include <utils/DataStream.h>");
+        pw.println("#include <dis6/msLibMacro.h>");
+        pw.println("#include <cstddef>");
+        pw.println();
+        pw.println();
 
+        String namespace = languageProperties.getProperty("namespace");
+        if (namespace != null) {
+            pw.println("namespace " + namespace);
+            pw.println("{");
+        }
+        pw.println("// Creates and decodes messages by their " + typeField + ", generated from the initial values of "
+                + typeField + " in the XML file.");
+        pw.println();
+        pw.println("class EXPORT_MACRO " + this.getFactoryName());
+        pw.println("{");
+        pw.println("public:");
+        pw.println("    /** Position of " + typeField + " in a marshalled " + header + " */");
+        pw.println("    static const int TYPE_OFFSET = " + table.getTypeOffset() + ";");
+        pw.println("    /** Position of " + lengthField + " in a marshalled " + header + " */");
+        pw.println("    static const int LENGTH_OFFSET = " + table.getLengthOffset() + ";");
+        pw.println("    /** No message is shorter than this */");
+        pw.println("    static const int MINIMUM_LENGTH = " + table.getMinimumLength() + ";");
+        pw.println();
+        pw.println("    /** Makes a new, empty message of the given type, or returns NULL if there is no class for it."
+                + " The caller deletes the message. */");
+        pw.println("    static " + header + "* create(int " + typeField + ");");
+        pw.println();
+        pw.println(
+                "    /** Decodes the message at the start of buffer, which holds size bytes, and sets length to the bytes"
+                        + " it takes up as given by its " + lengthField + ".");
+        pw.println("     *  A message of an unknown type is skipped and NULL returned. If the " + lengthField
+                + " is too short or longer than size, length is set to size and NULL returned. */");
+        pw.println("    static " + header + "* decode(const char* buffer, size_t size, size_t& length);");
+        pw.println("};");
+        if (namespace != null) {
+            pw.println("}");
+        }
+        pw.println();
+        pw.flush();
+    }
+
+    /**
+     * The factory dispatches with a switch, which compilers turn into a jump table when the types are dense
+     */
+    private void writeFactoryCppFile(PrintWriter pw, DispatchTable table) {
+        String header = table.getHeaderClass().getName();
+        String factoryName = this.getFactoryName();
+        String typeField = table.getTypeAttribute().getName();
+
+        pw.println("#include \"" + factoryName + ".h\"");
+        for (GeneratedClass aClass : table.getClassesByType().values()) {
+            pw.println("#include \"" + aClass.getName() + ".h\"");
+        }
+        pw.println();
+
+        String namespace = languageProperties.getProperty("namespace");
+        if (namespace != null) {
+            pw.println("using namespace " + namespace + ";\n");
+        }
+        pw.println();
+
+        pw.println(header + "* " + factoryName + "::create(int " + typeField + ")");
+        pw.println("{");
+        pw.println("    switch(" + typeField + ")");
+        pw.println("    {");
+        for (Map.Entry<Integer, GeneratedClass> anEntry : table.getClassesByType().entrySet()) {
+            pw.println("    case " + anEntry.getKey() + ": return new " + anEntry.getValue().getName() + "();");
+        }
+        pw.println("    default: return NULL;");
+        pw.println("    }");
+        pw.println("}");
+        pw.println();
+
+        // The fields are read a byte at a time, in network order, so the buffer needs no alignment
+        pw.println(header + "* " + factoryName + "::decode(const char* buffer, size_t size, size_t& length)");
+        pw.println("{");
+        pw.println("    length = size;");
+        pw.println("    if(size < MINIMUM_LENGTH)");
+        pw.println("    {");
+        pw.println("        return NULL;");
+        pw.println("    }");
+        pw.println();
+        pw.println("    size_t messageLength = 0;");
+        pw.println("    for(int idx = 0; idx < " + ProtocolLayout.getPrimitiveSize(table.getLengthAttribute().getType())
+                + "; idx++)");
+        pw.println("    {");
+        pw.println("        messageLength = (messageLength << 8) | (unsigned char)buffer[LENGTH_OFFSET + "
+                + this.byteIndex(table.getLengthAttribute()) + "];");
+        pw.println("    }");
+        pw.println("    if(messageLength < MINIMUM_LENGTH || messageLength > size)");
+        pw.println("    {");
+        pw.println("        return NULL;");
+        pw.println("    }");
+        pw.println("    length = messageLength;");
+        pw.println();
+        pw.println("    int " + typeField + " = 0;");
+        pw.println("    for(int idx = 0; idx < " + ProtocolLayout.getPrimitiveSize(table.getTypeAttribute().getType())
+                + "; idx++)");
+        pw.println("    {");
+        pw.println("        " + typeField + " = (" + typeField + " << 8) | (unsigned char)buffer[TYPE_OFFSET + "
+                + this.byteIndex(table.getTypeAttribute()) + "];");
+        pw.println("    }");
+        pw.println();
+        pw.println("    " + header + "* message = create(" + typeField + ");");
+        pw.println("    if(message != NULL)");
+        pw.println("    {");
+        pw.println("        DataStream dataStream(buffer, messageLength, " + (this.isLittleEndian() ? "LITTLE" : "BIG")
+                + ");");
+        pw.println("        message->unmarshal(dataStream);");
+        pw.println("    }");
+        pw.println("    return message;");
+        pw.println("}");
+        pw.println();
+        pw.flush();
     }
 
     /**
@@ -125,7 +268,7 @@ public class CppGenerator extends Generator {
      * empty string in the gcc/unix world. In the Microsoft C++ world, the macro will resolve and do something useful
      * about creating libraries.
      */
-    public void writeMacroFile() {
+    public void writeMacroFile(PrintWriter pw) {
         System.out.println("Creating microsoft library macro file");
 
         /*
@@ -136,10 +279,6 @@ public class CppGenerator extends Generator {
         String headerFile = "msLibMacro";
 
         try {
-            String headerFullPath = getDirectory() + "/" + headerFile + ".h";
-            File outputFile = new File(headerFullPath);
-            outputFile.createNewFile();
-            PrintWriter pw = new PrintWriter(outputFile);
 
             String libMacro = languageProperties.getProperty("microsoftLibMacro");
             String library = languageProperties.getProperty("microsoftLibDef");
@@ -170,14 +309,10 @@ public class CppGenerator extends Generator {
     /**
      * Generate a c++ header file for the classes
      */
-    public void writeHeaderFile(GeneratedClass aClass) {
+    public void writeHeaderFile(PrintWriter pw, GeneratedClass aClass) {
         try {
             String name = aClass.getName();
             // System.out.println("Creating cpp and .h source code files for " + name);
-            String headerFullPath = getDirectory() + "/" + name + ".h";
-            File outputFile = new File(headerFullPath);
-            outputFile.createNewFile();
-            PrintWriter pw = new PrintWriter(outputFile);
 
             // prevent multiple inclusions by the preprocessor
             pw.println("#pragma once");
@@ -327,6 +462,22 @@ public class CppGenerator extends Generator {
 
             // Delcare ctor and dtor in the public area
             pw.println("\n public:");
+
+            // Sizes and offsets that are known when generating
+            ProtocolLayout layout = model.getLayout();
+            pw.println("    /** Size in bytes of a marshalled " + aClass.getName()
+                    + ", or -1 if it depends on the contents */");
+            pw.println("    static const int MARSHALLED_SIZE = " + layout.getMarshalledSize(aClass) + ";");
+            for (int idx = 0; idx < aClass.getClassAttributes().size(); idx++) {
+                ClassAttribute anAttribute = (ClassAttribute) aClass.getClassAttributes().get(idx);
+                int offset = layout.getOffset(anAttribute);
+                if (offset != ProtocolLayout.VARIABLE) {
+                    pw.println("    static const int OFFSET_" + this.constantName(anAttribute.getName()) + " = "
+                            + offset + ";");
+                }
+            }
+            pw.println();
+
             // Constructor
             pw.println("    " + aClass.getName() + "();");
 
@@ -365,8 +516,8 @@ public class CppGenerator extends Generator {
                     // Sleaze. We need to figure out what type of array we are, and this is slightly complex.
                     String arrayType = this.getArrayType(anAttribute.getType());
                     pw.println("    " + arrayType + "*  get" + this.initialCap(anAttribute.getName()) + "();");
-                    pw.println("    const " + arrayType + "*  get" + this.initialCap(anAttribute.getName())
-                            + "() const;");
+                    pw.println(
+                            "    const " + arrayType + "*  get" + this.initialCap(anAttribute.getName()) + "() const;");
                     pw.println("    void set" + this.initialCap(anAttribute.getName()) + "( const " + arrayType
                             + "*    pX);");
                     if (anAttribute.getCouldBeString() == true) {
@@ -420,14 +571,10 @@ public class CppGenerator extends Generator {
 
     } // End write header file
 
-    public void writeCppFile(GeneratedClass aClass) {
+    public void writeCppFile(PrintWriter pw, GeneratedClass aClass) {
         try {
             String name = aClass.getName();
             // System.out.println("Creating cpp and .h source code files for " + name);
-            String headerFullPath = getDirectory() + "/" + name + ".cpp";
-            File outputFile = new File(headerFullPath);
-            outputFile.createNewFile();
-            PrintWriter pw = new PrintWriter(outputFile);
 
             pw.println("#include \"" + aClass.getName() + ".h\"");
             pw.println();
@@ -441,7 +588,9 @@ public class CppGenerator extends Generator {
 
             // Write ctor
             this.writeCtor(pw, aClass);
+            GenerationProfile.section("writeCtor");
             this.writeDtor(pw, aClass);
+            GenerationProfile.section("writeDtor");
 
             // Write the getter and setter methods for each of the attributes
             for (int idx = 0; idx < aClass.getClassAttributes().size(); idx++) {
@@ -449,16 +598,21 @@ public class CppGenerator extends Generator {
                 this.writeGetterMethod(pw, aClass, anAttribute);
                 this.writeSetterMethod(pw, aClass, anAttribute);
             }
+            GenerationProfile.section("writeGetterAndSetterMethods");
 
             // Write marshal and unmarshal methods
             this.writeMarshalMethod(pw, aClass);
+            GenerationProfile.section("writeMarshalMethod");
             this.writeUnmarshalMethod(pw, aClass);
+            GenerationProfile.section("writeUnmarshalMethod");
 
             // Write a comparision operator
             this.writeEqualityOperator(pw, aClass);
+            GenerationProfile.section("writeEqualityOperator");
 
             // Method to determine the marshalled length of the PDU
             this.writeGetMarshalledSizeMethod(pw, aClass);
+            GenerationProfile.section("writeGetMarshalledSizeMethod");
 
             // License notice
             this.writeLicenseNotice(pw);
@@ -995,6 +1149,15 @@ public class CppGenerator extends Generator {
         pw.println();
         pw.println("int " + aClass.getName() + "::" + "getMarshalledSize() const");
         pw.println("{");
+
+        // Worked out when generating, if nothing in the class can vary in size
+        if (model.getLayout().isFixedSize(aClass)) {
+            pw.println("   return MARSHALLED_SIZE;");
+            pw.println("}");
+            pw.println();
+            return;
+        }
+
         pw.println("   int marshalSize = 0;");
         pw.println();
 
@@ -1,10 +1,9 @@
 package edu.nps.moves.xmlpg;
 
-import java.io.File;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -55,14 +54,8 @@ public class CsharpGenerator extends Generator {
 
     String disVersion;
 
-    /**
-     * PES 02/10/2009 Added to save all classes linked to Upper Class (PDU) Will be used to allow automatic setting of
-     * Length when Marshall method called
-     */
-    Map<String, String> classesInstantiated = new HashMap<String, String>();
-
-    public CsharpGenerator(HashMap pClassDescriptions, Properties pCsharpProperties) {
-        super(pClassDescriptions, pCsharpProperties);
+    public CsharpGenerator(ProtocolModel pModel, Properties pCsharpProperties) {
+        super(pModel, pCsharpProperties);
 
         Properties systemProperties = System.getProperties();
         String clNamespace = systemProperties.getProperty("xmlpg.namespace");
@@ -81,7 +74,7 @@ public class CsharpGenerator extends Generator {
         }
 
         String dotNet = pCsharpProperties.getProperty("useDotNet");
-        if (dotNet.equalsIgnoreCase("false")) {
+        if ("false".equalsIgnoreCase(dotNet)) {
             useDotNet = false;
         }
 
@@ -157,83 +150,133 @@ public class CsharpGenerator extends Generator {
     }
 
     /**
-     * Generate the classes and write them to a directory
+     * Announces the start of C# generation, and writes the message factory shared by all the classes
      */
     @Override
-    public void writeClasses() {
-        this.createDirectory();
-
-        Iterator it = classDescriptions.values().iterator();
-
+    protected void renderSharedFiles(Map<String, StringBuilder> files) {
         System.out.println("Creating C# source code.");
 
-        // PES 02/10/2009 used to store all classes
-        Iterator it2 = classDescriptions.values().iterator();
-
-        while (it2.hasNext()) {
-            GeneratedClass aClass = (GeneratedClass) it2.next();
-            String parentClass = aClass.getParentClass();
+        DispatchTable table = this.getDispatchTable();
+        if (table != null) {
+            PrintStringBuffer psw = new PrintStringBuffer();
+            this.writeFactoryClass(psw, table);
+            files.put(this.getFactoryName() + ".cs", new StringBuilder(psw.toString()));
+        }
+    }
 
-            if (parentClass.equalsIgnoreCase("root")) {
-                parentClass = "Object";
-            }
+    /**
+     * Writes a factory that creates a message from its type with a switch, which compiles to a jump table when the
+     * types are dense, and decodes messages from a byte array
+     */
+    private void writeFactoryClass(PrintStringBuffer pw, DispatchTable table) {
+        String header = table.getHeaderClass().getName();
+        String typeField = table.getTypeAttribute().getName();
+        String lengthField = table.getLengthAttribute().getName();
 
-            classesInstantiated.put(aClass.getName(), parentClass);
+        this.writeLicenseNotice(pw);
+        this.writeCopyrightNotice(pw);
+        this.writeImports(pw, table.getHeaderClass());
+        this.writeNamespace(pw);
+        pw.println(1, "/// <summary>");
+        pw.println(1, "/// Creates and decodes messages by their " + typeField
+                + ", generated from the initial values of " + typeField + " in the XML file.");
+        pw.println(1, "/// </summary>");
+        pw.println(1, "public static class " + this.getFactoryName());
+        pw.println(1, "{");
+        pw.println(2, "/// <summary>Position of " + typeField + " in a marshalled " + header + "</summary>");
+        pw.println(2, "public const int TYPE_OFFSET = " + table.getTypeOffset() + ";");
+        pw.println();
+        pw.println(2, "/// <summary>Position of " + lengthField + " in a marshalled " + header + "</summary>");
+        pw.println(2, "public const int LENGTH_OFFSET = " + table.getLengthOffset() + ";");
+        pw.println();
+        pw.println(2, "/// <summary>No message is shorter than this</summary>");
+        pw.println(2, "public const int MINIMUM_LENGTH = " + table.getMinimumLength() + ";");
+        pw.println();
+        pw.println(2, "/// <summary>");
+        pw.println(2, "/// Makes a new, empty message of the given type, or returns null if there is no class for it");
+        pw.println(2, "/// </summary>");
+        pw.println(2, "public static " + header + " Create(int " + typeField + ")");
+        pw.println(2, "{");
+        pw.println(3, "switch (" + typeField + ")");
+        pw.println(3, "{");
+        for (Map.Entry<Integer, GeneratedClass> anEntry : table.getClassesByType().entrySet()) {
+            pw.println(4, "case " + anEntry.getKey() + ": return new " + anEntry.getValue().getName() + "();");
         }
+        pw.println(4, "default: return null;");
+        pw.println(3, "}");
+        pw.println(2, "}");
+        pw.println();
+        pw.println(2, "/// <summary>");
+        pw.println(2,
+                "/// Decodes the message at offset in buffer and sets length to the bytes it takes up, as given by its "
+                        + lengthField + ".");
+        pw.println(2, "/// A message of an unknown type is skipped and null returned. If the " + lengthField
+                + " is too short or runs past the end of");
+        pw.println(2, "/// the buffer, length is set to the rest of the buffer and null returned.");
+        pw.println(2, "/// </summary>");
+        pw.println(2, "public static " + header + " Decode(byte[] buffer, int offset, out int length)");
+        pw.println(2, "{");
+        pw.println(3, "length = buffer.Length - offset;");
+        pw.println(3, "if (length < MINIMUM_LENGTH)");
+        pw.println(3, "{");
+        pw.println(4, "return null;");
+        pw.println(3, "}");
+        pw.println();
+        pw.println(3, "int messageLength = 0;");
+        pw.println(3, "for (int idx = 0; idx < " + ProtocolLayout.getPrimitiveSize(table.getLengthAttribute().getType())
+                + "; idx++)");
+        pw.println(3, "{");
+        pw.println(4, "messageLength = (messageLength << 8) | buffer[offset + LENGTH_OFFSET + "
+                + this.byteIndex(table.getLengthAttribute()) + "];");
+        pw.println(3, "}");
+        pw.println(3, "if (messageLength < MINIMUM_LENGTH || messageLength > length)");
+        pw.println(3, "{");
+        pw.println(4, "return null;");
+        pw.println(3, "}");
+        pw.println(3, "length = messageLength;");
+        pw.println();
+        pw.println(3, "int " + typeField + " = 0;");
+        pw.println(3, "for (int idx = 0; idx < " + ProtocolLayout.getPrimitiveSize(table.getTypeAttribute().getType())
+                + "; idx++)");
+        pw.println(3, "{");
+        pw.println(4, typeField + " = (" + typeField + " << 8) | buffer[offset + TYPE_OFFSET + "
+                + this.byteIndex(table.getTypeAttribute()) + "];");
+        pw.println(3, "}");
+        pw.println();
+        pw.println(3, header + " message = Create(" + typeField + ");");
+        pw.println(3, "if (message != null)");
+        pw.println(3, "{");
+        pw.println(4, "DataInputStream dis = new DataInputStream(buffer, Endian."
+                + (this.isLittleEndian() ? "Little" : "Big") + ");");
+        pw.println(4, "dis.CurrentIndex = offset;");
+        pw.println(4, "message.Unmarshal(dis);");
+        pw.println(3, "}");
+        pw.println(3, "return message;");
+        pw.println(2, "}");
+        pw.println(1, "}");
+        pw.println("}");
+    }
 
-        // END storing all Classes
-        while (it.hasNext()) {
-            try {
-                GeneratedClass aClass = (GeneratedClass) it.next();
-                String name = aClass.getName();
-
-                // Create namespace structure, if any
-                String namespace = languageProperties.getProperty("namespace");
-                String fullPath;
-
-                // If we have a namespace specified, replace the dots in the namespace name
-                // with slashes and create that directory
-                if (namespace != null) {
-                    namespace = namespace.replace(".", "/");
-                    fullPath = getDirectory() + "/" + name + ".cs";
-                    // System.out.println("full path is " + fullPath);
-                } else {
-                    fullPath = getDirectory() + "/" + name + ".cs";
-                }
-                // System.out.println("Creating Csharp source code file for " + fullPath);
-
-                // Create the new, empty file, and create printwriter object for output to it
-                File outputFile = new File(fullPath);
-                outputFile.createNewFile();
-                // System.out.println("created output file");
-
-                PrintWriter pw = new PrintWriter(outputFile);
-                PrintStringBuffer psw = new PrintStringBuffer(); // PES 05/01/2009
-
-                // System.out.println("psw is " + PrintStringBuffer.class.getName());
-                // System.out.println("created pw, psw " + pw + ", " + psw.toString());
-                // PES 05/01/2009 modified to print data to a stringbuilder prior to output to a file
-                // will use this to post process any changes
-                this.writeClass(psw, aClass);
-                // System.out.println("wrote class");
-
-                // See if any post processing is needed
-                this.postProcessData(psw, aClass);
-                // System.out.println("post processed");
-
-                // print the source code of the class to the file
-                pw.print(psw.toString());
-                pw.flush();
-                pw.close();
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println("error creating source code " + e);
-            }
+    /**
+     * Generate the source code for one class
+     */
+    @Override
+    protected Map<String, String> renderClass(GeneratedClass aClass) {
+        PrintStringBuffer psw = new PrintStringBuffer(); // PES 05/01/2009
 
-        } // End while
+        // PES 05/01/2009 modified to print data to a stringbuilder prior to output to a file
+        // will use this to post process any changes
+        this.writeClass(psw, aClass);
+        GenerationProfile.section("writeClass");
 
-    } // End write classes
+        // See if any post processing is needed
+        this.postProcessData(psw, aClass);
+        GenerationProfile.section("postProcessData");
+
+        Map<String, String> files = new LinkedHashMap<String, String>();
+        files.put(aClass.getName() + ".cs", psw.toString());
+        return files;
+    }
 
     /**
      * Generate a source code file with getters, setters, ivars, and marshal/unmarshal methods for one class.
@@ -245,22 +288,37 @@ public class CsharpGenerator extends Generator {
         this.writeLicenseNotice(pw);
         this.writeCopyrightNotice(pw);
         this.writeImports(pw, aClass);
+        GenerationProfile.section("writeImports");
         this.writeNamespace(pw);
         this.writeClassComments(pw, aClass, 1);
+        GenerationProfile.section("writeClassComments");
         this.writeClassDeclaration(pw, aClass, 1);
+        GenerationProfile.section("writeClassDeclaration");
+        this.writeLayoutConstants(pw, aClass, 2);
+        GenerationProfile.section("writeLayoutConstants");
         this.writeIvars(pw, aClass, 2);
+        GenerationProfile.section("writeIvars");
         this.writeConstructor(pw, aClass, 2);
+        GenerationProfile.section("writeConstructor");
         this.writeOperators(pw, aClass, 2);
+        GenerationProfile.section("writeOperators");
         this.writeGetMarshalledSizeMethod(pw, aClass, 2);
+        GenerationProfile.section("writeGetMarshalledSizeMethod");
         this.writeGettersAndSetters(pw, aClass, 2);
+        GenerationProfile.section("writeGettersAndSetters");
         this.writeExceptionHandler(pw, aClass, 2);
+        GenerationProfile.section("writeExceptionHandler");
         this.writeMarshalMethod(pw, aClass, 2);
+        GenerationProfile.section("writeMarshalMethod");
         this.writeUnmarshallMethod(pw, aClass, 2);
+        GenerationProfile.section("writeUnmarshallMethod");
         if (useDotNet) {
             this.writeReflectionMethod(pw, aClass, 2);
         }
         this.writeEqualityMethod(pw, aClass, 2);
+        GenerationProfile.section("writeEqualityMethod");
         this.writeBitflagMethods(pw, aClass, 2);
+        GenerationProfile.section("writeBitflagMethods");
 
         pw.println(1, "}");
         pw.println("}");
@@ -393,6 +451,39 @@ public class CsharpGenerator extends Generator {
         pw.println(indent, "{");
     }
 
+    /**
+     * Writes the marshalled size of the class, or -1 if it varies, and the offset of each field whose position doesn't
+     * depend on the contents
+     */
+    private void writeLayoutConstants(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
+        ProtocolLayout layout = model.getLayout();
+
+        // A subclass hides the size of its superclass
+        String newKeyword = aClass.getParentClass().equalsIgnoreCase("root") ? "" : "new ";
+
+        pw.println(indent, "/// <summary>");
+        pw.println(indent,
+                "/// Size in bytes of a marshalled " + aClass.getName() + ", or -1 if it depends on the contents");
+        pw.println(indent, "/// </summary>");
+        pw.println(indent,
+                "public " + newKeyword + "const int MARSHALLED_SIZE = " + layout.getMarshalledSize(aClass) + ";");
+        pw.println();
+
+        List ivars = aClass.getClassAttributes();
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            int offset = layout.getOffset(anAttribute);
+            if (offset != ProtocolLayout.VARIABLE) {
+                pw.println(indent, "/// <summary>");
+                pw.println(indent, "/// Position of " + anAttribute.getName() + " in a marshalled " + aClass.getName());
+                pw.println(indent, "/// </summary>");
+                pw.println(indent,
+                        "public const int OFFSET_" + this.constantName(anAttribute.getName()) + " = " + offset + ";");
+                pw.println();
+            }
+        }
+    }
+
     private void writeIvars(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
         List ivars = aClass.getClassAttributes();
         for (int idx = 0; idx < ivars.size(); idx++) {
@@ -507,24 +598,8 @@ public class CsharpGenerator extends Generator {
             // This is irritating. we have to match up the attribute name with the type,
             // so we can do a cast. Otherwise java pukes because it wants to interpret all
             // numeric strings as ints or doubles, and the attribute may be a short.
-            boolean found = false;
-            GeneratedClass currentClass = aClass;
-            String aType = null;
-
-            while (currentClass != null) {
-                List thisClassesAttributes = currentClass.getClassAttributes();
-                for (int jdx = 0; jdx < thisClassesAttributes.size(); jdx++) {
-                    ClassAttribute anAttribute = (ClassAttribute) thisClassesAttributes.get(jdx);
-
-                    if (anInit.getVariable().equals(anAttribute.getName())) {
-                        found = true;
-                        aType = anAttribute.getType();
-                        break;
-                    }
-                }
-                currentClass = (GeneratedClass) classDescriptions.get(currentClass.getParentClass());
-            }
-            if (!found) {
+            ClassAttribute anAttribute = model.findAttribute(aClass, anInit.getVariable());
+            if (anAttribute == null) {
 
                 System.out.println("Could not find initial value matching attribute name for " + anInit.getVariable()
                         + " in class " + aClass.getName());
@@ -532,9 +607,9 @@ public class CsharpGenerator extends Generator {
                 // PES modified the InitalValue.java class to provide a method name that would work with the changes
                 // made in this file
                 // ZB: only initialize if the value is not the same as the default type value
-                if (!anInit.getVariableValue().equals(typeDefaultValue.getProperty(aType))) {
-                    pw.println(indent + 1, anInit.getSetterMethodNameCSharp() + " = (" + types.getProperty(aType) + ")"
-                            + anInit.getVariableValue() + ";");
+                if (!anInit.getVariableValue().equals(typeDefaultValue.getProperty(anAttribute.getType()))) {
+                    pw.println(indent + 1, anInit.getSetterMethodNameCSharp() + " = ("
+                            + types.getProperty(anAttribute.getType()) + ")" + anInit.getVariableValue() + ";");
                 }
             }
         } // End initialize initial values
@@ -573,6 +648,15 @@ public class CsharpGenerator extends Generator {
         pw.println();
         pw.println(indent, "public " + newKeyword + "int GetMarshalledSize()");
         pw.println(indent, "{");
+
+        // Worked out when generating, if nothing in the class can vary in size
+        if (model.getLayout().isFixedSize(aClass)) {
+            pw.println(indent + 1, "return MARSHALLED_SIZE;");
+            pw.println(indent, "}");
+            pw.println();
+            return;
+        }
+
         pw.println(indent + 1, "int marshalSize = 0; ");
         pw.println();
 
@@ -1087,42 +1171,10 @@ public class CsharpGenerator extends Generator {
 
         // PES 02/10/2009 Added to support auto setting of length field
         if (!baseclassName.equalsIgnoreCase("root")) {
-            boolean exitLoop = false;
-            boolean foundMatch = true;
-            String matchValue = baseclassName;
-            String key = "";
-
-            if (!matchValue.equalsIgnoreCase("pdu")) {
-                do {
-                    key = "";
-                    foundMatch = false;
-
-                    if (classesInstantiated.containsKey(matchValue)) {
-                        key = classesInstantiated.get(matchValue);
-                    } else {
-                        // No match to key, get out
-                        break;
-                    }
-
-                    // There was a key test if the upper class is PDU.
-                    // If so then can add new method to retrieve pdu length
-                    if (!key.equals(null)) {
-                        matchValue = key;
-                        foundMatch = true;
-
-                        if (key.equalsIgnoreCase("pdu")) {
-                            exitLoop = true;
-                        }
-                    }
-
-                    // If match not found at this point then get out
-                    if (foundMatch == false) {
-                        exitLoop = true;
-                    }
-
-                } while (exitLoop == false);
-
-            }
+            // Only PDUs have a length field to set
+            GeneratedClass parent = model.getParent(aClass);
+            boolean foundMatch = baseclassName.equalsIgnoreCase("pdu")
+                    || (parent != null && model.isKindOf(parent, "pdu"));
 
             if (foundMatch == true) {
                 // System.out.println("Found PDU writing data");
@@ -1955,7 +2007,7 @@ public class CsharpGenerator extends Generator {
         String findString;
         String newString;
 
-        if (this.disVersion.equals("1998")) {
+        if ("1998".equals(this.disVersion)) {
             findString = "this._data = dis.ReadByteArray(this._dataLength);";
             newString = "this._data = dis.ReadByteArray((this._dataLength / 8) + (this._dataLength % 8 > 0 ? 1 : 0));  //09062009 Post processed. Needed to convert from bits to bytes"; // PES
                                                                                                                                                                                          // changed
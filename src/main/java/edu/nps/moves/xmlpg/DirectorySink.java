@@ -0,0 +1,63 @@
+package edu.nps.moves.xmlpg;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Writes each generated file to a directory, creating subdirectories as needed. Files are written in the platform's
+ * default encoding, as they always have been.
+ */
+public class DirectorySink implements OutputSink {
+
+    /**
+     * Root of the output
+     */
+    private File directory;
+
+    /**
+     * If true, a file that already has exactly the new contents is left alone, so its modification time doesn't change
+     */
+    private boolean skipUnchanged = false;
+
+    public DirectorySink(File pDirectory) {
+        directory = pDirectory;
+        directory.mkdirs();
+    }
+
+    /**
+     * Root of the output
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * If true, a file that already has exactly the new contents is not rewritten
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    @Override
+    public void write(String relativePath, CharSequence contents) throws IOException {
+        File outputFile = new File(directory, relativePath);
+        byte[] bytes = contents.toString().getBytes(Charset.defaultCharset());
+
+        if (skipUnchanged && outputFile.isFile() && Arrays.equals(bytes, Files.readAllBytes(outputFile.toPath()))) {
+            return;
+        }
+
+        outputFile.getParentFile().mkdirs();
+        Files.write(outputFile.toPath(), bytes);
+    }
+
+    /**
+     * Each file is separate, so files can be written concurrently
+     */
+    @Override
+    public boolean supportsConcurrentWrites() {
+        return true;
+    }
+}
@@ -0,0 +1,191 @@
+package edu.nps.moves.xmlpg;
+
+import java.util.*;
+
+/**
+ * Which class to decode a message into, worked out from the initial values in the XML file. The header class is the
+ * class that declares the type field, such as pduType in PduSuperclass; every class below it that sets an initial value
+ * for the type field is a message of that type. Unknown messages are skipped using the length field of the header.
+ * <p>
+ *
+ * The factories need both fields at a fixed offset, so the table is only usable if they are primitives that come before
+ * any variable length member of the header.
+ */
+public class DispatchTable {
+
+    private GeneratedClass headerClass;
+
+    private ClassAttribute typeAttribute;
+
+    private ClassAttribute lengthAttribute;
+
+    private int typeOffset = ProtocolLayout.VARIABLE;
+
+    private int lengthOffset = ProtocolLayout.VARIABLE;
+
+    private int minimumLength;
+
+    /**
+     * Message class by type, in order of type
+     */
+    private SortedMap<Integer, GeneratedClass> classesByType = new TreeMap<Integer, GeneratedClass>();
+
+    /**
+     * Why the table can't be used, or null if it can
+     */
+    private String problem;
+
+    /**
+     * @param typeField
+     *            name of the attribute that holds the message type, such as pduType
+     * @param lengthField
+     *            name of the attribute that holds the length of the message in bytes, such as length
+     */
+    public DispatchTable(ProtocolModel model, String typeField, String lengthField) {
+        // More than one class may declare the type field, such as PduHeader and PduSuperclass. The header is the one
+        // with the most messages under it.
+        for (int id = 0; id < model.size(); id++) {
+            GeneratedClass aClass = model.getGeneratedClass(id);
+            List attributes = aClass.getClassAttributes();
+            for (int idx = 0; idx < attributes.size(); idx++) {
+                ClassAttribute anAttribute = (ClassAttribute) attributes.get(idx);
+                if (anAttribute.getName().equals(typeField)) {
+                    SortedMap<Integer, GeneratedClass> messages = this.findMessages(model, aClass, typeField, false);
+                    if (headerClass == null || messages.size() > classesByType.size()) {
+                        headerClass = aClass;
+                        typeAttribute = anAttribute;
+                        classesByType = messages;
+                    }
+                }
+            }
+        }
+
+        if (headerClass == null) {
+            problem = "no class has a " + typeField + " attribute";
+            return;
+        }
+        lengthAttribute = model.findAttribute(headerClass, lengthField);
+        if (lengthAttribute == null) {
+            problem = headerClass.getName() + " has no " + lengthField + " attribute";
+            return;
+        }
+        ProtocolLayout layout = model.getLayout();
+        typeOffset = layout.getOffset(typeAttribute);
+        lengthOffset = layout.getOffset(lengthAttribute);
+        if (typeOffset == ProtocolLayout.VARIABLE || lengthOffset == ProtocolLayout.VARIABLE
+                || typeAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.PRIMITIVE
+                || lengthAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.PRIMITIVE) {
+            problem = typeField + " and " + lengthField + " must be primitives at a fixed offset in "
+                    + headerClass.getName();
+            return;
+        }
+
+        // Every message has at least the fields of the header; if its size varies, at least the type and length
+        minimumLength = layout.getMarshalledSize(headerClass);
+        if (minimumLength == ProtocolLayout.VARIABLE) {
+            minimumLength = Math.max(typeOffset + ProtocolLayout.getPrimitiveSize(typeAttribute.getType()),
+                    lengthOffset + ProtocolLayout.getPrimitiveSize(lengthAttribute.getType()));
+        }
+
+        // Again, this time reporting the problems
+        classesByType = this.findMessages(model, headerClass, typeField, true);
+    }
+
+    /**
+     * The classes below a header that set an initial value for the type field, by type. When two classes have the same
+     * type the first one is used.
+     */
+    private SortedMap<Integer, GeneratedClass> findMessages(ProtocolModel model, GeneratedClass header,
+            String typeField, boolean report) {
+        SortedMap<Integer, GeneratedClass> messages = new TreeMap<Integer, GeneratedClass>();
+        for (int id = 0; id < model.size(); id++) {
+            GeneratedClass aClass = model.getGeneratedClass(id);
+            if (aClass == header || !model.isKindOf(aClass, header.getName())) {
+                continue;
+            }
+            List inits = aClass.getInitialValues();
+            for (int idx = 0; idx < inits.size(); idx++) {
+                InitialValue anInit = (InitialValue) inits.get(idx);
+                if (!anInit.getVariable().equalsIgnoreCase(typeField)) {
+                    continue;
+                }
+                Integer type;
+                try {
+                    type = Integer.valueOf(anInit.getVariableValue().trim());
+                } catch (NumberFormatException e) {
+                    if (report) {
+                        System.out.println("Ignoring " + typeField + " " + anInit.getVariableValue() + " of "
+                                + aClass.getName() + ", not a number");
+                    }
+                    continue;
+                }
+                GeneratedClass existing = messages.get(type);
+                if (existing == null) {
+                    messages.put(type, aClass);
+                } else if (existing != aClass && report) {
+                    System.out.println(typeField + " " + type + " of " + aClass.getName() + " is already used by "
+                            + existing.getName() + "; the factory creates " + existing.getName());
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * True if the factories can be generated
+     */
+    public boolean isUsable() {
+        return problem == null;
+    }
+
+    /**
+     * Why the factories can't be generated, or null if they can
+     */
+    public String getProblem() {
+        return problem;
+    }
+
+    /**
+     * The class that declares the type field, which every message class inherits from
+     */
+    public GeneratedClass getHeaderClass() {
+        return headerClass;
+    }
+
+    public ClassAttribute getTypeAttribute() {
+        return typeAttribute;
+    }
+
+    public ClassAttribute getLengthAttribute() {
+        return lengthAttribute;
+    }
+
+    /**
+     * Position of the type field from the start of a marshalled message
+     */
+    public int getTypeOffset() {
+        return typeOffset;
+    }
+
+    /**
+     * Position of the length field from the start of a marshalled message
+     */
+    public int getLengthOffset() {
+        return lengthOffset;
+    }
+
+    /**
+     * The marshalled size of the header class, or if that varies the bytes up to the end of the type and length fields;
+     * a message can be no shorter
+     */
+    public int getMinimumLength() {
+        return minimumLength;
+    }
+
+    /**
+     * Message class by type, in order of type
+     */
+    public SortedMap<Integer, GeneratedClass> getClassesByType() {
+        return Collections.unmodifiableSortedMap(classesByType);
+    }
+}
@@ -0,0 +1,253 @@
+package edu.nps.moves.xmlpg;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records where the time goes in a run, for finding the class or the part of a generator that makes generation slow.
+ * Turned on with -Dxmlpg.profile=reportFile; the report is written as CSV if the file name ends in .csv, as JSON
+ * otherwise. When the property is not set nothing is recorded.
+ * <p>
+ *
+ * Each entry has a phase, the generator (for the phases that belong to one), a name, the wall time, the bytes read or
+ * written, and the bytes allocated by the thread that did the work. The phases are:
+ * <ul>
+ * <li>parse: one XML file, name is the file</li>
+ * <li>snapshot: reading the snapshot instead of parsing</li>
+ * <li>validate: building the ProtocolModel and running astIsPlausible()</li>
+ * <li>render: one class in one generator, bytes is the size of the rendered source</li>
+ * <li>section: one step of rendering a class, such as writeMarshalMethod; name is class.step</li>
+ * <li>write: one file handed to the output</li>
+ * <li>generate: one generator from start to end</li>
+ * </ul>
+ * Allocated bytes come from the JVM's ThreadMXBean and are -1 if the JVM can't measure them. When classes are rendered
+ * on a pool, the generate entry only counts what the calling thread allocated; the render entries have the rest.
+ */
+public class GenerationProfile {
+
+    /**
+     * A point in time on one thread, from which the time and allocation of a piece of work are measured
+     */
+    public static class Mark {
+        private long nanos;
+        private long allocatedBytes;
+        private String generator;
+        private String className;
+
+        private Mark() {
+            this.reset();
+        }
+
+        private void reset() {
+            nanos = System.nanoTime();
+            allocatedBytes = allocatedBytes();
+        }
+    }
+
+    private static class Entry {
+        String phase;
+        String generator;
+        String name;
+        long nanos;
+        long bytes;
+        long allocatedBytes;
+    }
+
+    private static final Queue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * The class being rendered on this thread, so the sections of it can be recorded
+     */
+    private static final ThreadLocal<Mark> currentClass = new ThreadLocal<Mark>();
+
+    private static final com.sun.management.ThreadMXBean threadBean = allocationBean();
+
+    /**
+     * True if -Dxmlpg.profile is set
+     */
+    public static boolean isEnabled() {
+        return System.getProperty("xmlpg.profile") != null;
+    }
+
+    /**
+     * Starts measuring some work on the current thread
+     *
+     * @return the starting point, or null if profiling is off
+     */
+    public static Mark start() {
+        return isEnabled() ? new Mark() : null;
+    }
+
+    /**
+     * Records the work started at a mark
+     *
+     * @param aMark
+     *            from start(); if null nothing is recorded
+     * @param phase
+     *            one of the phases listed above
+     * @param generator
+     *            name of the generator, or null
+     * @param name
+     *            what the work was done on, such as a class or file
+     * @param bytes
+     *            bytes read or written, or -1
+     */
+    public static void end(Mark aMark, String phase, String generator, String name, long bytes) {
+        if (aMark == null) {
+            return;
+        }
+        Entry anEntry = new Entry();
+        anEntry.phase = phase;
+        anEntry.generator = generator;
+        anEntry.name = name;
+        anEntry.nanos = System.nanoTime() - aMark.nanos;
+        anEntry.bytes = bytes;
+        long allocated = allocatedBytes();
+        anEntry.allocatedBytes = (allocated < 0 || aMark.allocatedBytes < 0) ? -1 : allocated - aMark.allocatedBytes;
+        entries.add(anEntry);
+    }
+
+    /**
+     * Starts rendering a class on the current thread; section() then records the steps of it
+     */
+    static Mark startClass(String generator, String className) {
+        Mark aMark = start();
+        if (aMark != null) {
+            aMark.generator = generator;
+            aMark.className = className;
+
+            Mark sectionMark = new Mark();
+            sectionMark.generator = generator;
+            sectionMark.className = className;
+            currentClass.set(sectionMark);
+        }
+        return aMark;
+    }
+
+    /**
+     * Records a step of rendering the current class: everything since the class was started or the previous step. Does
+     * nothing if profiling is off or no class is being rendered.
+     */
+    public static void section(String step) {
+        Mark sectionMark = currentClass.get();
+        if (sectionMark == null) {
+            return;
+        }
+        end(sectionMark, "section", sectionMark.generator, sectionMark.className + "." + step, -1);
+        sectionMark.reset();
+    }
+
+    /**
+     * Finishes rendering a class started with startClass()
+     */
+    static void endClass(Mark aMark, long bytes) {
+        if (aMark == null) {
+            return;
+        }
+        currentClass.remove();
+        end(aMark, "render", aMark.generator, aMark.className, bytes);
+    }
+
+    /**
+     * Throws away everything recorded so far
+     */
+    public static void reset() {
+        entries.clear();
+    }
+
+    /**
+     * Writes the report to the file named by -Dxmlpg.profile, if it is set
+     */
+    public static void save() {
+        String reportFile = System.getProperty("xmlpg.profile");
+        if (reportFile == null) {
+            return;
+        }
+
+        List<Entry> report = new ArrayList<Entry>(entries);
+        boolean csv = reportFile.toLowerCase().endsWith(".csv");
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(reportFile)))) {
+            if (csv) {
+                pw.println("phase,generator,name,millis,bytes,allocatedBytes");
+                for (Entry anEntry : report) {
+                    pw.println(anEntry.phase + "," + csvField(anEntry.generator) + "," + csvField(anEntry.name) + ","
+                            + millis(anEntry.nanos) + "," + anEntry.bytes + "," + anEntry.allocatedBytes);
+                }
+            } else {
+                pw.println("[");
+                for (int idx = 0; idx < report.size(); idx++) {
+                    Entry anEntry = report.get(idx);
+                    pw.print("  {\"phase\": " + jsonString(anEntry.phase) + ", \"generator\": "
+                            + jsonString(anEntry.generator) + ", \"name\": " + jsonString(anEntry.name)
+                            + ", \"millis\": " + millis(anEntry.nanos) + ", \"bytes\": " + anEntry.bytes
+                            + ", \"allocatedBytes\": " + anEntry.allocatedBytes + "}");
+                    pw.println(idx < report.size() - 1 ? "," : "");
+                }
+                pw.println("]");
+            }
+            System.out.println("Wrote profile of " + report.size() + " entries to " + reportFile);
+        } catch (IOException e) {
+            System.out.println("Could not write profile " + reportFile + " " + e);
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+
+    private static String csvField(String aString) {
+        if (aString == null) {
+            return "";
+        }
+        if (aString.indexOf(',') < 0 && aString.indexOf('"') < 0) {
+            return aString;
+        }
+        return "\"" + aString.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String jsonString(String aString) {
+        if (aString == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int idx = 0; idx < aString.length(); idx++) {
+            char aChar = aString.charAt(idx);
+            if (aChar == '"' || aChar == '\\') {
+                sb.append('\\').append(aChar);
+            } else if (aChar < 0x20) {
+                sb.append(String.format("\\u%04x", (int) aChar));
+            } else {
+                sb.append(aChar);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or -1 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        if (threadBean == null) {
+            return -1;
+        }
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        try {
+            java.lang.management.ThreadMXBean aBean = ManagementFactory.getThreadMXBean();
+            if (aBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) aBean;
+                if (allocationBean.isThreadAllocatedMemorySupported()) {
+                    allocationBean.setThreadAllocatedMemoryEnabled(true);
+                    return allocationBean;
+                }
+            }
+        } catch (RuntimeException | LinkageError e) {
+            // Not a HotSpot JVM; allocation is reported as -1
+        }
+        return null;
+    }
+}
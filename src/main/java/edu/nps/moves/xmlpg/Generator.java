@@ -2,6 +2,7 @@ package edu.nps.moves.xmlpg;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Abstract superclass for all the concrete language generators, such as java, c++, etc.
@@ -10,10 +11,15 @@ import java.util.*;
  */
 public abstract class Generator {
 
+    /**
+     * The classes and the relationships between them
+     */
+    protected ProtocolModel model;
+
     /**
      * Contains abstract descriptions of all the classes, key = name, value = object
      */
-    protected HashMap classDescriptions;
+    protected Map classDescriptions;
 
     /**
      * Directory in which to write the class code
@@ -22,15 +28,30 @@ public abstract class Generator {
 
     protected Properties languageProperties;
 
+    /**
+     * If true, only classes that changed since the last run are regenerated. Set with -Dxmlpg.incremental=true
+     */
+    protected boolean incremental;
+
+    /**
+     * Marks a class that could not be rendered
+     */
+    private static final Map<String, String> FAILED = Collections.unmodifiableMap(new HashMap<String, String>());
+
     /**
      * Constructor
      */
-    public Generator(HashMap pClassDescriptions, Properties pLanguageProperties) {
-        classDescriptions = pClassDescriptions;
+    public Generator(ProtocolModel pModel, Properties pLanguageProperties) {
+        model = pModel;
+        classDescriptions = pModel.getClassDescriptions();
         languageProperties = pLanguageProperties;
 
+        // A generatedSourceDir language property, set when several languages are generated in one run, takes
+        // precedence over the command line
         Properties systemProperties = System.getProperties();
-        directory = systemProperties.getProperty("xmlpg.generatedSourceDir");
+        directory = languageProperties.getProperty("generatedSourceDir",
+                systemProperties.getProperty("xmlpg.generatedSourceDir", "."));
+        incremental = Boolean.parseBoolean(systemProperties.getProperty("xmlpg.incremental"));
 
         // Directory is set in the subclasses
 
@@ -43,9 +64,253 @@ public abstract class Generator {
     }
 
     /**
-     * Overridden by the subclasses to generate the code specific to that language.
+     * Overridden by the subclasses to generate the source code for one class in that language. The code is rendered in
+     * memory; the result maps the path of each file, relative to the output directory, to its contents. When more than
+     * one class renders the same path the contents are concatenated in the order of getClassesToWrite().
+     */
+    protected abstract Map<String, String> renderClass(GeneratedClass aClass) throws Exception;
+
+    /**
+     * Subclasses may add files that don't belong to any one class, such as a header shared by all classes, and set up
+     * anything needed before the classes are rendered. Called once per run, before any class is rendered.
+     */
+    protected void renderSharedFiles(Map<String, StringBuilder> files) throws Exception {
+    }
+
+    /**
+     * The classes to render, in the order their output is assembled
+     */
+    protected Collection getClassesToWrite() {
+        return classDescriptions.values();
+    }
+
+    /**
+     * Generate the source code for all the classes and write it to the directory, one class at a time.
+     */
+    public void writeClasses() {
+        this.writeClassesParallel(null);
+    }
+
+    /**
+     * Generate the source code for all the classes and write it to the directory. Each class is rendered into an
+     * in-memory buffer as a separate task on the pool, then the files are written by at most xmlpg.ioThreads threads
+     * (default 4). The files are assembled in the same order as a serial run, so the output is identical.
+     * <p>
+     *
+     * In incremental mode only the classes whose hash differs from the one in the manifest are rendered, and files
+     * whose contents have not changed are not rewritten.
+     *
+     * @param renderPool
+     *            pool to render on, or null to render and write in the calling thread
+     */
+    public void writeClassesParallel(ForkJoinPool renderPool) {
+        DirectorySink sink = new DirectorySink(new File(this.getDirectory()));
+        sink.setSkipUnchanged(incremental);
+        this.writeClasses(sink, renderPool);
+    }
+
+    /**
+     * Generate the source code for all the classes and hand the files to a sink, as above. Incremental generation needs
+     * the files from the last run, so it only applies when the sink is a directory. The sink is not closed.
+     *
+     * @param sink
+     *            where the files go
+     * @param renderPool
+     *            pool to render on, or null to render and write in the calling thread
+     */
+    public void writeClasses(OutputSink sink, ForkJoinPool renderPool) {
+        GenerationProfile.Mark generateMark = GenerationProfile.start();
+        boolean incremental = this.incremental && (sink instanceof DirectorySink);
+
+        Map<String, StringBuilder> files = new LinkedHashMap<String, StringBuilder>();
+        try {
+            this.renderSharedFiles(files);
+        } catch (Exception e) {
+            System.out.println("error creating source code " + e);
+        }
+
+        List classes = new ArrayList(this.getClassesToWrite());
+        List<Map<String, String>> rendered = new ArrayList<Map<String, String>>(
+                Collections.nCopies(classes.size(), (Map<String, String>) null));
+
+        ClassManifest manifest = null;
+        Map<String, String> hashes = new HashMap<String, String>();
+        List<Integer> toRender = new ArrayList<Integer>();
+
+        if (incremental) {
+            manifest = new ClassManifest(new File(((DirectorySink) sink).getDirectory(), getManifestFileName()));
+            String propertiesHash = ClassManifest.hashProperties(languageProperties);
+            boolean propertiesUnchanged = manifest.isUnchanged(ClassManifest.PROPERTIES_KEY, propertiesHash);
+            hashes.put(ClassManifest.PROPERTIES_KEY, propertiesHash);
+
+            for (int idx = 0; idx < classes.size(); idx++) {
+                GeneratedClass aClass = (GeneratedClass) classes.get(idx);
+                String hash = ClassManifest.hashClass(aClass, model);
+                hashes.put(aClass.getName(), hash);
+                if (!propertiesUnchanged || this.classesShareFiles() || !manifest.isUnchanged(aClass.getName(), hash)) {
+                    toRender.add(idx);
+                }
+            }
+        } else {
+            for (int idx = 0; idx < classes.size(); idx++) {
+                toRender.add(idx);
+            }
+        }
+
+        this.renderClasses(classes, toRender, rendered, renderPool);
+
+        // Assemble the files in class order. Classes that failed are left out of the manifest so they are retried.
+        for (int idx = 0; idx < rendered.size(); idx++) {
+            Map<String, String> classFiles = rendered.get(idx);
+            if (classFiles == null) {
+                continue;
+            }
+            if (classFiles == FAILED) {
+                hashes.remove(((GeneratedClass) classes.get(idx)).getName());
+                continue;
+            }
+            for (Map.Entry<String, String> aFile : classFiles.entrySet()) {
+                StringBuilder contents = files.get(aFile.getKey());
+                if (contents == null) {
+                    contents = new StringBuilder();
+                    files.put(aFile.getKey(), contents);
+                }
+                contents.append(aFile.getValue());
+            }
+        }
+
+        int ioThreads = (renderPool == null || !sink.supportsConcurrentWrites()) ? 1
+                : Integer.getInteger("xmlpg.ioThreads", 4);
+        if (ioThreads <= 1) {
+            for (Map.Entry<String, StringBuilder> aFile : files.entrySet()) {
+                this.writeFile(sink, aFile.getKey(), aFile.getValue());
+            }
+        } else {
+            ExecutorService writers = Executors.newFixedThreadPool(ioThreads);
+            for (final Map.Entry<String, StringBuilder> aFile : files.entrySet()) {
+                writers.execute(() -> this.writeFile(sink, aFile.getKey(), aFile.getValue()));
+            }
+            writers.shutdown();
+            try {
+                writers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (incremental) {
+            System.out.println("Regenerated " + toRender.size() + " of " + classes.size() + " classes");
+            try {
+                manifest.save(hashes);
+            } catch (IOException e) {
+                System.out.println("error writing manifest " + e);
+            }
+        }
+
+        if (generateMark != null) {
+            long bytes = 0;
+            for (StringBuilder contents : files.values()) {
+                bytes = bytes + contents.length();
+            }
+            GenerationProfile.end(generateMark, "generate", this.getClass().getSimpleName(), this.getDirectory(),
+                    bytes);
+        }
+    }
+
+    /**
+     * Renders the classes at the given positions into the matching slots of rendered
      */
-    public abstract void writeClasses();
+    private void renderClasses(List classes, List<Integer> positions, List<Map<String, String>> rendered,
+            ForkJoinPool renderPool) {
+        if (renderPool == null) {
+            for (int idx : positions) {
+                rendered.set(idx, this.renderClassQuietly((GeneratedClass) classes.get(idx)));
+            }
+            return;
+        }
+
+        List<ForkJoinTask<Map<String, String>>> tasks = new ArrayList<ForkJoinTask<Map<String, String>>>();
+        for (int idx : positions) {
+            final GeneratedClass aClass = (GeneratedClass) classes.get(idx);
+            tasks.add(renderPool.submit(() -> this.renderClassQuietly(aClass)));
+        }
+        for (int idx = 0; idx < tasks.size(); idx++) {
+            rendered.set(positions.get(idx), tasks.get(idx).join());
+        }
+    }
+
+    /**
+     * True if the classes write into a file shared between them, such as the single python source file. Such files can
+     * only be assembled from all the classes, so in incremental mode every class is still rendered, and only the
+     * writing of unchanged files is skipped.
+     */
+    protected boolean classesShareFiles() {
+        return false;
+    }
+
+    /**
+     * Renders one class, reporting rather than propagating any problem so the other classes are still written.
+     */
+    private Map<String, String> renderClassQuietly(GeneratedClass aClass) {
+        GenerationProfile.Mark classMark = GenerationProfile.startClass(this.getClass().getSimpleName(),
+                aClass.getName());
+        Map<String, String> classFiles;
+        try {
+            classFiles = this.renderClass(aClass);
+        } catch (Exception e) {
+            System.out.println("error creating source code " + e);
+            classFiles = FAILED;
+        }
+
+        if (classMark != null) {
+            long bytes = 0;
+            for (String contents : classFiles.values()) {
+                bytes = bytes + contents.length();
+            }
+            GenerationProfile.endClass(classMark, bytes);
+        }
+        return classFiles;
+    }
+
+    /**
+     * Name of the manifest file kept in the output directory in incremental mode. Each generator has its own, so
+     * languages that share an output directory don't interfere.
+     */
+    protected String getManifestFileName() {
+        return "xmlpg-" + this.getClass().getSimpleName() + ".manifest";
+    }
+
+    /**
+     * Hands one file to the sink, reporting rather than propagating any problem so the other files are still written.
+     */
+    private void writeFile(OutputSink sink, String relativePath, CharSequence contents) {
+        GenerationProfile.Mark writeMark = GenerationProfile.start();
+        try {
+            sink.write(relativePath, contents);
+        } catch (Exception e) {
+            System.out.println("error creating source code " + e);
+        }
+        GenerationProfile.end(writeMark, "write", this.getClass().getSimpleName(), relativePath, contents.length());
+    }
+
+    /**
+     * Incremental generation: regenerate only the classes that changed since the last run
+     *
+     * @return true if incremental generation is on
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Incremental generation: regenerate only the classes that changed since the last run
+     *
+     * @param incremental
+     *            true to turn incremental generation on
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
 
     /**
      * Create the directory in which to put the generated source code files
@@ -76,6 +341,82 @@ public abstract class Generator {
         this.directory = directory;
     }
 
+    /**
+     * A setting that can be given as a language property in the XML file or, taking precedence, as -Dxmlpg.name on the
+     * command line. The value used is written back to the language properties, so the properties hash of an incremental
+     * run covers options given on the command line; options must be read before the classes are rendered.
+     */
+    protected String getOption(String name, String defaultValue) {
+        String value = System.getProperty("xmlpg." + name);
+        if (value == null) {
+            value = languageProperties.getProperty(name, defaultValue);
+        }
+        if (value != null) {
+            languageProperties.setProperty(name, value);
+        }
+        return value;
+    }
+
+    /**
+     * An optional feature, off unless the option is set to true
+     */
+    protected boolean isOptionEnabled(String name) {
+        return Boolean.parseBoolean(this.getOption(name, "false"));
+    }
+
+    /**
+     * Index of the byte to shift in next when a factory reads a header field one byte at a time, most significant
+     * first; idx is the loop counter
+     */
+    protected String byteIndex(ClassAttribute anAttribute) {
+        if (!this.isLittleEndian()) {
+            return "idx";
+        }
+        return (ProtocolLayout.getPrimitiveSize(anAttribute.getType()) - 1) + " - idx";
+    }
+
+    /**
+     * True if the generated code should use little endian byte order, set with the byteOrder option (big or little).
+     * The default is big endian, network order.
+     */
+    protected boolean isLittleEndian() {
+        String byteOrder = this.getOption("byteOrder", "big");
+        if (byteOrder.equalsIgnoreCase("little")) {
+            return true;
+        }
+        if (!byteOrder.equalsIgnoreCase("big")) {
+            System.out.println("Unknown byteOrder " + byteOrder + ", using big endian");
+        }
+        return false;
+    }
+
+    /**
+     * The table a message factory is generated from, if generateFactory is set. The factory is named by factoryName
+     * (default PduFactory) and dispatches on the factoryTypeField attribute (default pduType), skipping unknown
+     * messages using factoryLengthField (default length).
+     *
+     * @return the table, or null if no factory is wanted or the schema doesn't allow one
+     */
+    protected DispatchTable getDispatchTable() {
+        if (!this.isOptionEnabled("generateFactory")) {
+            return null;
+        }
+        DispatchTable table = new DispatchTable(model, this.getOption("factoryTypeField", "pduType"),
+                this.getOption("factoryLengthField", "length"));
+        if (!table.isUsable()) {
+            System.out.println("Not generating a factory: " + table.getProblem());
+            return null;
+        }
+        return table;
+    }
+
+    /**
+     * Name of the generated message factory
+     */
+    protected String getFactoryName() {
+        return this.getOption("factoryName", "PduFactory");
+    }
+
     /**
      * returns a string with the first letter capitalized.
      */
@@ -96,6 +437,25 @@ public abstract class Generator {
         return new String(stb);
     }
 
+    /**
+     * returns a field name in the style of a constant: entityID becomes ENTITY_ID.
+     */
+    public static String constantName(String aString) {
+        StringBuilder sb = new StringBuilder();
+        for (int idx = 0; idx < aString.length(); idx++) {
+            char aChar = aString.charAt(idx);
+            if (idx > 0 && Character.isUpperCase(aChar)) {
+                boolean afterUpper = Character.isUpperCase(aString.charAt(idx - 1));
+                boolean beforeLower = idx + 1 < aString.length() && Character.isLowerCase(aString.charAt(idx + 1));
+                if (!afterUpper || beforeLower) {
+                    sb.append('_');
+                }
+            }
+            sb.append(Character.toUpperCase(aChar));
+        }
+        return sb.toString();
+    }
+
     /**
      * This is ugly and brute force, but I don't see an easier way to do it. Given a mask (like 0xf0) we want to know
      * how many bits to shift an integer when masking in a new value.
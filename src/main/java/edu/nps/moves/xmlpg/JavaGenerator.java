@@ -52,8 +52,61 @@ public class JavaGenerator extends Generator {
      */
     Properties javaProperties;
 
-    public JavaGenerator(HashMap pClassDescriptions, Properties pJavaProperties) {
-        super(pClassDescriptions, pJavaProperties);
+    /**
+     * If true, a zero-copy XxxView class is generated alongside each class. Set with the generateViews java property or
+     * -Dxmlpg.generateViews=true
+     */
+    boolean generateViews = false;
+
+    /**
+     * If true, unmarshal reuses the objects already in variable length lists instead of allocating new ones, so a
+     * reused instance can be unmarshalled again and again without garbage. Set with the reuseOnUnmarshal java property
+     * or -Dxmlpg.reuseOnUnmarshal=true
+     */
+    boolean reuseOnUnmarshal = false;
+
+    /**
+     * If true, each class gets a pool of free instances, EntityStatePdu.pool().acquire() and release(). Set with the
+     * generatePools java property or -Dxmlpg.generatePools=true; poolLocalCapacity and poolSharedCapacity bound the
+     * number of free objects kept per thread and in the overflow shared by all threads.
+     */
+    boolean generatePools = false;
+
+    /**
+     * If true, fixed lists of bytes marked couldBeString get a getXxxText() CharSequence that reads the bytes in place
+     * and a getXxxString() that returns the same String for the same bytes from a bounded cache, sized by the
+     * stringCacheSize property. Set with the generateStrings java property or -Dxmlpg.generateStrings=true
+     */
+    boolean generateStrings = false;
+
+    /**
+     * If true, unmarshal(ByteBuffer) only notes where fixed size class references and lists of fixed size classes are,
+     * and decodes each of them the first time its getter is called. Set with the lazyUnmarshal java property or
+     * -Dxmlpg.lazyUnmarshal=true
+     */
+    boolean lazyUnmarshal = false;
+
+    /**
+     * If true, each class has diff(), which returns a bit mask of the fields that differ from another instance, and
+     * marshalDelta() and applyDelta(), which send only those fields. Set with the generateDeltas java property or
+     * -Dxmlpg.generateDeltas=true
+     */
+    boolean generateDeltas = false;
+
+    /**
+     * The factory's dispatch table, which also gives the length of a marshalled message, or null if there is no
+     * factory. Built in the constructor, before classes are rendered on other threads.
+     */
+    private DispatchTable dispatchTable;
+
+    /**
+     * True for byteOrder little: the stream methods move each field through a small buffer set to little endian, and
+     * the buffers the generated code allocates or maps are set to little endian
+     */
+    boolean littleEndian = false;
+
+    public JavaGenerator(ProtocolModel pModel, Properties pJavaProperties) {
+        super(pModel, pJavaProperties);
 
         try {
             Properties systemProperties = System.getProperties();
@@ -81,6 +134,25 @@ public class JavaGenerator extends Generator {
                 pJavaProperties.setProperty("package", clPackage);
             }
 
+            this.generateViews = this.isOptionEnabled("generateViews");
+
+            this.reuseOnUnmarshal = this.isOptionEnabled("reuseOnUnmarshal");
+
+            this.generatePools = this.isOptionEnabled("generatePools");
+
+            this.generateStrings = this.isOptionEnabled("generateStrings");
+
+            this.lazyUnmarshal = this.isOptionEnabled("lazyUnmarshal");
+
+            this.generateDeltas = this.isOptionEnabled("generateDeltas");
+
+            if (!this.getProjections().isEmpty() && !this.generateViews) {
+                System.out.println("Generating views, which the projections read the fields through");
+                this.generateViews = true;
+            }
+            this.littleEndian = this.isLittleEndian();
+            this.dispatchTable = this.getDispatchTable();
+
             System.out.println("Source code directory set to " + getDirectory());
             if (pJavaProperties.getProperty("useHibernate").equalsIgnoreCase("false")) {
                 this.useHibernateAnnotations = false;
@@ -95,8 +167,7 @@ public class JavaGenerator extends Generator {
             }
         } catch (Exception e) {
             System.out.println("Required property not set. Modify the XML file to include the missing property");
-            System.out.println(e);
-            System.exit(-1);
+            throw new IllegalArgumentException("Required java property useHibernate or useJaxb not set", e);
         }
 
         // Set up a mapping between the strings used in the XML file and the strings used
@@ -163,49 +234,756 @@ public class JavaGenerator extends Generator {
     }
 
     /**
-     * Generate the classes and write them to a directory
+     * Generate the source code for one class
      */
     @Override
-    public void writeClasses() {
-        this.createDirectory();
-
-        Iterator it = classDescriptions.values().iterator();
-
-        while (it.hasNext()) {
-            try {
-                GeneratedClass aClass = (GeneratedClass) it.next();
-                String name = aClass.getName();
-
-                // Create package structure, if any
-                String pack = languageProperties.getProperty("package");
-                String fullPath;
-
-                // If we have a package specified, replace the dots in the package name (edu.nps.moves.dis)
-                // with slashes (edu/nps/moves/dis and create that directory
-                if (pack != null) {
-                    pack = pack.replace(".", "/");
-                    fullPath = getDirectory() + "/" + pack + "/" + name + ".java";
-                    // System.out.println("full path is " + fullPath);
-                } else {
-                    fullPath = getDirectory() + "/" + name + ".java";
-                }
-                // System.out.println("Creating Java source code file for " + fullPath);
+    protected Map<String, String> renderClass(GeneratedClass aClass) {
+        String name = aClass.getName();
+
+        // Create package structure, if any
+        String pack = languageProperties.getProperty("package");
+        String path;
+
+        // If we have a package specified, replace the dots in the package name (edu.nps.moves.dis)
+        // with slashes (edu/nps/moves/dis and create that directory
+        if (pack != null) {
+            pack = pack.replace(".", "/") + "/";
+        } else {
+            pack = "";
+        }
+        path = pack + name + ".java";
+
+        // print the source code of the class to a buffer
+        StringWriter sw = new StringWriter();
+        this.writeClass(new PrintWriter(sw), aClass);
+
+        Map<String, String> files = new LinkedHashMap<String, String>();
+        files.put(path, sw.toString());
+
+        if (generateViews) {
+            StringWriter view = new StringWriter();
+            this.writeViewClass(new PrintWriter(view), aClass);
+            files.put(pack + name + "View.java", view.toString());
+            GenerationProfile.section("writeViewClass");
+        }
+        return files;
+    }
+
+    /**
+     * The base class of the generated pools and the message factory are shared by all the classes
+     */
+    @Override
+    protected void renderSharedFiles(Map<String, StringBuilder> files) {
+        String pack = languageProperties.getProperty("package");
+        pack = (pack == null) ? "" : pack.replace(".", "/") + "/";
+
+        if (generatePools) {
+            StringWriter pool = new StringWriter();
+            this.writeObjectPoolClass(new PrintWriter(pool));
+            files.put(pack + "ObjectPool.java", new StringBuilder(pool.toString()));
+        }
+
+        if (this.usesMarshalledBytes()) {
+            StringWriter bytes = new StringWriter();
+            this.writeMarshalledBytesClass(new PrintWriter(bytes));
+            files.put(pack + "MarshalledBytes.java", new StringBuilder(bytes.toString()));
+        }
 
-                // Create the new, empty file, and create printwriter object for output to it
-                File outputFile = new File(fullPath);
-                outputFile.getParentFile().mkdirs();
-                outputFile.createNewFile();
-                PrintWriter pw = new PrintWriter(outputFile);
+        if (generateStrings) {
+            StringWriter text = new StringWriter();
+            this.writeByteTextClass(new PrintWriter(text));
+            files.put(pack + "ByteText.java", new StringBuilder(text.toString()));
+        }
 
-                // print the source code of the class to the file
-                this.writeClass(pw, aClass);
-            } catch (Exception e) {
-                System.out.println("error creating source code " + e);
+        for (Map.Entry<String, String> aProjection : this.getProjections().entrySet()) {
+            StringWriter projection = new StringWriter();
+            if (this.writeProjectionClass(new PrintWriter(projection), aProjection.getKey(), aProjection.getValue())) {
+                files.put(pack + aProjection.getKey() + ".java", new StringBuilder(projection.toString()));
             }
+        }
+
+        DispatchTable table = dispatchTable;
+        if (table != null) {
+            StringWriter factory = new StringWriter();
+            this.writeFactoryClass(new PrintWriter(factory), table);
+            files.put(pack + this.getFactoryName() + ".java", new StringBuilder(factory.toString()));
+
+            StringWriter sink = new StringWriter();
+            this.writeFactorySinkInterface(new PrintWriter(sink), table);
+            files.put(pack + this.getFactorySinkName() + ".java", new StringBuilder(sink.toString()));
+
+            StringWriter reader = new StringWriter();
+            this.writeCaptureReaderClass(new PrintWriter(reader), table);
+            files.put(pack + this.getFactoryPrefix() + "CaptureReader.java", new StringBuilder(reader.toString()));
+
+            StringWriter writer = new StringWriter();
+            this.writeChannelWriterClass(new PrintWriter(writer), table);
+            files.put(pack + this.getFactoryPrefix() + "ChannelWriter.java", new StringBuilder(writer.toString()));
+        }
+    }
+
+    /**
+     * Writes a factory that creates a message from its type with a switch, which the JIT compiles into a jump table
+     * when the types are dense, and decodes one message or a whole buffer of them from a ByteBuffer
+     */
+    private void writeFactoryClass(PrintWriter pw, DispatchTable table) {
+        String packageName = languageProperties.getProperty("package");
+        String factoryName = this.getFactoryName();
+        String header = table.getHeaderClass().getName();
+        String typeField = table.getTypeAttribute().getName();
+        String lengthField = table.getLengthAttribute().getName();
+        String sinkName = this.getFactorySinkName();
+
+        if (packageName != null) {
+            pw.println("package " + packageName + ";");
+        }
+        pw.println();
+        pw.println("import java.nio.ByteBuffer;");
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Creates and decodes messages by their " + typeField + ", generated from the initial values of "
+                + typeField + " in the XML file.");
+        pw.println(" */");
+        pw.println("public class " + factoryName);
+        pw.println("{");
+        pw.println("   /** Position of " + typeField + " in a marshalled " + header + " */");
+        pw.println("   public static final int TYPE_OFFSET = " + table.getTypeOffset() + ";");
+        pw.println();
+        pw.println("   /** Position of " + lengthField + " in a marshalled " + header + " */");
+        pw.println("   public static final int LENGTH_OFFSET = " + table.getLengthOffset() + ";");
+        pw.println();
+        pw.println("   /** No message is shorter than this */");
+        pw.println("   public static final int MINIMUM_LENGTH = " + table.getMinimumLength() + ";");
+        pw.println();
+        pw.println(
+                "   /** Makes a new, empty message of the given type, or returns null if there is no class for it */");
+        pw.println("   public static " + header + " create(int " + typeField + ")");
+        pw.println("   {");
+        pw.println("      switch(" + typeField + ")");
+        pw.println("      {");
+        for (Map.Entry<Integer, GeneratedClass> anEntry : table.getClassesByType().entrySet()) {
+            pw.println("         case " + anEntry.getKey() + ": return new " + anEntry.getValue().getName() + "();");
+        }
+        pw.println("         default: return null;");
+        pw.println("      }");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** The class of the given type, or null if there is none */");
+        pw.println("   public static Class<? extends " + header + "> messageClass(int " + typeField + ")");
+        pw.println("   {");
+        pw.println("      switch(" + typeField + ")");
+        pw.println("      {");
+        for (Map.Entry<Integer, GeneratedClass> anEntry : table.getClassesByType().entrySet()) {
+            pw.println("         case " + anEntry.getKey() + ": return " + anEntry.getValue().getName() + ".class;");
+        }
+        pw.println("         default: return null;");
+        pw.println("      }");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** The " + typeField + " of the message at the position of the buffer */");
+        pw.println("   public static int messageType(ByteBuffer buff)");
+        pw.println("   {");
+        pw.println("      return (int) ("
+                + this.viewRead(table.getTypeAttribute().getType(), "buff.position() + TYPE_OFFSET") + ");");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /**");
+        pw.println(
+                "    * The " + lengthField + " of the message at the position of the buffer, or -1 if it is too short"
+                        + " or runs past the limit");
+        pw.println("    */");
+        pw.println("   public static int messageLength(ByteBuffer buff)");
+        pw.println("   {");
+        pw.println("      if(buff.remaining() < MINIMUM_LENGTH)");
+        pw.println("      {");
+        pw.println("         return -1;");
+        pw.println("      }");
+        pw.println("      long length = "
+                + this.viewRead(table.getLengthAttribute().getType(), "buff.position() + LENGTH_OFFSET") + ";");
+        pw.println("      return (length < MINIMUM_LENGTH || length > buff.remaining()) ? -1 : (int) length;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /**");
+        pw.println("    * Decodes the message at the position of the buffer and moves the position past it, as given by"
+                + " its");
+        pw.println("    * " + lengthField + ". A message of an unknown type is skipped and null returned. If the "
+                + lengthField + " is too short or");
+        pw.println("    * runs past the limit, the rest of the buffer is skipped and null returned. A message shorter"
+                + " than its fields");
+        pw.println("    * throws a BufferUnderflowException rather than reading into the next one.");
+        pw.println("    */");
+        pw.println("   public static " + header + " decode(ByteBuffer buff)");
+        pw.println("   {");
+        pw.println("      int length = messageLength(buff);");
+        pw.println("      if(length < 0)");
+        pw.println("      {");
+        pw.println("         buff.position(buff.limit());");
+        pw.println("         return null;");
+        pw.println("      }");
+        pw.println();
+        pw.println("      int end = buff.position() + length;");
+        pw.println("      " + header + " aMessage = create(messageType(buff));");
+        pw.println("      if(aMessage != null)");
+        pw.println("      {");
+        pw.println("         int limit = buff.limit();");
+        pw.println("         buff.limit(end);");
+        pw.println("         try");
+        pw.println("         {");
+        pw.println("            aMessage.unmarshal(buff);");
+        pw.println("         }");
+        pw.println("         finally");
+        pw.println("         {");
+        pw.println("            buff.limit(limit);");
+        pw.println("         }");
+        pw.println("      }");
+        pw.println("      buff.position(end);");
+        pw.println("      return aMessage;");
+        pw.println("   }");
+        pw.println();
+
+        // The batch decoders frame each message by setting the limit to its end, so a message shorter than its
+        // fields can't read into the next one, and put the limit back once for the whole batch
+        pw.println("   /**");
+        pw.println(
+                "    * Decodes the messages one after another from the position of the buffer to its limit, hands each"
+                        + " to the sink,");
+        pw.println("    * and returns how many there were. Messages are framed by their " + lengthField
+                + "; those of unknown types are skipped,");
+        pw.println("    * and if a " + lengthField + " is too short or runs past the limit the rest of the buffer is"
+                + " skipped. A message shorter");
+        pw.println("    * than its fields throws a BufferUnderflowException rather than reading into the next one.");
+        pw.println("    */");
+        pw.println("   public static int decodeAll(ByteBuffer buff, " + sinkName + " sink)");
+        pw.println("   {");
+        pw.println("      int count = 0;");
+        pw.println("      int limit = buff.limit();");
+        pw.println("      try");
+        pw.println("      {");
+        pw.println("         while(buff.hasRemaining())");
+        pw.println("         {");
+        pw.println("            int length = messageLength(buff);");
+        pw.println("            if(length < 0)");
+        pw.println("            {");
+        pw.println("               buff.position(limit);");
+        pw.println("               break;");
+        pw.println("            }");
+        pw.println("            int end = buff.position() + length;");
+        pw.println("            " + header + " aMessage = create(messageType(buff));");
+        pw.println("            if(aMessage != null)");
+        pw.println("            {");
+        pw.println("               buff.limit(end);");
+        pw.println("               aMessage.unmarshal(buff);");
+        pw.println("               buff.limit(limit);");
+        pw.println("               sink.decoded(aMessage);");
+        pw.println("               count++;");
+        pw.println("            }");
+        pw.println("            buff.position(end);");
+        pw.println("         }");
+        pw.println("      }");
+        pw.println("      finally");
+        pw.println("      {");
+        pw.println("         buff.limit(limit);");
+        pw.println("      }");
+        pw.println("      return count;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /**");
+        pw.println("    * Decodes messages as above into the array, until the buffer or the array runs out, and returns"
+                + " how many were");
+        pw.println("    * decoded. The object already at an index is unmarshalled into again if it is of the right"
+                + " class, so decoding");
+        pw.println("    * the same kinds of message over and over only allocates the first time. The buffer is left at"
+                + " the first message");
+        pw.println("    * not decoded.");
+        if (!reuseOnUnmarshal) {
+            pw.println("    * <p>");
+            pw.println("    * Unmarshalling adds to the variable length lists of an object, so for messages that have"
+                    + " them, generate");
+            pw.println("    * with reuseOnUnmarshal=true before reusing objects.");
+        }
+        pw.println("    */");
+        pw.println("   public static int decodeAll(ByteBuffer buff, " + header + "[] reuse)");
+        pw.println("   {");
+        pw.println("      int count = 0;");
+        pw.println("      int limit = buff.limit();");
+        pw.println("      try");
+        pw.println("      {");
+        pw.println("         while(buff.hasRemaining() && count < reuse.length)");
+        pw.println("         {");
+        pw.println("            int length = messageLength(buff);");
+        pw.println("            if(length < 0)");
+        pw.println("            {");
+        pw.println("               buff.position(limit);");
+        pw.println("               break;");
+        pw.println("            }");
+        pw.println("            int end = buff.position() + length;");
+        pw.println("            int " + typeField + " = messageType(buff);");
+        pw.println("            Class<? extends " + header + "> messageClass = messageClass(" + typeField + ");");
+        pw.println("            if(messageClass != null)");
+        pw.println("            {");
+        pw.println("               " + header + " aMessage = reuse[count];");
+        pw.println("               if(aMessage == null || aMessage.getClass() != messageClass)");
+        pw.println("               {");
+        pw.println("                  aMessage = create(" + typeField + ");");
+        pw.println("                  reuse[count] = aMessage;");
+        pw.println("               }");
+        pw.println("               buff.limit(end);");
+        pw.println("               aMessage.unmarshal(buff);");
+        pw.println("               buff.limit(limit);");
+        pw.println("               count++;");
+        pw.println("            }");
+        pw.println("            buff.position(end);");
+        pw.println("         }");
+        pw.println("      }");
+        pw.println("      finally");
+        pw.println("      {");
+        pw.println("         buff.limit(limit);");
+        pw.println("      }");
+        pw.println("      return count;");
+        pw.println("   }");
+        pw.println("}");
+        pw.flush();
+    }
+
+    /**
+     * Writes the interface that receives the messages from the factory's decodeAll()
+     */
+    private void writeFactorySinkInterface(PrintWriter pw, DispatchTable table) {
+        String packageName = languageProperties.getProperty("package");
+        String header = table.getHeaderClass().getName();
+
+        if (packageName != null) {
+            pw.println("package " + packageName + ";");
+        }
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Receives the messages decoded by " + this.getFactoryName() + ".decodeAll()");
+        pw.println(" */");
+        pw.println("public interface " + this.getFactorySinkName());
+        pw.println("{");
+        pw.println("   /** Called with each message, in the order they are in the buffer */");
+        pw.println("   void decoded(" + header + " aMessage);");
+        pw.println("}");
+        pw.flush();
+    }
+
+    /**
+     * Writes a reader that memory maps a file of messages recorded back to back. Files larger than a mapping can be are
+     * mapped a segment at a time; a new segment starts at the current message whenever the longest possible message
+     * might not fit in what is left of the old one, so a message never straddles two mappings.
+     */
+    private void writeCaptureReaderClass(PrintWriter pw, DispatchTable table) {
+        String packageName = languageProperties.getProperty("package");
+        String header = table.getHeaderClass().getName();
+        String factoryName = this.getFactoryName();
+        String readerName = this.getFactoryPrefix() + "CaptureReader";
+        String lengthField = table.getLengthAttribute().getName();
+        String typeField = table.getTypeAttribute().getName();
+        int lengthSize = ProtocolLayout.getPrimitiveSize(table.getLengthAttribute().getType());
+        long maxLength = (lengthSize >= 4) ? Integer.MAX_VALUE : (1L << (8 * lengthSize)) - 1;
+
+        if (packageName != null) {
+            pw.println("package " + packageName + ";");
+        }
+        pw.println();
+        pw.println("import java.io.*;");
+        pw.println("import java.nio.*;");
+        pw.println("import java.nio.channels.FileChannel;");
+        pw.println("import java.util.*;");
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Reads a file of messages recorded back to back, framed by their " + lengthField
+                + ", by memory mapping it.");
+        pw.println(" * next() moves to each message in turn; the message can then be read in place from getBuffer() at"
+                + " getPosition(),");
+        pw.println(" * for instance with a view, or decoded with decode(). Files of any size are read a segment at a"
+                + " time. Reading");
+        pw.println(" * stops at the first " + lengthField + " that is too short or runs past the end of the file.");
+        pw.println(" */");
+        pw.println("public class " + readerName + " implements Closeable, Iterable<" + header + ">");
+        pw.println("{");
+        pw.println("   /** Largest part of the file mapped at once, unless another size is given */");
+        pw.println("   public static final int SEGMENT_SIZE = 1 << 30;");
+        pw.println();
+        pw.println("   /** Longest message the " + lengthField + " can describe */");
+        pw.println("   public static final int MAX_LENGTH = " + maxLength + ";");
+        pw.println();
+        pw.println("   private final FileChannel channel;");
+        pw.println();
+        pw.println("   private final long size;");
+        pw.println();
+        pw.println("   private final int segmentSize;");
+        pw.println();
+        pw.println("   /** The part of the file that holds the current message */");
+        pw.println("   private MappedByteBuffer segment;");
+        pw.println();
+        pw.println("   /** Where the segment starts in the file */");
+        pw.println("   private long segmentStart;");
+        pw.println();
+        pw.println("   /** Where the next message starts in the file */");
+        pw.println("   private long nextOffset;");
+        pw.println();
+        pw.println("   /** Where the current message starts in the segment, or -1 if there is none */");
+        pw.println("   private int position = -1;");
+        pw.println();
+        pw.println("   private int length;");
+        pw.println();
+        pw.println("   public " + readerName + "(File file) throws IOException");
+        pw.println("   {");
+        pw.println("      this(file, SEGMENT_SIZE);");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** @param segmentSize largest part of the file to map at once; at least MAX_LENGTH */");
+        pw.println("   public " + readerName + "(File file, int segmentSize) throws IOException");
+        pw.println("   {");
+        pw.println("      if(segmentSize < MAX_LENGTH)");
+        pw.println("      {");
+        pw.println("         throw new IllegalArgumentException(\"segmentSize must be at least \" + MAX_LENGTH);");
+        pw.println("      }");
+        pw.println("      this.channel = new RandomAccessFile(file, \"r\").getChannel();");
+        pw.println("      this.size = channel.size();");
+        pw.println("      this.segmentSize = segmentSize;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Moves to the next message, returning false at the end of the file */");
+        pw.println("   public boolean next() throws IOException");
+        pw.println("   {");
+        pw.println("      position = -1;");
+        pw.println("      if(size - nextOffset < " + factoryName + ".MINIMUM_LENGTH)");
+        pw.println("      {");
+        pw.println("         return false;");
+        pw.println("      }");
+        pw.println();
+        pw.println("      long segmentEnd = (segment == null) ? 0 : segmentStart + segment.capacity();");
+        pw.println(
+                "      if(segment == null || nextOffset >= segmentEnd || (segmentEnd < size && nextOffset + MAX_LENGTH"
+                        + " > segmentEnd))");
+        pw.println("      {");
+        pw.println("         segmentStart = nextOffset;");
+        pw.println("         segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(segmentSize,"
+                + " size - segmentStart));");
+        if (littleEndian) {
+            pw.println("         segment.order(ByteOrder.LITTLE_ENDIAN);");
+        }
+        pw.println("      }");
+        pw.println();
+        pw.println("      segment.limit(segment.capacity());");
+        pw.println("      segment.position((int) (nextOffset - segmentStart));");
+        pw.println("      length = " + factoryName + ".messageLength(segment);");
+        pw.println("      if(length < 0)");
+        pw.println("      {");
+        pw.println("         nextOffset = size;");
+        pw.println("         return false;");
+        pw.println("      }");
+        pw.println("      position = segment.position();");
+        pw.println("      nextOffset = nextOffset + length;");
+        pw.println("      return true;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** The mapped part of the file that holds the current message */");
+        pw.println("   public ByteBuffer getBuffer()");
+        pw.println("   {");
+        pw.println("      return segment;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Where the current message starts in getBuffer() */");
+        pw.println("   public int getPosition()");
+        pw.println("   {");
+        pw.println("      return position;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Length of the current message in bytes */");
+        pw.println("   public int getLength()");
+        pw.println("   {");
+        pw.println("      return length;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Where the current message starts in the file */");
+        pw.println("   public long getFileOffset()");
+        pw.println("   {");
+        pw.println("      return segmentStart + position;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** The " + typeField + " of the current message */");
+        pw.println("   public int get" + this.initialCap(typeField) + "()");
+        pw.println("   {");
+        pw.println("      this.checkCurrent();");
+        pw.println("      segment.position(position);");
+        pw.println("      return " + factoryName + ".messageType(segment);");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Decodes the current message, or returns null if its type has no class */");
+        pw.println("   public " + header + " decode()");
+        pw.println("   {");
+        pw.println("      this.checkCurrent();");
+        pw.println("      segment.limit(position + length);");
+        pw.println("      segment.position(position);");
+        pw.println("      try");
+        pw.println("      {");
+        pw.println("         return " + factoryName + ".decode(segment);");
+        pw.println("      }");
+        pw.println("      finally");
+        pw.println("      {");
+        pw.println("         segment.limit(segment.capacity());");
+        pw.println("      }");
+        pw.println("   }");
+        pw.println();
+        pw.println("   private void checkCurrent()");
+        pw.println("   {");
+        pw.println("      if(position < 0)");
+        pw.println("      {");
+        pw.println("         throw new IllegalStateException(\"No current message\");");
+        pw.println("      }");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /**");
+        pw.println("    * Decodes the messages from the current one on, skipping those whose type has no class. The"
+                + " iterator moves");
+        pw.println("    * this reader along, so only one can be used at a time.");
+        pw.println("    */");
+        pw.println("   @Override");
+        pw.println("   public Iterator<" + header + "> iterator()");
+        pw.println("   {");
+        pw.println("      return new Iterator<" + header + ">()");
+        pw.println("      {");
+        pw.println("         private " + header + " nextMessage;");
+        pw.println();
+        pw.println("         @Override");
+        pw.println("         public boolean hasNext()");
+        pw.println("         {");
+        pw.println("            try");
+        pw.println("            {");
+        pw.println("               while(nextMessage == null && " + readerName + ".this.next())");
+        pw.println("               {");
+        pw.println("                  nextMessage = decode();");
+        pw.println("               }");
+        pw.println("            }");
+        pw.println("            catch(IOException e)");
+        pw.println("            {");
+        pw.println("               throw new UncheckedIOException(e);");
+        pw.println("            }");
+        pw.println("            return nextMessage != null;");
+        pw.println("         }");
+        pw.println();
+        pw.println("         @Override");
+        pw.println("         public " + header + " next()");
+        pw.println("         {");
+        pw.println("            if(!hasNext())");
+        pw.println("            {");
+        pw.println("               throw new NoSuchElementException();");
+        pw.println("            }");
+        pw.println("            " + header + " aMessage = nextMessage;");
+        pw.println("            nextMessage = null;");
+        pw.println("            return aMessage;");
+        pw.println("         }");
+        pw.println("      };");
+        pw.println("   }");
+        pw.println();
+        pw.println("   @Override");
+        pw.println("   public void close() throws IOException");
+        pw.println("   {");
+        pw.println("      segment = null;");
+        pw.println("      position = -1;");
+        pw.println("      channel.close();");
+        pw.println("   }");
+        pw.println("}");
+        pw.flush();
+    }
+
+    /**
+     * Writes a class that marshals messages straight into direct buffers it allocates once, and writes a batch of them
+     * to a channel with one gathering write. The length field of each message is set from the bytes marshalled, so
+     * getMarshalledSize() is never needed.
+     */
+    private void writeChannelWriterClass(PrintWriter pw, DispatchTable table) {
+        String packageName = languageProperties.getProperty("package");
+        String header = table.getHeaderClass().getName();
+        String factoryName = this.getFactoryName();
+        String writerName = this.getFactoryPrefix() + "ChannelWriter";
+        String lengthField = table.getLengthAttribute().getName();
+
+        String putLength;
+        switch (ProtocolLayout.getPrimitiveSize(table.getLengthAttribute().getType())) {
+        case 1:
+            putLength = "buff.put(" + factoryName + ".LENGTH_OFFSET, (byte) buff.limit())";
+            break;
+        case 2:
+            putLength = "buff.putShort(" + factoryName + ".LENGTH_OFFSET, (short) buff.limit())";
+            break;
+        case 4:
+            putLength = "buff.putInt(" + factoryName + ".LENGTH_OFFSET, buff.limit())";
+            break;
+        default:
+            putLength = "buff.putLong(" + factoryName + ".LENGTH_OFFSET, buff.limit())";
+            break;
+        }
+
+        if (packageName != null) {
+            pw.println("package " + packageName + ";");
+        }
+        pw.println();
+        pw.println("import java.io.*;");
+        pw.println("import java.nio.ByteBuffer;");
+        pw.println("import java.nio.channels.*;");
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Writes messages to a channel without allocating. Each message is marshalled into one of a fixed"
+                + " set of direct");
+        pw.println(" * buffers and its " + lengthField + " set from the bytes marshalled; add() collects messages and"
+                + " flush() writes them with");
+        pw.println(" * a single gathering write. On a connected DatagramChannel a batch goes out as one datagram"
+                + " holding the messages");
+        pw.println(" * back to back, which " + factoryName + ".decodeAll() takes apart again; maxBatchBytes keeps the"
+                + " datagram under the MTU.");
+        pw.println(" * The channel should be in blocking mode.");
+        pw.println(" */");
+        pw.println("public class " + writerName + " implements Flushable, Closeable");
+        pw.println("{");
+        pw.println("   private final WritableByteChannel channel;");
+        pw.println();
+        pw.println("   private final ByteBuffer[] buffers;");
+        pw.println();
+        pw.println("   private final int maxBatchBytes;");
+        pw.println();
+        pw.println("   /** Messages waiting to be written, in buffers[0] to buffers[count - 1] */");
+        pw.println("   private int count;");
+        pw.println();
+        pw.println("   private long batchBytes;");
+        pw.println();
+        pw.println("   /** Batches of up to 64 messages of up to 8192 bytes, with no limit on the size of a batch */");
+        pw.println("   public " + writerName + "(WritableByteChannel channel)");
+        pw.println("   {");
+        pw.println("      this(channel, 64, 8192, Integer.MAX_VALUE);");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /**");
+        pw.println("    * @param batchSize most messages written at once");
+        pw.println("    * @param bufferSize longest message that can be written");
+        pw.println(
+                "    * @param maxBatchBytes most bytes written at once, such as 1400 to keep a datagram under the MTU");
+        pw.println("    */");
+        pw.println("   public " + writerName
+                + "(WritableByteChannel channel, int batchSize, int bufferSize, int maxBatchBytes)");
+        pw.println("   {");
+        pw.println("      this.channel = channel;");
+        pw.println("      this.maxBatchBytes = maxBatchBytes;");
+        pw.println("      this.buffers = new ByteBuffer[batchSize];");
+        pw.println("      for(int idx = 0; idx < batchSize; idx++)");
+        pw.println("      {");
+        pw.println("         buffers[idx] = ByteBuffer.allocateDirect(bufferSize)" + this.bufferOrder() + ";");
+        pw.println("      }");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /**");
+        pw.println("    * Marshals a message into the batch. The batch is written first if the message doesn't fit in"
+                + " it.");
+        pw.println("    * The message object can be changed or reused as soon as this returns.");
+        pw.println("    */");
+        pw.println("   public void add(" + header + " aMessage) throws IOException");
+        pw.println("   {");
+        pw.println("      if(count == buffers.length)");
+        pw.println("      {");
+        pw.println("         flush();");
+        pw.println("      }");
+        pw.println();
+        pw.println("      ByteBuffer buff = buffers[count];");
+        pw.println("      buff.clear();");
+        pw.println("      aMessage.marshal(buff);");
+        pw.println("      buff.flip();");
+        pw.println("      " + putLength + ";");
+        pw.println();
+        pw.println("      // Over the limit: write what came before, and start the next batch with this message");
+        pw.println("      if(count > 0 && batchBytes + buff.limit() > maxBatchBytes)");
+        pw.println("      {");
+        pw.println("         int waiting = count;");
+        pw.println("         flush();");
+        pw.println("         buffers[waiting] = buffers[0];");
+        pw.println("         buffers[0] = buff;");
+        pw.println("      }");
+        pw.println("      batchBytes = batchBytes + buff.limit();");
+        pw.println("      count++;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Writes one message at once, after any that are waiting */");
+        pw.println("   public void write(" + header + " aMessage) throws IOException");
+        pw.println("   {");
+        pw.println("      add(aMessage);");
+        pw.println("      flush();");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Writes the messages that are waiting, with one call if the channel can gather */");
+        pw.println("   @Override");
+        pw.println("   public void flush() throws IOException");
+        pw.println("   {");
+        pw.println("      if(count == 0)");
+        pw.println("      {");
+        pw.println("         return;");
+        pw.println("      }");
+        pw.println();
+        pw.println("      if(channel instanceof GatheringByteChannel)");
+        pw.println("      {");
+        pw.println("         GatheringByteChannel gathering = (GatheringByteChannel) channel;");
+        pw.println("         long written = 0;");
+        pw.println("         while(written < batchBytes)");
+        pw.println("         {");
+        pw.println("            written = written + gathering.write(buffers, 0, count);");
+        pw.println("         }");
+        pw.println("      }");
+        pw.println("      else");
+        pw.println("      {");
+        pw.println("         for(int idx = 0; idx < count; idx++)");
+        pw.println("         {");
+        pw.println("            while(buffers[idx].hasRemaining())");
+        pw.println("            {");
+        pw.println("               channel.write(buffers[idx]);");
+        pw.println("            }");
+        pw.println("         }");
+        pw.println("      }");
+        pw.println("      count = 0;");
+        pw.println("      batchBytes = 0;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Writes the messages that are waiting and closes the channel */");
+        pw.println("   @Override");
+        pw.println("   public void close() throws IOException");
+        pw.println("   {");
+        pw.println("      try");
+        pw.println("      {");
+        pw.println("         flush();");
+        pw.println("      }");
+        pw.println("      finally");
+        pw.println("      {");
+        pw.println("         channel.close();");
+        pw.println("      }");
+        pw.println("   }");
+        pw.println("}");
+        pw.flush();
+    }
+
+    /**
+     * Call that sets a new ByteBuffer to the byte order of the generated code, if it isn't the default
+     */
+    private String bufferOrder() {
+        return littleEndian ? ".order(java.nio.ByteOrder.LITTLE_ENDIAN)" : "";
+    }
 
-        } // End while
+    /**
+     * Start of the names of the classes that go with the factory: PduFactory has a PduSink and a PduCaptureReader
+     */
+    private String getFactoryPrefix() {
+        String factoryName = this.getFactoryName();
+        if (factoryName.endsWith("Factory") && factoryName.length() > "Factory".length()) {
+            factoryName = factoryName.substring(0, factoryName.length() - "Factory".length());
+        }
+        return factoryName;
+    }
 
-    } // End write classes
+    /**
+     * Name of the interface decodeAll() hands messages to
+     */
+    private String getFactorySinkName() {
+        return this.getFactoryPrefix() + "Sink";
+    }
 
     /**
      * Generate a source code file with getters, setters, ivars, and marshal/unmarshal methods for one class.
@@ -213,28 +991,53 @@ public class JavaGenerator extends Generator {
     private void writeClass(PrintWriter pw, GeneratedClass aClass) {
         this.writeImports(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeImports");
         this.writeClassComments(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeClassComments");
         this.writeClassDeclaration(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeClassDeclaration");
+        this.writeLayoutConstants(pw, aClass);
+        pw.flush();
+        GenerationProfile.section("writeLayoutConstants");
         this.writeIvars(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeIvars");
         this.writeConstructor(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeConstructor");
+        if (generatePools) {
+            this.writePoolMethods(pw, aClass);
+            pw.flush();
+            GenerationProfile.section("writePoolMethods");
+        }
         this.writeGetMarshalledSizeMethod(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeGetMarshalledSizeMethod");
         this.writeGettersAndSetters(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeGettersAndSetters");
+        if (lazyUnmarshal) {
+            this.writeLazyMethods(pw, aClass);
+            pw.flush();
+            GenerationProfile.section("writeLazyMethods");
+        }
         this.writeBitflagMethods(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeBitflagMethods");
         this.writeMarshalMethod(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeMarshalMethod");
         this.writeUnmarshallMethod(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeUnmarshallMethod");
         this.writeMarshalMethodWithByteBuffer(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeMarshalMethodWithByteBuffer");
         this.writeUnmarshallMethodWithByteBuffer(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeUnmarshallMethodWithByteBuffer");
         if (aClass.getName().equals("Pdu")) {
             this.writeMarshalMethodToByteArray(pw, aClass);
             pw.flush();
@@ -246,6 +1049,15 @@ public class JavaGenerator extends Generator {
 
         // this.writeXmlMarshallMethod(pw, aClass);
         this.writeEqualityMethod(pw, aClass);
+        GenerationProfile.section("writeEqualityMethod");
+        this.writeBytesMethods(pw, aClass);
+        pw.flush();
+        GenerationProfile.section("writeBytesMethods");
+        if (generateDeltas) {
+            this.writeDeltaMethods(pw, aClass);
+            pw.flush();
+            GenerationProfile.section("writeDeltaMethods");
+        }
 
         pw.println("} // end of class");
         pw.flush();
@@ -345,6 +1157,31 @@ public class JavaGenerator extends Generator {
         pw.println("{");
     }
 
+    /**
+     * Writes the marshalled size of the class, or -1 if it varies, and the offset of each field whose position doesn't
+     * depend on the contents
+     */
+    private void writeLayoutConstants(PrintWriter pw, GeneratedClass aClass) {
+        ProtocolLayout layout = model.getLayout();
+        pw.println("   /** Size in bytes of a marshalled " + aClass.getName()
+                + ", or -1 if it depends on the contents */");
+        pw.println("   public static final int MARSHALLED_SIZE = " + layout.getMarshalledSize(aClass) + ";");
+        pw.println();
+
+        List ivars = aClass.getClassAttributes();
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            int offset = layout.getOffset(anAttribute);
+            if (offset != ProtocolLayout.VARIABLE) {
+                pw.println(
+                        "   /** Position of " + anAttribute.getName() + " in a marshalled " + aClass.getName() + " */");
+                pw.println("   public static final int OFFSET_" + this.constantName(anAttribute.getName()) + " = "
+                        + offset + ";");
+                pw.println();
+            }
+        }
+    }
+
     private void writeIvars(PrintWriter pw, GeneratedClass aClass) {
 
         if (this.useHibernateAnnotations && aClass.parentClass.equalsIgnoreCase("root")) {
@@ -435,6 +1272,13 @@ public class JavaGenerator extends Generator {
 
                 pw.println("   protected List< " + attributeType + " > " + anAttribute.getName() + " = new ArrayList< "
                         + attributeType + " >(); ");
+
+                if (reuseOnUnmarshal && marshalTypes.getProperty(attributeType) == null) {
+                    pw.println("   /** Elements of " + anAttribute.getName()
+                            + " left over from an earlier unmarshal, kept for reuse */");
+                    pw.println("   protected transient List< " + attributeType + " > " + anAttribute.getName()
+                            + "Spares;");
+                }
             }
         } // End of loop through ivars
     }
@@ -456,30 +1300,13 @@ public class JavaGenerator extends Generator {
             // This is irritating. we have to match up the attribute name with the type,
             // so we can do a cast. Otherwise java pukes because it wants to interpret all
             // numeric strings as ints or doubles, and the attribute may be a short.
-            boolean found = false;
-            GeneratedClass currentClass = aClass;
-            String aType = null;
-
-            while (currentClass != null) {
-                List thisClassesAttributes = currentClass.getClassAttributes();
-                for (int jdx = 0; jdx < thisClassesAttributes.size(); jdx++) {
-                    ClassAttribute anAttribute = (ClassAttribute) thisClassesAttributes.get(jdx);
-                    // System.out.println("--checking " + anAttribute.getName() + " against inital value " +
-                    // anInitialValue.getVariable());
-                    if (anInit.getVariable().equals(anAttribute.getName())) {
-                        found = true;
-                        aType = anAttribute.getType();
-                        break;
-                    }
-                }
-                currentClass = (GeneratedClass) classDescriptions.get(currentClass.getParentClass());
-            }
-            if (!found) {
+            ClassAttribute anAttribute = model.findAttribute(aClass, anInit.getVariable());
+            if (anAttribute == null) {
                 System.out.println("Could not find initial value matching attribute name for " + anInit.getVariable()
                         + " in class " + aClass.getName());
             } else {
-                pw.println("    " + anInit.getSetterMethodName() + "( (" + types.getProperty(aType) + ")"
-                        + anInit.getVariableValue() + " );");
+                pw.println("    " + anInit.getSetterMethodName() + "( (" + types.getProperty(anAttribute.getType())
+                        + ")" + anInit.getVariableValue() + " );");
             }
         } // End initialize initial values
 
@@ -503,40 +1330,725 @@ public class JavaGenerator extends Generator {
 
     }
 
-    public void writeGetMarshalledSizeMethod(PrintWriter pw, GeneratedClass aClass) {
-        List ivars = aClass.getClassAttributes();
-        // Create a getMarshalledSize() method
-        pw.println();
-        // Methods of the form getFoo() for non-iVars will confuse hibernate unless marked as transient
-        if (useHibernateAnnotations) {
-            pw.println(
-                    "@Transient  // Marked as transient to prevent hibernate from thinking this is a persistent property");
+    /**
+     * The projections to generate, from projection.Name=Class:fields java properties (the projection element in the XML
+     * file) and -Dxmlpg.projection.Name=Class:fields, which takes precedence. The fields are separated by commas or
+     * spaces.
+     *
+     * @return the Class:fields of each projection by name
+     */
+    private SortedMap<String, String> getProjections() {
+        SortedMap<String, String> projections = new TreeMap<String, String>();
+        for (String aName : languageProperties.stringPropertyNames()) {
+            if (aName.startsWith("projection.")) {
+                projections.put(aName.substring("projection.".length()), languageProperties.getProperty(aName));
+            }
         }
-        pw.println("public int getMarshalledSize()");
-        pw.println("{");
-        pw.println("   int marshalSize = 0; ");
-        pw.println();
-
-        // Size of superclass is the starting point
-        if (!aClass.getParentClass().equalsIgnoreCase("root")) {
-            pw.println("   marshalSize = super.getMarshalledSize();");
+        Properties systemProperties = System.getProperties();
+        for (String aName : systemProperties.stringPropertyNames()) {
+            if (aName.startsWith("xmlpg.projection.")) {
+                projections.put(aName.substring("xmlpg.projection.".length()), systemProperties.getProperty(aName));
+            }
         }
+        return projections;
+    }
 
-        for (int idx = 0; idx < ivars.size(); idx++) {
-            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
-
-            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
-                pw.print("   marshalSize = marshalSize + ");
-                pw.println(primitiveSizes.get(anAttribute.getType()) + ";  // " + anAttribute.getName());
+    /**
+     * Writes a projection: a class that holds only the named fields of a message, read from a marshalled message
+     * through its view. The view finds each field at its offset from the layout and skips variable length lists by
+     * their count fields, so nothing else is decoded and nothing is allocated. A field is a primitive or a fixed list
+     * of primitives, and may be inside class references, such as entityLocation.x.
+     *
+     * @return false if the projection couldn't be generated; the problem has been printed
+     */
+    private boolean writeProjectionClass(PrintWriter pw, String projectionName, String spec) {
+        int colon = spec.indexOf(':');
+        GeneratedClass projected = (colon < 0) ? null
+                : (GeneratedClass) classDescriptions.get(spec.substring(0, colon).trim());
+        if (projected == null) {
+            System.out.println("Projection " + projectionName + " " + spec
+                    + " should be Class:fields, with a class in the XML file; not generating it");
+            return false;
+        }
+        String className = projected.getName();
+        String viewName = className + "View";
+
+        // For each field that can be projected: the name in the projection, the attribute, and the view call that
+        // leads to the object holding it
+        List<String> fieldNames = new ArrayList<String>();
+        List<ClassAttribute> fieldAttributes = new ArrayList<ClassAttribute>();
+        List<String> fieldViews = new ArrayList<String>();
+        String[] paths = spec.substring(colon + 1).trim().split("[,\\s]+");
+        for (String aPath : paths) {
+            if (aPath.isEmpty()) {
+                continue;
+            }
+            GeneratedClass holder = projected;
+            String viewExpression = "view";
+            String fieldName = "";
+            ClassAttribute anAttribute = null;
+            String[] segments = aPath.split("\\.");
+            for (int idx = 0; idx < segments.length && holder != null; idx++) {
+                anAttribute = model.findAttribute(holder, segments[idx]);
+                fieldName = (idx == 0) ? segments[idx] : fieldName + this.initialCap(segments[idx]);
+                if (anAttribute == null || anAttribute.shouldSerialize == false) {
+                    anAttribute = null;
+                    break;
+                }
+                if (idx < segments.length - 1) {
+                    if (anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.CLASSREF) {
+                        anAttribute = null;
+                        break;
+                    }
+                    viewExpression = viewExpression + ".get" + this.initialCap(segments[idx]) + "()";
+                    holder = model.getReferencedClass(anAttribute);
+                }
             }
 
-            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
-                pw.print("   marshalSize = marshalSize + ");
-                pw.println(anAttribute.getName() + ".getMarshalledSize();  // " + anAttribute.getName());
+            boolean projectable = anAttribute != null && anAttribute.getUnderlyingTypeIsPrimitive()
+                    && (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE
+                            || anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST);
+            if (!projectable) {
+                System.out.println("Projection " + projectionName + ": " + aPath + " is not a serialized primitive or"
+                        + " fixed list of primitives in " + className + "; leaving it out");
+                continue;
             }
+            fieldNames.add(fieldName);
+            fieldAttributes.add(anAttribute);
+            fieldViews.add(viewExpression);
+        }
 
-            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST) {
-                // System.out.println("Generating fixed list for " + anAttribute.getName() + " listIsClass:" +
+        String packageName = languageProperties.getProperty("package");
+        if (packageName != null) {
+            pw.println("package " + packageName + ";");
+            pw.println();
+        }
+        pw.println("/**");
+        pw.println(" * The fields of a " + className + " that some readers need, read from a marshalled " + className);
+        pw.println(" * without unmarshalling the rest of it. The fields are found through a " + viewName
+                + ", which skips");
+        pw.println(
+                " * what isn't needed, so reading allocates nothing and one projection can be reused for any number");
+        pw.println(" * of messages.");
+        pw.println(" *");
+        pw.println(" * Generated from the projection " + projectionName + "; don't edit.");
+        pw.println(" */");
+        pw.println("public class " + projectionName);
+        pw.println("{");
+        pw.println("   private final " + viewName + " view = new " + viewName + "();");
+        pw.println();
+
+        for (int idx = 0; idx < fieldNames.size(); idx++) {
+            ClassAttribute anAttribute = fieldAttributes.get(idx);
+            String type = types.getProperty(anAttribute.getType());
+            if (anAttribute.getComment() != null) {
+                pw.println("   /** " + anAttribute.getComment() + " */");
+            }
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST) {
+                pw.println("   protected " + type + "[] " + fieldNames.get(idx) + " = new " + type + "["
+                        + anAttribute.getListLength() + "];");
+            } else {
+                pw.println("   protected " + type + " " + fieldNames.get(idx) + ";");
+            }
+            pw.println();
+        }
+
+        pw.println("   /** Reads the fields of the " + className
+                + " that starts at offset in buff, leaving the position" + " alone */");
+        pw.println("   public void read(java.nio.ByteBuffer buff, int offset)");
+        pw.println("   {");
+        pw.println("      view.wrap(buff, offset);");
+        for (int idx = 0; idx < fieldNames.size(); idx++) {
+            ClassAttribute anAttribute = fieldAttributes.get(idx);
+            String getter = fieldViews.get(idx) + ".get" + this.initialCap(anAttribute.getName());
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST) {
+                pw.println("      for(int idx = 0; idx < " + fieldNames.get(idx) + ".length; idx++)");
+                pw.println("      {");
+                pw.println("         " + fieldNames.get(idx) + "[idx] = " + getter + "(idx);");
+                pw.println("      }");
+            } else {
+                pw.println("      " + fieldNames.get(idx) + " = " + getter + "();");
+            }
+        }
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Reads the fields of the " + className
+                + " at the position of buff, and moves the position past" + " it */");
+        pw.println("   public void unmarshal(java.nio.ByteBuffer buff)");
+        pw.println("   {");
+        pw.println("      read(buff, buff.position());");
+        pw.println("      buff.position(buff.position() + view.getMarshalledSize());");
+        pw.println("   }");
+        pw.println();
+
+        for (int idx = 0; idx < fieldNames.size(); idx++) {
+            ClassAttribute anAttribute = fieldAttributes.get(idx);
+            String type = types.getProperty(anAttribute.getType());
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST) {
+                type = type + "[]";
+            }
+            pw.println("   public " + type + " get" + this.initialCap(fieldNames.get(idx)) + "()");
+            pw.println("   {");
+            pw.println("      return " + fieldNames.get(idx) + ";");
+            pw.println("   }");
+            pw.println();
+        }
+        pw.println("}");
+        pw.flush();
+        return true;
+    }
+
+    /**
+     * True if an attribute gets the ByteText methods: a fixed list of bytes or unsigned bytes marked couldBeString
+     */
+    private boolean isText(ClassAttribute anAttribute) {
+        return generateStrings && anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST
+                && anAttribute.getUnderlyingTypeIsPrimitive() && anAttribute.getCouldBeString()
+                && (anAttribute.getType().equals("byte") || anAttribute.getType().equals("unsigned byte"));
+    }
+
+    /**
+     * Writes getXxxText(), a CharSequence over the array that is made once per object and follows the array if it is
+     * replaced, and getXxxString(), which goes through the ByteText cache
+     */
+    private void writeTextMethods(PrintWriter pw, ClassAttribute anAttribute) {
+        String name = anAttribute.getName();
+        String capped = this.initialCap(name);
+        String textClass = anAttribute.getType().equals("byte") ? "ByteText.Bytes" : "ByteText.Shorts";
+
+        pw.println("/** Reads " + name + " as text for getText" + capped + "(); not part of the state */");
+        pw.println("protected transient " + textClass + " " + name + "Text;");
+        pw.println();
+        pw.println("/** " + name + " as text, up to the first zero. The characters are read from the array each time,");
+        pw.println(" * so they change with it; the same object is returned on every call. */");
+        this.writeTextAnnotations(pw);
+        pw.println("public ByteText get" + capped + "Text()");
+        pw.println("{");
+        pw.println("    if(" + name + "Text == null)");
+        pw.println("    {");
+        pw.println("        " + name + "Text = new " + textClass + "();");
+        pw.println("    }");
+        pw.println("    " + name + "Text.wrap(" + name + ");");
+        pw.println("    return " + name + "Text;");
+        pw.println("}");
+        pw.println();
+        pw.println("/** " + name + " as a String, the same instance as last time if the bytes are in the cache */");
+        this.writeTextAnnotations(pw);
+        pw.println("public String get" + capped + "String()");
+        pw.println("{");
+        pw.println("    return get" + capped + "Text().cachedString();");
+        pw.println("}");
+        pw.println();
+    }
+
+    /**
+     * Keeps the text methods out of JAXB and Hibernate, since they are not properties of their own
+     */
+    private void writeTextAnnotations(PrintWriter pw) {
+        if (useJaxbAnnotations) {
+            pw.println("@XmlTransient");
+        }
+        if (useHibernateAnnotations) {
+            pw.println("@Transient");
+        }
+    }
+
+    /**
+     * Writes ByteText, a CharSequence over a fixed list of bytes in an array or a ByteBuffer, one character per byte,
+     * ending at the first zero. cachedString() looks the bytes up in a table of Strings indexed by their hash, which is
+     * the same as String.hashCode(), so a String seen before is found without allocating anything. The table is written
+     * without locks; a racing thread at worst replaces an entry, and Strings are safe to publish that way.
+     */
+    private void writeByteTextClass(PrintWriter pw) {
+        String packageName = languageProperties.getProperty("package");
+        int cacheSize = Integer.highestOneBit(Math.max(1, Integer.parseInt(this.getOption("stringCacheSize", "1024"))));
+
+        if (packageName != null) {
+            pw.println("package " + packageName + ";");
+        }
+        pw.println();
+        pw.println("import java.nio.ByteBuffer;");
+        pw.println();
+        pw.println("/**");
+        pw.println(
+                " * Text held in a fixed length list of bytes, read in place. Each byte is one ISO-8859-1 character");
+        pw.println(" * and the text ends at the first zero byte or the end of the list. A ByteText is pointed at its");
+        pw.println(" * bytes with wrap() and can be reused for any number of lists.");
+        pw.println(" */");
+        pw.println("public abstract class ByteText implements CharSequence");
+        pw.println("{");
+        pw.println("   /** Number of Strings kept by cachedString(), a power of two */");
+        pw.println("   public static final int CACHE_SIZE = " + cacheSize + ";");
+        pw.println();
+        pw.println("   private static final String[] cache = new String[CACHE_SIZE];");
+        pw.println();
+        pw.println("   /** Number of bytes in the list */");
+        pw.println("   protected abstract int capacity();");
+        pw.println();
+        pw.println("   /** Byte at index in the list, 0 to 255 */");
+        pw.println("   protected abstract int byteAt(int index);");
+        pw.println();
+        pw.println("   public int length()");
+        pw.println("   {");
+        pw.println("       int capacity = capacity();");
+        pw.println("       for(int idx = 0; idx < capacity; idx++)");
+        pw.println("       {");
+        pw.println("           if(byteAt(idx) == 0)");
+        pw.println("           {");
+        pw.println("               return idx;");
+        pw.println("           }");
+        pw.println("       }");
+        pw.println("       return capacity;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   public char charAt(int index)");
+        pw.println("   {");
+        pw.println("       if(index < 0 || index >= length())");
+        pw.println("       {");
+        pw.println("           throw new IndexOutOfBoundsException(\"index \" + index + \", length \" + length());");
+        pw.println("       }");
+        pw.println("       return (char)byteAt(index);");
+        pw.println("   }");
+        pw.println();
+        pw.println("   public CharSequence subSequence(int start, int end)");
+        pw.println("   {");
+        pw.println("       return toString().subSequence(start, end);");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** The text in a new String */");
+        pw.println("   @Override");
+        pw.println("   public String toString()");
+        pw.println("   {");
+        pw.println("       int length = length();");
+        pw.println("       char[] chars = new char[length];");
+        pw.println("       for(int idx = 0; idx < length; idx++)");
+        pw.println("       {");
+        pw.println("           chars[idx] = (char)byteAt(idx);");
+        pw.println("       }");
+        pw.println("       return new String(chars);");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** True if the text has the same characters as aString */");
+        pw.println("   public boolean contentEquals(CharSequence aString)");
+        pw.println("   {");
+        pw.println("       int length = length();");
+        pw.println("       if(aString.length() != length)");
+        pw.println("       {");
+        pw.println("           return false;");
+        pw.println("       }");
+        pw.println("       for(int idx = 0; idx < length; idx++)");
+        pw.println("       {");
+        pw.println("           if(aString.charAt(idx) != byteAt(idx))");
+        pw.println("           {");
+        pw.println("               return false;");
+        pw.println("           }");
+        pw.println("       }");
+        pw.println("       return true;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /**");
+        pw.println(
+                "    * The text as a String, from the cache if the same text was seen recently. Only allocates when");
+        pw.println("    * the text isn't in the cache, in which case the new String replaces what was in its slot.");
+        pw.println("    */");
+        pw.println("   public String cachedString()");
+        pw.println("   {");
+        pw.println("       int length = length();");
+        pw.println("       int hash = 0;");
+        pw.println("       for(int idx = 0; idx < length; idx++)");
+        pw.println("       {");
+        pw.println("           hash = 31 * hash + byteAt(idx);");
+        pw.println("       }");
+        pw.println("       int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);");
+        pw.println("       String cached = cache[slot];");
+        pw.println("       if(cached != null && cached.hashCode() == hash && contentEquals(cached))");
+        pw.println("       {");
+        pw.println("           return cached;");
+        pw.println("       }");
+        pw.println("       String aString = toString();");
+        pw.println("       cache[slot] = aString;");
+        pw.println("       return aString;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Text in a byte array, for fixed lists of bytes */");
+        pw.println("   public static class Bytes extends ByteText");
+        pw.println("   {");
+        pw.println("       private byte[] bytes;");
+        pw.println();
+        pw.println("       public void wrap(byte[] bytes)");
+        pw.println("       {");
+        pw.println("           this.bytes = bytes;");
+        pw.println("       }");
+        pw.println();
+        pw.println("       protected int capacity()");
+        pw.println("       {");
+        pw.println("           return bytes.length;");
+        pw.println("       }");
+        pw.println();
+        pw.println("       protected int byteAt(int index)");
+        pw.println("       {");
+        pw.println("           return bytes[index] & 0xFF;");
+        pw.println("       }");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Text in a short array, for fixed lists of unsigned bytes */");
+        pw.println("   public static class Shorts extends ByteText");
+        pw.println("   {");
+        pw.println("       private short[] shorts;");
+        pw.println();
+        pw.println("       public void wrap(short[] shorts)");
+        pw.println("       {");
+        pw.println("           this.shorts = shorts;");
+        pw.println("       }");
+        pw.println();
+        pw.println("       protected int capacity()");
+        pw.println("       {");
+        pw.println("           return shorts.length;");
+        pw.println("       }");
+        pw.println();
+        pw.println("       protected int byteAt(int index)");
+        pw.println("       {");
+        pw.println("           return shorts[index] & 0xFF;");
+        pw.println("       }");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Text in a ByteBuffer, read with absolute gets so the position is left alone */");
+        pw.println("   public static class Buffer extends ByteText");
+        pw.println("   {");
+        pw.println("       private ByteBuffer buff;");
+        pw.println("       private int offset;");
+        pw.println("       private int capacity;");
+        pw.println();
+        pw.println("       public void wrap(ByteBuffer buff, int offset, int capacity)");
+        pw.println("       {");
+        pw.println("           this.buff = buff;");
+        pw.println("           this.offset = offset;");
+        pw.println("           this.capacity = capacity;");
+        pw.println("       }");
+        pw.println();
+        pw.println("       protected int capacity()");
+        pw.println("       {");
+        pw.println("           return capacity;");
+        pw.println("       }");
+        pw.println();
+        pw.println("       protected int byteAt(int index)");
+        pw.println("       {");
+        pw.println("           return buff.get(offset + index) & 0xFF;");
+        pw.println("       }");
+        pw.println("   }");
+        pw.println("}");
+        pw.flush();
+    }
+
+    /**
+     * Writes the ObjectPool class the Pool of each class extends. Free objects are kept in a list per thread, so
+     * acquiring and releasing on one thread takes no locks and allocates nothing; when a thread's list is full the
+     * extras go to a bounded queue shared by all threads, and past that they are left for the garbage collector.
+     */
+    private void writeObjectPoolClass(PrintWriter pw) {
+        String packageName = languageProperties.getProperty("package");
+        int localCapacity = Integer.parseInt(languageProperties.getProperty("poolLocalCapacity", "64"));
+        int sharedCapacity = Integer.parseInt(languageProperties.getProperty("poolSharedCapacity", "1024"));
+
+        if (packageName != null) {
+            pw.println("package " + packageName + ";");
+        }
+        pw.println();
+        pw.println("import java.util.ArrayList;");
+        pw.println("import java.util.concurrent.ArrayBlockingQueue;");
+        pw.println();
+        pw.println("/**");
+        pw.println(
+                " * Free objects of one class, kept for reuse. Each thread has its own list of up to LOCAL_CAPACITY");
+        pw.println(" * objects; objects released beyond that go to a queue of up to SHARED_CAPACITY shared by all");
+        pw.println(
+                " * threads, and beyond that are dropped. Acquired objects hold whatever was in them when they were");
+        pw.println(" * released, apart from the objects they refer to, which are fresh from their own pools.");
+        pw.println(" */");
+        pw.println("public abstract class ObjectPool<T>");
+        pw.println("{");
+        pw.println("   /** Most free objects kept by one thread */");
+        pw.println("   public static final int LOCAL_CAPACITY = " + localCapacity + ";");
+        pw.println();
+        pw.println("   /** Most free objects kept for all threads once their own lists are full */");
+        pw.println("   public static final int SHARED_CAPACITY = " + sharedCapacity + ";");
+        pw.println();
+        pw.println("   private final Class<? extends T> type;");
+        pw.println();
+        pw.println("   private final ThreadLocal<ArrayList<T>> local = new ThreadLocal<ArrayList<T>>()");
+        pw.println("   {");
+        pw.println("       @Override");
+        pw.println("       protected ArrayList<T> initialValue()");
+        pw.println("       {");
+        pw.println("           return new ArrayList<T>(LOCAL_CAPACITY);");
+        pw.println("       }");
+        pw.println("   };");
+        pw.println();
+        pw.println("   private final ArrayBlockingQueue<T> shared = new ArrayBlockingQueue<T>(SHARED_CAPACITY);");
+        pw.println();
+        pw.println("   /** @param type the class of the objects in the pool; subclasses are not accepted */");
+        pw.println("   protected ObjectPool(Class<? extends T> type)");
+        pw.println("   {");
+        pw.println("       this.type = type;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Makes a new object when the pool is empty */");
+        pw.println("   protected abstract T create();");
+        pw.println();
+        pw.println("   /** Gets an object ready for use after it comes out of the pool */");
+        pw.println("   protected abstract void reuse(T anX);");
+        pw.println();
+        pw.println("   /** Releases the objects an object refers to, as it goes into the pool */");
+        pw.println("   protected abstract void recycle(T anX);");
+        pw.println();
+        pw.println("   /** Takes a free object from the pool, or makes a new one if there are none */");
+        pw.println("   public T acquire()");
+        pw.println("   {");
+        pw.println("       ArrayList<T> free = local.get();");
+        pw.println("       T anX = free.isEmpty() ? shared.poll() : free.remove(free.size() - 1);");
+        pw.println("       if(anX == null)");
+        pw.println("       {");
+        pw.println("           return create();");
+        pw.println("       }");
+        pw.println("       reuse(anX);");
+        pw.println("       return anX;");
+        pw.println("   }");
+        pw.println();
+        pw.println(
+                "   /** Puts an object, and the objects it refers to, back in their pools. It must not be used afterwards. */");
+        pw.println("   public void release(T anX)");
+        pw.println("   {");
+        pw.println("       if(anX.getClass() != type)");
+        pw.println("       {");
+        pw.println(
+                "           throw new IllegalArgumentException(anX.getClass().getName() + \" does not belong in the pool of \" + type.getName());");
+        pw.println("       }");
+        pw.println("       recycle(anX);");
+        pw.println("       ArrayList<T> free = local.get();");
+        pw.println("       if(free.size() < LOCAL_CAPACITY)");
+        pw.println("       {");
+        pw.println("           free.add(anX);");
+        pw.println("       }");
+        pw.println("       else");
+        pw.println("       {");
+        pw.println("           shared.offer(anX);");
+        pw.println("       }");
+        pw.println("   }");
+        pw.println("}");
+        pw.flush();
+    }
+
+    /**
+     * Writes the pool of a class and the methods that return an object to it. Releasing an object releases the classes
+     * it refers to and the elements of its lists, and acquiring one fills those references from the pools again. The
+     * Pool of a subclass extends the Pool of its parent, so that pool() can be redeclared in each class.
+     */
+    private void writePoolMethods(PrintWriter pw, GeneratedClass aClass) {
+        String name = aClass.getName();
+        boolean isRoot = aClass.getParentClass().equalsIgnoreCase("root");
+        String poolParent = isRoot ? "ObjectPool< " + name + " >" : aClass.getParentClass() + ".Pool";
+        List ivars = aClass.getClassAttributes();
+
+        pw.println();
+        pw.println("/** Free " + name + " objects */");
+        pw.println("public static class Pool extends " + poolParent);
+        pw.println("{");
+        pw.println("    public Pool()");
+        pw.println("    {");
+        pw.println("        this(" + name + ".class);");
+        pw.println("    }");
+        pw.println();
+        pw.println("    protected Pool(Class<? extends " + name + "> type)");
+        pw.println("    {");
+        pw.println("        super(type);");
+        pw.println("    }");
+        pw.println();
+        pw.println("    @Override");
+        pw.println("    protected " + name + " create()");
+        pw.println("    {");
+        pw.println("        return new " + name + "();");
+        pw.println("    }");
+        pw.println();
+        pw.println("    @Override");
+        pw.println("    public " + name + " acquire()");
+        pw.println("    {");
+        pw.println("        return (" + name + ")super.acquire();");
+        pw.println("    }");
+        if (isRoot) {
+            pw.println();
+            pw.println("    @Override");
+            pw.println("    protected void reuse(" + name + " anX)");
+            pw.println("    {");
+            pw.println("        anX.acquireFields();");
+            pw.println("    }");
+            pw.println();
+            pw.println("    @Override");
+            pw.println("    protected void recycle(" + name + " anX)");
+            pw.println("    {");
+            pw.println("        anX.releaseFields();");
+            pw.println("    }");
+        }
+        pw.println("}");
+        pw.println();
+        pw.println("private static final Pool pool = new Pool();");
+        pw.println();
+        pw.println("/** The pool of free " + name + " objects */");
+        pw.println("public static Pool pool()");
+        pw.println("{");
+        pw.println("   return pool;");
+        pw.println("}");
+        pw.println();
+        pw.println(
+                "/** Puts this object, and the objects it refers to, back in their pools. It must not be used afterwards. */");
+        if (!isRoot) {
+            pw.println("@Override");
+        }
+        pw.println("public void release()");
+        pw.println("{");
+        pw.println("   pool.release(this);");
+        pw.println("}");
+
+        // Releasing a classRef goes through the object itself, so a subclass held in the field goes back to its
+        // own pool
+        pw.println();
+        pw.println("/** Releases the objects this one refers to */");
+        pw.println("protected void releaseFields()");
+        pw.println("{");
+        if (!isRoot) {
+            pw.println("   super.releaseFields();");
+        }
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            String attributeName = anAttribute.getName();
+            if (anAttribute.shouldSerialize == false) {
+                continue;
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
+                pw.println("   if(" + attributeName + " != null)");
+                pw.println("   {");
+                pw.println("       " + attributeName + ".release();");
+                pw.println("       " + attributeName + " = null;");
+                pw.println("   }");
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST
+                    && anAttribute.listIsClass() == true) {
+                pw.println("   for(int idx = 0; idx < " + attributeName + ".length; idx++)");
+                pw.println("   {");
+                pw.println("       if(" + attributeName + "[idx] != null)");
+                pw.println("       {");
+                pw.println("           " + attributeName + "[idx].release();");
+                pw.println("           " + attributeName + "[idx] = null;");
+                pw.println("       }");
+                pw.println("   }");
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST
+                    && marshalTypes.getProperty(anAttribute.getType()) == null) {
+                pw.println("   for(int idx = 0; idx < " + attributeName + ".size(); idx++)");
+                pw.println("   {");
+                pw.println("       " + attributeName + ".get(idx).release();");
+                pw.println("   }");
+                pw.println("   " + attributeName + ".clear();");
+                if (reuseOnUnmarshal) {
+                    String spares = attributeName + "Spares";
+                    pw.println("   if(" + spares + " != null)");
+                    pw.println("   {");
+                    pw.println("       for(int idx = 0; idx < " + spares + ".size(); idx++)");
+                    pw.println("       {");
+                    pw.println("           " + spares + ".get(idx).release();");
+                    pw.println("       }");
+                    pw.println("       " + spares + ".clear();");
+                    pw.println("   }");
+                }
+            }
+            this.writeLazyReset(pw, anAttribute);
+        }
+        if (this.hasLazyAttributes(aClass)) {
+            pw.println("   lazyBuffer = null;");
+        }
+        pw.println("}");
+
+        pw.println();
+        pw.println("/** Fills the references released by releaseFields() from the pools */");
+        pw.println("protected void acquireFields()");
+        pw.println("{");
+        if (!isRoot) {
+            pw.println("   super.acquireFields();");
+        }
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            String attributeName = anAttribute.getName();
+            if (anAttribute.shouldSerialize == false) {
+                continue;
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
+                pw.println("   if(" + attributeName + " == null)");
+                pw.println("   {");
+                pw.println("       " + attributeName + " = " + anAttribute.getType() + ".pool().acquire();");
+                pw.println("   }");
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST
+                    && anAttribute.listIsClass() == true) {
+                pw.println("   for(int idx = 0; idx < " + attributeName + ".length; idx++)");
+                pw.println("   {");
+                pw.println("       if(" + attributeName + "[idx] == null)");
+                pw.println("       {");
+                pw.println("           " + attributeName + "[idx] = " + anAttribute.getType() + ".pool().acquire();");
+                pw.println("       }");
+                pw.println("   }");
+            }
+        }
+        pw.println("}");
+    }
+
+    public void writeGetMarshalledSizeMethod(PrintWriter pw, GeneratedClass aClass) {
+        List ivars = aClass.getClassAttributes();
+        // Create a getMarshalledSize() method
+        pw.println();
+        // Methods of the form getFoo() for non-iVars will confuse hibernate unless marked as transient
+        if (useHibernateAnnotations) {
+            pw.println(
+                    "@Transient  // Marked as transient to prevent hibernate from thinking this is a persistent property");
+        }
+        pw.println("public int getMarshalledSize()");
+        pw.println("{");
+
+        // Worked out when generating, if nothing in the class can vary in size
+        if (model.getLayout().isFixedSize(aClass)) {
+            pw.println("   return MARSHALLED_SIZE;");
+            pw.println("}");
+            pw.println();
+            return;
+        }
+
+        this.writeMaterializeCall(pw, "   ");
+        pw.println("   int marshalSize = 0; ");
+        pw.println();
+
+        // Size of superclass is the starting point
+        if (!aClass.getParentClass().equalsIgnoreCase("root")) {
+            pw.println("   marshalSize = super.getMarshalledSize();");
+        }
+
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
+                pw.print("   marshalSize = marshalSize + ");
+                pw.println(primitiveSizes.get(anAttribute.getType()) + ";  // " + anAttribute.getName());
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
+                pw.print("   marshalSize = marshalSize + ");
+                pw.println(anAttribute.getName() + ".getMarshalledSize();  // " + anAttribute.getName());
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST) {
+                // System.out.println("Generating fixed list for " + anAttribute.getName() + " listIsClass:" +
                 // anAttribute.listIsClass());
                 // If this is a fixed list of primitives, it's the list size times the size of the primitive.
                 if (anAttribute.getUnderlyingTypeIsPrimitive() == true) {
@@ -646,7 +2158,13 @@ public class JavaGenerator extends Generator {
                         pw.println("@Basic");
                     }
                     pw.println("public " + beanType + " get" + this.initialCap(anAttribute.getName()) + "()");
-                    pw.println("{ return (" + beanType + ")" + listAttribute.getName() + ".size();");
+                    if (this.isLazy(listAttribute)) {
+                        // Still right before the list is decoded
+                        pw.println("{ return (" + beanType + ")(" + listAttribute.getName() + "Offset >= 0 ? "
+                                + anAttribute.getName() + " : " + listAttribute.getName() + ".size());");
+                    } else {
+                        pw.println("{ return (" + beanType + ")" + listAttribute.getName() + ".size();");
+                    }
                     pw.println("}");
                     pw.println();
 
@@ -670,6 +2188,7 @@ public class JavaGenerator extends Generator {
                 pw.println("public void set" + this.initialCap(anAttribute.getName()) + "(" + anAttribute.getType()
                         + " p" + this.initialCap(anAttribute.getName()) + ")");
                 pw.println("{ " + anAttribute.getName() + " = p" + this.initialCap(anAttribute.getName()) + ";");
+                this.writeLazyReset(pw, anAttribute);
                 pw.println("}");
 
                 pw.println();
@@ -688,7 +2207,9 @@ public class JavaGenerator extends Generator {
                     pw.println("@JoinColumn(name=\"fk_" + anAttribute.getName() + "\")");
                 }
                 pw.println("public " + anAttribute.getType() + " get" + this.initialCap(anAttribute.getName()) + "()");
-                pw.println("{ return " + anAttribute.getName() + "; \n}");
+                if (!this.writeLazyGetterBody(pw, anAttribute)) {
+                    pw.println("{ return " + anAttribute.getName() + "; \n}");
+                }
                 pw.println();
 
             }
@@ -714,6 +2235,10 @@ public class JavaGenerator extends Generator {
                             + this.initialCap(anAttribute.getName()) + "()");
                     pw.println("{ return " + anAttribute.getName() + "; }");
                     pw.println();
+
+                    if (this.isText(anAttribute)) {
+                        this.writeTextMethods(pw, anAttribute);
+                    }
                 } else if (anAttribute.listIsClass() == true) {
                     pw.println("public void set" + this.initialCap(anAttribute.getName()) + "(" + anAttribute.getType()
                             + "[] p" + this.initialCap(anAttribute.getName()) + ")");
@@ -741,6 +2266,7 @@ public class JavaGenerator extends Generator {
                 pw.println("public void set" + this.initialCap(anAttribute.getName()) + "(List<" + anAttribute.getType()
                         + ">" + " p" + this.initialCap(anAttribute.getName()) + ")");
                 pw.println("{ " + anAttribute.getName() + " = p" + this.initialCap(anAttribute.getName()) + ";");
+                this.writeLazyReset(pw, anAttribute);
                 pw.println("}");
 
                 pw.println();
@@ -753,7 +2279,9 @@ public class JavaGenerator extends Generator {
                 }
                 pw.println("public List<" + anAttribute.getType() + ">" + " get"
                         + this.initialCap(anAttribute.getName()) + "()");
-                pw.println("{ return " + anAttribute.getName() + "; }");
+                if (!this.writeLazyGetterBody(pw, anAttribute)) {
+                    pw.println("{ return " + anAttribute.getName() + "; }");
+                }
                 pw.println();
 
             }
@@ -839,6 +2367,7 @@ public class JavaGenerator extends Generator {
         pw.println();
         pw.println("public void marshal(DataOutputStream dos)");
         pw.println("{");
+        this.writeMaterializeCall(pw, "    ");
 
         // If we're a sublcass of another class, we should first call super
         // to make sure the superclass's ivars are marshaled out.
@@ -848,6 +2377,7 @@ public class JavaGenerator extends Generator {
         }
 
         pw.println("    try \n    {");
+        this.writeOrderBuffer(pw, aClass);
 
         // Loop through the class attributes, generating the output for each.
         ivars = aClass.getClassAttributes();
@@ -867,11 +2397,13 @@ public class JavaGenerator extends Generator {
                 // If we're a normal primitivetype, marshal out directly; otherwise, marshall out
                 // the list length.
                 if (anAttribute.getIsDynamicListLengthField() == false) {
-                    pw.println("       dos.write" + capped + "( (" + marshalType + ")" + anAttribute.getName() + ");");
+                    pw.println("       " + this.streamWrite(capped, " (" + marshalType + ")" + anAttribute.getName())
+                            + ";");
                 } else {
                     ClassAttribute listAttribute = anAttribute.getDynamicListClassAttribute();
-                    pw.println("       dos.write" + capped + "( (" + marshalType + ")" + listAttribute.getName()
-                            + ".size());");
+                    pw.println("       "
+                            + this.streamWrite(capped, " (" + marshalType + ")" + listAttribute.getName() + ".size()")
+                            + ";");
                 }
 
             }
@@ -884,7 +2416,8 @@ public class JavaGenerator extends Generator {
             }
 
             // Write out the method call to marshal a fixed length list, aka an array.
-            if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)) {
+            if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
+                    && !this.writeBulkArrayTransfer(pw, anAttribute, "write", "dos")) {
                 pw.println();
                 pw.println("       for(int idx = 0; idx < " + anAttribute.getName() + ".length; idx++)");
                 pw.println("       {");
@@ -897,7 +2430,9 @@ public class JavaGenerator extends Generator {
 
                 if (anAttribute.getUnderlyingTypeIsPrimitive()) {
                     String capped = this.initialCap(marshalType);
-                    pw.println("           dos.write" + capped + "(" + anAttribute.getName() + "[idx]);");
+                    pw.println("           "
+                            + this.streamWrite(capped, "(" + marshalType + ")" + anAttribute.getName() + "[idx]")
+                            + ";");
                 } else {
                     pw.println("           " + anAttribute.getName() + "[idx].marshal(dos);");
                 }
@@ -943,23 +2478,166 @@ public class JavaGenerator extends Generator {
         pw.println("    } // end of marshal method");
     }
 
-    private void writeUnmarshallMethod(PrintWriter pw, GeneratedClass aClass) {
-        List ivars = aClass.getClassAttributes();
-        String superclassName;
-
-        pw.println();
-        pw.println("public void unmarshal(DataInputStream dis)");
-        pw.println("{");
-        pw.flush();
+    /**
+     * Writes the code that moves a whole fixed length array of primitives without a relative get or put per element.
+     * Byte arrays are moved with a single bulk call, on a ByteBuffer or a stream. Wider types in a ByteBuffer use
+     * absolute gets and puts and move the position once at the end; the bulk calls on a view buffer such as
+     * asFloatBuffer() would allocate the view every time. This only works when the Java array type is the marshalled
+     * type; unsigned types are held in the next wider Java type, so they still need the loop.
+     *
+     * @param direction
+     *            write, read, put or get
+     * @param target
+     *            the stream or buffer, dos, dis or buff
+     * @return false if the array has to be moved an element at a time
+     */
+    private boolean writeBulkArrayTransfer(PrintWriter pw, ClassAttribute anAttribute, String direction,
+            String target) {
+        if (!anAttribute.getUnderlyingTypeIsPrimitive()) {
+            return false;
+        }
+        String javaType = types.getProperty(anAttribute.getType());
+        String marshalType = marshalTypes.getProperty(anAttribute.getType());
+        if (javaType == null || !javaType.equals(marshalType)) {
+            return false;
+        }
+        String name = anAttribute.getName();
 
-        superclassName = aClass.getParentClass();
-        if (!(superclassName.equalsIgnoreCase("root"))) {
-            pw.println("     super.unmarshal(dis);\n");
+        if (javaType.equals("byte")) {
+            pw.println("       " + target + "." + (direction.equals("read") ? "readFully" : direction) + "(" + name
+                    + ");");
+            return true;
+        }
+        if (!target.equals("buff")) {
+            return false;
         }
+        String capped = this.initialCap(javaType);
+        int size = ProtocolLayout.getPrimitiveSize(anAttribute.getType());
+        String start = name + "Start";
+        pw.println("       int " + start + " = buff.position();");
+        pw.println("       for(int idx = 0; idx < " + name + ".length; idx++)");
+        pw.println("       {");
+        if (direction.equals("put")) {
+            pw.println("           buff.put" + capped + "(" + start + " + idx * " + size + ", " + name + "[idx]);");
+        } else {
+            pw.println("           " + name + "[idx] = buff.get" + capped + "(" + start + " + idx * " + size + ");");
+        }
+        pw.println("       }");
+        pw.println("       buff.position(" + start + " + " + name + ".length * " + size + ");");
+        return true;
+    }
 
-        pw.println("    try \n    {");
+    /**
+     * Name of the buffer the stream methods move fields through for byteOrder little
+     */
+    private static final String ORDER_BUFFER = "littleEndianBytes";
 
-        // Loop through the class attributes, generating the output for each.
+    /**
+     * DataOutputStream and DataInputStream are big endian. For byteOrder little the stream methods start by allocating
+     * a buffer big enough for one field, set to little endian once, and each field goes through it with the plain
+     * ByteBuffer get and put methods.
+     */
+    private void writeOrderBuffer(PrintWriter pw, GeneratedClass aClass) {
+        if (!littleEndian) {
+            return;
+        }
+        List attributes = aClass.getClassAttributes();
+        for (int idx = 0; idx < attributes.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) attributes.get(idx);
+            ClassAttribute.ClassAttributeType kind = anAttribute.getAttributeKind();
+            if (anAttribute.shouldSerialize
+                    && (kind == ClassAttribute.ClassAttributeType.PRIMITIVE
+                            || (kind == ClassAttribute.ClassAttributeType.FIXED_LIST
+                                    && anAttribute.getUnderlyingTypeIsPrimitive()))
+                    && ProtocolLayout.getPrimitiveSize(anAttribute.getType()) > 1) {
+                pw.println("       java.nio.ByteBuffer " + ORDER_BUFFER
+                        + " = java.nio.ByteBuffer.allocate(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Number of bytes a DataInputStream or DataOutputStream method moves
+     *
+     * @param capped
+     *            the method without "read" or "write", such as UnsignedShort
+     */
+    private int streamSize(String capped) {
+        if (capped.equals("Short") || capped.equals("UnsignedShort")) {
+            return 2;
+        }
+        if (capped.equals("Int") || capped.equals("Float")) {
+            return 4;
+        }
+        if (capped.equals("Long") || capped.equals("Double")) {
+            return 8;
+        }
+        return 1;
+    }
+
+    /**
+     * A call that writes a primitive to dos. For byteOrder little the value is put in the little endian buffer first.
+     *
+     * @param capped
+     *            the DataOutputStream method without "write", such as Short
+     */
+    private String streamWrite(String capped, String value) {
+        if (!littleEndian || capped.equals("Byte")) {
+            return "dos.write" + capped + "(" + value + ")";
+        }
+        return "dos.write(" + ORDER_BUFFER + ".put" + capped + "(0, " + value + ").array(), 0, "
+                + this.streamSize(capped) + ")";
+    }
+
+    /**
+     * For byteOrder little, writes the statement that reads the bytes of the next field from dis into the little endian
+     * buffer, ahead of the streamRead() expression that takes the field from it
+     */
+    private void writeStreamFill(PrintWriter pw, String indent, String capped) {
+        if (littleEndian && this.streamSize(capped) > 1) {
+            pw.println(indent + "dis.readFully(" + ORDER_BUFFER + ".array(), 0, " + this.streamSize(capped) + ");");
+        }
+    }
+
+    /**
+     * An expression that reads a primitive from dis, or for byteOrder little from the buffer writeStreamFill() filled
+     *
+     * @param capped
+     *            the DataInputStream method without "read", such as UnsignedShort
+     */
+    private String streamRead(String capped) {
+        if (!littleEndian || this.streamSize(capped) == 1) {
+            return "dis.read" + capped + "()";
+        }
+        if (capped.equals("UnsignedShort")) {
+            return "(" + ORDER_BUFFER + ".getShort(0) & 0xFFFF)";
+        }
+        return ORDER_BUFFER + ".get" + capped + "(0)";
+    }
+
+    private void writeUnmarshallMethod(PrintWriter pw, GeneratedClass aClass) {
+        List ivars = aClass.getClassAttributes();
+        String superclassName;
+
+        pw.println();
+        pw.println("public void unmarshal(DataInputStream dis)");
+        pw.println("{");
+        pw.flush();
+
+        superclassName = aClass.getParentClass();
+        if (!(superclassName.equalsIgnoreCase("root"))) {
+            pw.println("     super.unmarshal(dis);\n");
+        }
+        List lazyIvars = aClass.getClassAttributes();
+        for (int idx = 0; idx < lazyIvars.size(); idx++) {
+            this.writeLazyReset(pw, (ClassAttribute) lazyIvars.get(idx));
+        }
+
+        pw.println("    try \n    {");
+        this.writeOrderBuffer(pw, aClass);
+
+        // Loop through the class attributes, generating the output for each.
         ivars = aClass.getClassAttributes();
         for (int idx = 0; idx < ivars.size(); idx++) {
             ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
@@ -973,16 +2651,22 @@ public class JavaGenerator extends Generator {
             if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
                 String marshalType = unmarshalTypes.getProperty(anAttribute.getType());
                 String capped = this.initialCap(marshalType);
+                this.writeStreamFill(pw, "       ", marshalType.equalsIgnoreCase("UnsignedLong") ? "Long" : capped);
                 if (marshalType.equalsIgnoreCase("UnsignedByte")) {
-                    pw.println("       " + anAttribute.getName() + " = (short)dis.read" + capped + "();");
+                    pw.println("       " + anAttribute.getName() + " = (short)" + this.streamRead(capped) + ";");
                 } else if (marshalType.equalsIgnoreCase("UnsignedShort")) {
-                    pw.println("       " + anAttribute.getName() + " = (int)dis.read" + capped + "();");
+                    pw.println("       " + anAttribute.getName() + " = (int)" + this.streamRead(capped) + ";");
                 } else if (marshalType.equalsIgnoreCase("UnsignedLong")) {
-                    pw.println("       " + anAttribute.getName() + " = (int)dis.readLong" + "();"); // ^^^This is wrong;
-                                                                                                    // need to read
-                                                                                                    // unsigned here
+                    pw.println("       " + anAttribute.getName() + " = (int)" + this.streamRead("Long") + ";"); // ^^^This
+                                                                                                                // is
+                                                                                                                // wrong;
+                                                                                                                // need
+                                                                                                                // to
+                                                                                                                // read
+                                                                                                                // unsigned
+                                                                                                                // here
                 } else {
-                    pw.println("       " + anAttribute.getName() + " = dis.read" + capped + "();");
+                    pw.println("       " + anAttribute.getName() + " = " + this.streamRead(capped) + ";");
                 }
                 pw.flush();
             }
@@ -995,7 +2679,8 @@ public class JavaGenerator extends Generator {
             }
 
             // Write out the method call to unmarshal a fixed length list, aka an array.
-            if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)) {
+            if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
+                    && !this.writeBulkArrayTransfer(pw, anAttribute, "read", "dis")) {
                 pw.println("       for(int idx = 0; idx < " + anAttribute.getName() + ".length; idx++)");
                 pw.println("       {");
 
@@ -1011,14 +2696,18 @@ public class JavaGenerator extends Generator {
                 } else // It's a primitive
                 {
                     String capped = this.initialCap(marshalType);
-                    pw.println("                " + anAttribute.getName() + "[idx] = dis.read" + capped + "();");
+                    this.writeStreamFill(pw, "                ", capped);
+                    pw.println("                " + anAttribute.getName() + "[idx] = " + this.streamRead(capped) + ";");
                 }
 
                 pw.println("       } // end of array unmarshaling");
             } // end of array unmarshalling
 
             // Unmarshall a variable length array.
-            if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)) {
+            if (reuseOnUnmarshal && (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+                    && marshalTypes.getProperty(anAttribute.getType()) == null) {
+                this.writeReusingListUnmarshal(pw, anAttribute, "dis");
+            } else if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)) {
                 pw.println("       for(int idx = 0; idx < " + anAttribute.getCountFieldName() + "; idx++)");
                 pw.println("       {");
 
@@ -1051,6 +2740,46 @@ public class JavaGenerator extends Generator {
 
     }
 
+    /**
+     * Unmarshals a variable length list of classes into the objects already in the list. The list is cut to the count
+     * read, with the extra objects kept in the spares list, and grown from the spares before allocating. Once a reused
+     * instance has seen its largest list nothing more is allocated.
+     *
+     * @param source
+     *            name of the variable to unmarshal from, dis or buff
+     */
+    private void writeReusingListUnmarshal(PrintWriter pw, ClassAttribute anAttribute, String source) {
+        String list = anAttribute.getName();
+        String spares = anAttribute.getName() + "Spares";
+        String type = anAttribute.getType();
+        String count = anAttribute.getCountFieldName();
+
+        pw.println("       if(" + spares + " == null)");
+        pw.println("       {");
+        pw.println("           " + spares + " = new ArrayList< " + type + " >();");
+        pw.println("       }");
+        pw.println("       while(" + list + ".size() > " + count + ")");
+        pw.println("       {");
+        pw.println("           " + spares + ".add(" + list + ".remove(" + list + ".size() - 1));");
+        pw.println("       }");
+        pw.println("       for(int idx = 0; idx < " + count + "; idx++)");
+        pw.println("       {");
+        pw.println("           " + type + " anX;");
+        pw.println("           if(idx < " + list + ".size())");
+        pw.println("           {");
+        pw.println("               anX = " + list + ".get(idx);");
+        pw.println("           }");
+        pw.println("           else");
+        pw.println("           {");
+        pw.println("               anX = " + spares + ".isEmpty() ? new " + type + "() : " + spares + ".remove("
+                + spares + ".size() - 1);");
+        pw.println("               " + list + ".add(anX);");
+        pw.println("           }");
+        pw.println("           anX.unmarshal(" + source + ");");
+        pw.println("       }");
+        pw.println();
+    }
+
     private void writeMarshalMethodWithByteBuffer(PrintWriter pw, GeneratedClass aClass) {
         List ivars = aClass.getClassAttributes();
 
@@ -1065,6 +2794,7 @@ public class JavaGenerator extends Generator {
         pw.println(" */");
         pw.println("public void marshal(java.nio.ByteBuffer buff)");
         pw.println("{");
+        this.writeMaterializeCall(pw, "       ");
 
         // If we're a sublcass of another class, we should first call super
         // to make sure the superclass's ivars are marshaled out.
@@ -1084,108 +2814,121 @@ public class JavaGenerator extends Generator {
                 continue;
             }
 
-            // Write out a method call to serialize a primitive type
-            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
-                String marshalType = marshalTypes.getProperty(anAttribute.getType());
-                String capped = this.initialCap(marshalType);
-                if (capped.equals("Byte")) {
-                    capped = ""; // ByteBuffer just has put() for bytesf
-                }
+            this.writeBufferMarshal(pw, anAttribute);
+        } // End of loop through the ivars for a marshal method
 
-                // If we're a normal primitivetype, marshal out directly; otherwise, marshall out
-                // the list length.
-                if (anAttribute.getIsDynamicListLengthField() == false) {
-                    // pw.println(" dos.write" + capped + "( (" + marshalType + ")" + anAttribute.getName() + ");");
-                    pw.println("       buff.put" + capped + "( (" + marshalType + ")" + anAttribute.getName() + ");");
-                } else {
-                    ClassAttribute listAttribute = anAttribute.getDynamicListClassAttribute();
-                    // pw.println(" dos.write" + capped + "( (" + marshalType + ")" + listAttribute.getName() +
-                    // ".size());");
-                    pw.println("       buff.put" + capped + "( (" + marshalType + ")" + listAttribute.getName()
-                            + ".size());");
-                }
+        // pw.println(" } // end try \n catch(Exception e)");
+        // pw.println(" { \n System.out.println(e);}");
+        pw.println("    } // end of marshal method");
+    }
 
+    /**
+     * Writes the code that marshals one attribute to buff, for marshal(ByteBuffer) and marshalChanged()
+     */
+    private void writeBufferMarshal(PrintWriter pw, ClassAttribute anAttribute) {
+        // Write out a method call to serialize a primitive type
+        if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
+            String marshalType = marshalTypes.getProperty(anAttribute.getType());
+            String capped = this.initialCap(marshalType);
+            if (capped.equals("Byte")) {
+                capped = ""; // ByteBuffer just has put() for bytesf
             }
 
-            // Write out a method call to serialize a class.
-            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
-                String marshalType = anAttribute.getType();
-
-                // pw.println(" " + anAttribute.getName() + ".marshal(dos);" );
-                pw.println("       " + anAttribute.getName() + ".marshal(buff);");
+            // If we're a normal primitivetype, marshal out directly; otherwise, marshall out
+            // the list length.
+            if (anAttribute.getIsDynamicListLengthField() == false) {
+                // pw.println(" dos.write" + capped + "( (" + marshalType + ")" + anAttribute.getName() + ");");
+                pw.println("       buff.put" + capped + "( (" + marshalType + ")" + anAttribute.getName() + ");");
+            } else {
+                ClassAttribute listAttribute = anAttribute.getDynamicListClassAttribute();
+                // pw.println(" dos.write" + capped + "( (" + marshalType + ")" + listAttribute.getName() +
+                // ".size());");
+                pw.println(
+                        "       buff.put" + capped + "( (" + marshalType + ")" + listAttribute.getName() + ".size());");
             }
 
-            // Write out the method call to marshal a fixed length list, aka an array.
-            if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)) {
-                pw.println();
-                pw.println("       for(int idx = 0; idx < " + anAttribute.getName() + ".length; idx++)");
-                pw.println("       {");
+        }
 
-                // This is some sleaze. We're an array, but an array of what? We could be either a
-                // primitive or a class. We need to figure out which. This is done via the expedient
-                // but not very reliable way of trying to do a lookup on the type. If we don't find
-                // it in our map of primitives to marshal types, we assume it is a class.
-                String marshalType = marshalTypes.getProperty(anAttribute.getType());
+        // Write out a method call to serialize a class.
+        if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
+            String marshalType = anAttribute.getType();
 
-                if (anAttribute.getUnderlyingTypeIsPrimitive()) {
-                    String capped = this.initialCap(marshalType);
-                    if (capped.equals("Byte")) {
-                        capped = ""; // ByteBuffer just has put() for bytesf
-                    }
-                    // pw.println(" dos.write" + capped + "(" + anAttribute.getName() + "[idx]);");
-                    pw.println("           buff.put" + capped + "((" + marshalType + ")" + anAttribute.getName()
-                            + "[idx]);"); // have to cast to right type
-                } else {
-                    // pw.println(" " + anAttribute.getName() + "[idx].marshal(dos);" );
-                    pw.println("           " + anAttribute.getName() + "[idx].marshal(buff);");
-                }
+            // pw.println(" " + anAttribute.getName() + ".marshal(dos);" );
+            pw.println("       " + anAttribute.getName() + ".marshal(buff);");
+        }
 
-                pw.println("       } // end of array marshaling");
-                pw.println();
+        // Write out the method call to marshal a fixed length list, aka an array.
+        if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
+                && !this.writeBulkArrayTransfer(pw, anAttribute, "put", "buff")) {
+            pw.println();
+            pw.println("       for(int idx = 0; idx < " + anAttribute.getName() + ".length; idx++)");
+            pw.println("       {");
+
+            // This is some sleaze. We're an array, but an array of what? We could be either a
+            // primitive or a class. We need to figure out which. This is done via the expedient
+            // but not very reliable way of trying to do a lookup on the type. If we don't find
+            // it in our map of primitives to marshal types, we assume it is a class.
+            String marshalType = marshalTypes.getProperty(anAttribute.getType());
+
+            if (anAttribute.getUnderlyingTypeIsPrimitive()) {
+                String capped = this.initialCap(marshalType);
+                if (capped.equals("Byte")) {
+                    capped = ""; // ByteBuffer just has put() for bytesf
+                }
+                // pw.println(" dos.write" + capped + "(" + anAttribute.getName() + "[idx]);");
+                pw.println(
+                        "           buff.put" + capped + "((" + marshalType + ")" + anAttribute.getName() + "[idx]);"); // have
+                                                                                                                        // to
+                                                                                                                        // cast
+                                                                                                                        // to
+                                                                                                                        // right
+                                                                                                                        // type
+            } else {
+                // pw.println(" " + anAttribute.getName() + "[idx].marshal(dos);" );
+                pw.println("           " + anAttribute.getName() + "[idx].marshal(buff);");
             }
 
-            // Write out a section of code to marshal a variable length list. The code should look like
-            //
-            // for(int idx = 0; idx < attrName.size(); idx++)
-            // { anAttribute.marshal(dos);
-            // }
-            //
-            if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)) {
-                pw.println();
-                pw.println("       for(int idx = 0; idx < " + anAttribute.getName() + ".size(); idx++)");
-                pw.println("       {");
+            pw.println("       } // end of array marshaling");
+            pw.println();
+        }
 
-                // This is some sleaze. We're an array, but an array of what? We could be either a
-                // primitive or a class. We need to figure out which. This is done via the expedient
-                // but not very reliable way of trying to do a lookup on the type. If we don't find
-                // it in our map of primitives to marshal types, we assume it is a class.
-                String marshalType = marshalTypes.getProperty(anAttribute.getType());
+        // Write out a section of code to marshal a variable length list. The code should look like
+        //
+        // for(int idx = 0; idx < attrName.size(); idx++)
+        // { anAttribute.marshal(dos);
+        // }
+        //
+        if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)) {
+            pw.println();
+            pw.println("       for(int idx = 0; idx < " + anAttribute.getName() + ".size(); idx++)");
+            pw.println("       {");
 
-                if (anAttribute.getUnderlyingTypeIsPrimitive()) {
-                    String capped = this.initialCap(marshalType);
-                    if (capped.equals("Byte")) {
-                        capped = ""; // ByteBuffer just uses put() for bytes
-                    }
-                    // pw.println(" dos.write" + capped + "(" + anAttribute.getName() + ");");
-                    pw.println("           buff.put" + capped + "(" + anAttribute.getName() + ");");
-                } else {
-                    // pw.println(" " + anAttribute.getType() + " a" + initialCap(anAttribute.getType() + " = (" +
-                    // anAttribute.getType() + ")" +
-                    // anAttribute.getName() + ".get(idx);"));
-                    // pw.println(" a" + initialCap(anAttribute.getType()) + ".marshal(dos);" );
-                    pw.println("            " + anAttribute.getType() + " a" + initialCap(anAttribute.getType() + " = ("
-                            + anAttribute.getType() + ")" + anAttribute.getName() + ".get(idx);"));
-                    pw.println("            a" + initialCap(anAttribute.getType()) + ".marshal(buff);");
-                }
+            // This is some sleaze. We're an array, but an array of what? We could be either a
+            // primitive or a class. We need to figure out which. This is done via the expedient
+            // but not very reliable way of trying to do a lookup on the type. If we don't find
+            // it in our map of primitives to marshal types, we assume it is a class.
+            String marshalType = marshalTypes.getProperty(anAttribute.getType());
 
-                pw.println("       } // end of list marshalling");
-                pw.println();
+            if (anAttribute.getUnderlyingTypeIsPrimitive()) {
+                String capped = this.initialCap(marshalType);
+                if (capped.equals("Byte")) {
+                    capped = ""; // ByteBuffer just uses put() for bytes
+                }
+                // pw.println(" dos.write" + capped + "(" + anAttribute.getName() + ");");
+                pw.println("           buff.put" + capped + "(" + anAttribute.getName() + ");");
+            } else {
+                // pw.println(" " + anAttribute.getType() + " a" + initialCap(anAttribute.getType() + " = (" +
+                // anAttribute.getType() + ")" +
+                // anAttribute.getName() + ".get(idx);"));
+                // pw.println(" a" + initialCap(anAttribute.getType()) + ".marshal(dos);" );
+                pw.println("            " + anAttribute.getType() + " a" + initialCap(anAttribute.getType() + " = ("
+                        + anAttribute.getType() + ")" + anAttribute.getName() + ".get(idx);"));
+                pw.println("            a" + initialCap(anAttribute.getType()) + ".marshal(buff);");
             }
-        } // End of loop through the ivars for a marshal method
 
-        // pw.println(" } // end try \n catch(Exception e)");
-        // pw.println(" { \n System.out.println(e);}");
-        pw.println("    } // end of marshal method");
+            pw.println("       } // end of list marshalling");
+            pw.println();
+        }
     }
 
     private void writeUnmarshallMethodWithByteBuffer(PrintWriter pw, GeneratedClass aClass) {
@@ -1207,6 +2950,10 @@ public class JavaGenerator extends Generator {
         if (!(superclassName.equalsIgnoreCase("root"))) {
             pw.println("       super.unmarshal(buff);\n");
         }
+        if (this.hasLazyAttributes(aClass)) {
+            pw.println("       lazyBuffer = buff;");
+            pw.println("       lazyLimit = buff.limit();");
+        }
 
         // pw.println(" try \n {");
         // Loop through the class attributes, generating the output for each.
@@ -1219,63 +2966,82 @@ public class JavaGenerator extends Generator {
                 continue;
             }
 
-            // Write out a method call to deserialize a primitive type
-            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
-                String marshalType = unmarshalTypes.getProperty(anAttribute.getType());
-                String capped = this.initialCap(marshalType);
-                if (capped.equals("Byte")) {
-                    capped = "";
-                }
-                if (marshalType.equalsIgnoreCase("UnsignedByte")) {
-                    // pw.println(" " + anAttribute.getName() + " = (short)dis.read" + capped + "();");
-                    pw.println("       " + anAttribute.getName() + " = (short)(buff.get() & 0xFF);");
-                } else if (marshalType.equalsIgnoreCase("UnsignedShort")) {
-                    // pw.println(" " + anAttribute.getName() + " = (int)dis.read" + capped + "();");
-                    pw.println("       " + anAttribute.getName() + " = (int)(buff.getShort() & 0xFFFF);");
-                } else {
-                    // pw.println(" " + anAttribute.getName() + " = dis.read" + capped + "();");
-                    pw.println("       " + anAttribute.getName() + " = buff.get" + capped + "();");
-                }
-
+            // Lazily decoded members are skipped over, noting where they are
+            if (this.isLazy(anAttribute)) {
+                pw.println("       " + anAttribute.getName() + "Offset = buff.position();");
+                pw.println("       buff.position(buff.position() + " + this.lazySize(anAttribute) + ");");
+                continue;
             }
 
-            // Write out a method call to deserialize a class.
-            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
-                String marshalType = anAttribute.getType();
+            this.writeBufferUnmarshal(pw, anAttribute);
+        } // End of loop through ivars for writing the unmarshal method
 
-                // pw.println(" " + anAttribute.getName() + ".unmarshal(dis);" );
-                pw.println("       " + anAttribute.getName() + ".unmarshal(buff);");
-            }
+        // pw.println(" } // end try \n catch(Exception e)");
+        // pw.println(" { \n System.out.println(e); \n }");
+        pw.println(" } // end of unmarshal method \n");
 
-            // Write out the method call to unmarshal a fixed length list, aka an array.
-            if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)) {
-                pw.println("       for(int idx = 0; idx < " + anAttribute.getName() + ".length; idx++)");
-                pw.println("       {");
+    }
 
-                // This is some sleaze. We're an array, but an array of what? We could be either a
-                // primitive or a class. We need to figure out which. This is done via the expedient
-                // but not very reliable way of trying to do a lookup on the type. If we don't find
-                // it in our map of primitives to marshal types, we assume it is a class.
-                String marshalType = marshalTypes.getProperty(anAttribute.getType());
+    /**
+     * Writes the code that unmarshals one attribute from buff, for unmarshal(ByteBuffer), the methods that decode
+     * lazily and unmarshalChanged()
+     */
+    private void writeBufferUnmarshal(PrintWriter pw, ClassAttribute anAttribute) {
+        // Write out a method call to deserialize a primitive type
+        if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
+            String marshalType = unmarshalTypes.getProperty(anAttribute.getType());
+            String capped = this.initialCap(marshalType);
+            if (capped.equals("Byte")) {
+                capped = "";
+            }
+            if (marshalType.equalsIgnoreCase("UnsignedByte")) {
+                // pw.println(" " + anAttribute.getName() + " = (short)dis.read" + capped + "();");
+                pw.println("       " + anAttribute.getName() + " = (short)(buff.get() & 0xFF);");
+            } else if (marshalType.equalsIgnoreCase("UnsignedShort")) {
+                // pw.println(" " + anAttribute.getName() + " = (int)dis.read" + capped + "();");
+                pw.println("       " + anAttribute.getName() + " = (int)(buff.getShort() & 0xFFFF);");
+            } else {
+                // pw.println(" " + anAttribute.getName() + " = dis.read" + capped + "();");
+                pw.println("       " + anAttribute.getName() + " = buff.get" + capped + "();");
+            }
 
-                if (marshalType == null) // It's a class
-                {
-                    // pw.println(" " + anAttribute.getName() + "[idx].unmarshal(dis);" );
-                    pw.println("           " + anAttribute.getName() + "[idx].unmarshal(buff);");
-                } else // It's a primitive
-                {
-                    String capped = this.initialCap(marshalType);
-                    if (capped.equals("Byte")) {
-                        capped = "";
-                    }
-                    pw.println("                " + anAttribute.getName() + "[idx] = buff.get" + capped + "();");
+        }
+
+        // Write out the method call to unmarshal a fixed length list, aka an array.
+        if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
+                && !this.writeBulkArrayTransfer(pw, anAttribute, "get", "buff")) {
+            pw.println("       for(int idx = 0; idx < " + anAttribute.getName() + ".length; idx++)");
+            pw.println("       {");
+
+            // This is some sleaze. We're an array, but an array of what? We could be either a
+            // primitive or a class. We need to figure out which. This is done via the expedient
+            // but not very reliable way of trying to do a lookup on the type. If we don't find
+            // it in our map of primitives to marshal types, we assume it is a class.
+            String marshalType = marshalTypes.getProperty(anAttribute.getType());
+
+            if (marshalType == null) // It's a class
+            {
+                // pw.println(" " + anAttribute.getName() + "[idx].unmarshal(dis);" );
+                pw.println("           " + anAttribute.getName() + "[idx].unmarshal(buff);");
+            } else // It's a primitive
+            {
+                String capped = this.initialCap(marshalType);
+                if (capped.equals("Byte")) {
+                    capped = "";
                 }
+                pw.println("                " + anAttribute.getName() + "[idx] = buff.get" + capped + "();");
+            }
 
-                pw.println("       } // end of array unmarshaling");
-            } // end of array unmarshalling
+            pw.println("       } // end of array unmarshaling");
+        } // end of array unmarshalling
 
-            // Unmarshall a variable length array.
-            if ((anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)) {
+        if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
+            // pw.println(" " + anAttribute.getName() + ".unmarshal(dis);" );
+            pw.println("       " + anAttribute.getName() + ".unmarshal(buff);");
+        } else if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) {
+            if (reuseOnUnmarshal && marshalTypes.getProperty(anAttribute.getType()) == null) {
+                this.writeReusingListUnmarshal(pw, anAttribute, "buff");
+            } else {
                 pw.println("       for(int idx = 0; idx < " + anAttribute.getCountFieldName() + "; idx++)");
                 pw.println("       {");
 
@@ -1303,55 +3069,201 @@ public class JavaGenerator extends Generator {
                 pw.println("       }");
                 pw.println();
             } // end of unmarshalling a variable list
-
-        } // End of loop through ivars for writing the unmarshal method
-
-        // pw.println(" } // end try \n catch(Exception e)");
-        // pw.println(" { \n System.out.println(e); \n }");
-        pw.println(" } // end of unmarshal method \n");
-
+        }
     }
 
     /**
-     * Placed in the {@link Pdu} class, this method provides a convenient, though inefficient way to marshal a Pdu.
-     * Better is to reuse a ByteBuffer and pass it along to the similarly-named method, but still, there's something to
-     * be said for convenience.
-     *
-     * <pre>
-     * public byte[] marshal() {
-     *     byte[] data = new byte[getMarshalledSize()];
-     *     java.nio.ByteBuffer buff = java.nio.ByteBuffer.wrap(data);
-     *     marshal(buff);
-     *     return data;
-     * }
-     * </pre>
-     *
-     * @param pw
-     * @param aClass
+     * True if an attribute is decoded on first use: a class reference or list of classes whose size in the buffer is
+     * known without decoding it, so unmarshal can skip over it
      */
-    private void writeMarshalMethodToByteArray(PrintWriter pw, GeneratedClass aClass) {
-        pw.println();
-        pw.println("/**");
-        pw.println(" * A convenience method for marshalling to a byte array.");
-        pw.println(" * This is not as efficient as reusing a ByteBuffer, but it <em>is</em> easy.");
-        pw.println(" * @return a byte array with the marshalled {@link Pdu}");
-        pw.println(" * @since ??");
-        pw.println(" */");
-        pw.println("public byte[] marshal()");
-        pw.println("{");
-        pw.println("    byte[] data = new byte[getMarshalledSize()];");
-        pw.println("    java.nio.ByteBuffer buff = java.nio.ByteBuffer.wrap(data);");
-        pw.println("    marshal(buff);");
-        pw.println("    return data;");
-        pw.println("}");
+    private boolean isLazy(ClassAttribute anAttribute) {
+        if (!lazyUnmarshal || anAttribute.shouldSerialize == false) {
+            return false;
+        }
+        ProtocolLayout layout = model.getLayout();
+        switch (anAttribute.getAttributeKind()) {
+        case CLASSREF:
+            return layout.getSize(anAttribute) != ProtocolLayout.VARIABLE;
+        case VARIABLE_LIST:
+            return marshalTypes.getProperty(anAttribute.getType()) == null
+                    && layout.getElementSize(anAttribute) != ProtocolLayout.VARIABLE;
+        default:
+            return false;
+        }
+    }
 
+    private boolean hasLazyAttributes(GeneratedClass aClass) {
+        List ivars = aClass.getClassAttributes();
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            if (this.isLazy((ClassAttribute) ivars.get(idx))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Generate a constructor that takes a jaxb-equivalent object and returns an open-dis object
+     * Expression for the number of bytes a lazily decoded attribute takes up in the buffer
      */
-    public void writeJaxbObjectConstructor(PrintWriter pw, GeneratedClass aClass) {
-
+    private String lazySize(ClassAttribute anAttribute) {
+        ProtocolLayout layout = model.getLayout();
+        if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
+            return Integer.toString(layout.getSize(anAttribute));
+        }
+        return "(int) " + anAttribute.getCountFieldName() + " * " + layout.getElementSize(anAttribute);
+    }
+
+    /**
+     * Forgets that a lazily decoded attribute is waiting in the buffer, when it is set some other way
+     */
+    private void writeLazyReset(PrintWriter pw, ClassAttribute anAttribute) {
+        if (this.isLazy(anAttribute)) {
+            pw.println("   " + anAttribute.getName() + "Offset = -1;");
+        }
+    }
+
+    /**
+     * Writes a getter body that decodes the attribute first if it is still in the buffer
+     *
+     * @return false if the attribute isn't lazy, and nothing was written
+     */
+    private boolean writeLazyGetterBody(PrintWriter pw, ClassAttribute anAttribute) {
+        if (!this.isLazy(anAttribute)) {
+            return false;
+        }
+        pw.println("{");
+        pw.println("    if(" + anAttribute.getName() + "Offset >= 0)");
+        pw.println("    {");
+        pw.println("        decode" + this.initialCap(anAttribute.getName()) + "();");
+        pw.println("    }");
+        pw.println("    return " + anAttribute.getName() + ";");
+        pw.println("}");
+        return true;
+    }
+
+    /**
+     * Decodes whatever is still in the buffer before a method reads the fields directly
+     */
+    private void writeMaterializeCall(PrintWriter pw, String indent) {
+        if (lazyUnmarshal) {
+            pw.println(indent + "materialize();");
+        }
+    }
+
+    /**
+     * Writes what lazy unmarshalling needs: the buffer and the position of each lazy attribute in it, a method that
+     * decodes each one, and materialize(), which decodes any that are left. Every class has materialize(), so the other
+     * generated methods can call it without knowing where the lazy attributes are.
+     */
+    private void writeLazyMethods(PrintWriter pw, GeneratedClass aClass) {
+        boolean isRoot = aClass.getParentClass().equalsIgnoreCase("root");
+        List ivars = aClass.getClassAttributes();
+
+        if (this.hasLazyAttributes(aClass)) {
+            pw.println("/** The buffer this was last unmarshalled from, holding the members not decoded yet */");
+            pw.println("private transient java.nio.ByteBuffer lazyBuffer;");
+            pw.println();
+            pw.println(
+                    "/** The limit of lazyBuffer when this was unmarshalled, which the members are decoded up to */");
+            pw.println("private transient int lazyLimit;");
+            pw.println();
+        }
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            if (!this.isLazy(anAttribute)) {
+                continue;
+            }
+            String name = anAttribute.getName();
+            pw.println("/** Position of " + name + " in lazyBuffer, or -1 if it has been decoded or set */");
+            pw.println("private transient int " + name + "Offset = -1;");
+            pw.println();
+            pw.println("/** Decodes " + name + " from where it was in the buffer given to unmarshal() */");
+            pw.println("private void decode" + this.initialCap(name) + "()");
+            pw.println("{");
+            pw.println("       java.nio.ByteBuffer buff = lazyBuffer.duplicate().order(lazyBuffer.order());");
+            pw.println("       buff.limit(lazyLimit);");
+            pw.println("       buff.position(" + name + "Offset);");
+            pw.println("       " + name + "Offset = -1;");
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST
+                    && !reuseOnUnmarshal) {
+                pw.println("       " + name + ".clear();");
+            }
+            this.writeBufferUnmarshal(pw, anAttribute);
+            pw.println("}");
+            pw.println();
+        }
+
+        pw.println("/**");
+        pw.println(
+                " * Decodes the members that unmarshal(ByteBuffer) left in the buffer. Call it before the buffer is");
+        pw.println(" * reused if this object is kept; getters, marshal and equals call it as needed.");
+        pw.println(" */");
+        if (useHibernateAnnotations) {
+            pw.println("@Transient");
+        }
+        pw.println("public void materialize()");
+        pw.println("{");
+        if (!isRoot) {
+            pw.println("    super.materialize();");
+        }
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            if (this.isLazy(anAttribute)) {
+                pw.println("    if(" + anAttribute.getName() + "Offset >= 0)");
+                pw.println("    {");
+                pw.println("        decode" + this.initialCap(anAttribute.getName()) + "();");
+                pw.println("    }");
+            }
+        }
+        pw.println("}");
+        pw.println();
+    }
+
+    /**
+     * Placed in the {@link Pdu} class, this method provides a convenient, though inefficient way to marshal a Pdu.
+     * Better is to reuse a ByteBuffer and pass it along to the similarly-named method, but still, there's something to
+     * be said for convenience.
+     *
+     * <pre>
+     * public byte[] marshal() {
+     *     byte[] data = new byte[getMarshalledSize()];
+     *     java.nio.ByteBuffer buff = java.nio.ByteBuffer.wrap(data);
+     *     marshal(buff);
+     *     return data;
+     * }
+     * </pre>
+     *
+     * @param pw
+     * @param aClass
+     */
+    private void writeMarshalMethodToByteArray(PrintWriter pw, GeneratedClass aClass) {
+        pw.println();
+        pw.println("/**");
+        pw.println(" * A convenience method for marshalling to a byte array.");
+        pw.println(" * This is not as efficient as reusing a ByteBuffer, but it <em>is</em> easy.");
+        pw.println(" * @return a byte array with the marshalled {@link Pdu}");
+        pw.println(" * @since ??");
+        pw.println(" */");
+        pw.println("public byte[] marshal()");
+        pw.println("{");
+        pw.println("    byte[] data = new byte[getMarshalledSize()];");
+        if (littleEndian) {
+            pw.println(
+                    "    java.nio.ByteBuffer buff = java.nio.ByteBuffer.wrap(data).order(java.nio.ByteOrder.LITTLE_ENDIAN);");
+        } else {
+            pw.println("    java.nio.ByteBuffer buff = java.nio.ByteBuffer.wrap(data);");
+        }
+        pw.println("    marshal(buff);");
+        pw.println("    return data;");
+        pw.println("}");
+
+    }
+
+    /**
+     * Generate a constructor that takes a jaxb-equivalent object and returns an open-dis object
+     */
+    public void writeJaxbObjectConstructor(PrintWriter pw, GeneratedClass aClass) {
+
         // Write method head
         pw.println();
         pw.println("/** ");
@@ -1630,7 +3542,8 @@ public class JavaGenerator extends Generator {
             pw.println();
             pw.println(" /*");
             pw.println(
-                    "  * The equals method doesn't always work--mostly it works only on classes that consist only of primitives. Be careful.");
+                    "  * Compares the fields, and the fields of the classes and lists they hold. Floating point fields are equal if");
+            pw.println("  * their bits are, as with Float.equals(), so that equals agrees with hashCode.");
             pw.println("  */");
             pw.println("@Override");
             pw.println(" public boolean equals(Object obj)");
@@ -1655,6 +3568,7 @@ public class JavaGenerator extends Generator {
 
         writeEqualityImplMethod(pw, aClass); // Write impl for establishing
         // equality
+        writeHashCodeMethod(pw, aClass);
 
     }
 
@@ -1688,41 +3602,18 @@ public class JavaGenerator extends Generator {
             pw.println();
             pw.println("     final " + aClass.getName() + " rhs = (" + aClass.getName() + ")obj;");
             pw.println();
+            if (lazyUnmarshal) {
+                pw.println("     materialize();");
+                pw.println("     rhs.materialize();");
+                pw.println();
+            }
 
             for (int idx = 0; idx < aClass.getClassAttributes().size(); idx++) {
                 ClassAttribute anAttribute = (ClassAttribute) aClass.getClassAttributes().get(idx);
 
-                if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
-                    pw.println("     if( ! (" + anAttribute.getName() + " == rhs." + anAttribute.getName()
-                            + ")) ivarsEqual = false;");
-                }
-
-                if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
-                    pw.println("     if( ! (" + anAttribute.getName() + ".equals( rhs." + anAttribute.getName()
-                            + ") )) ivarsEqual = false;");
-                }
-
-                if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST) {
-                    pw.println();
-                    pw.println("     for(int idx = 0; idx < " + anAttribute.getListLength() + "; idx++)");
-                    pw.println("     {");
-                    pw.println("          if(!(" + anAttribute.getName() + "[idx] == rhs." + anAttribute.getName()
-                            + "[idx])) ivarsEqual = false;");
-                    pw.println("     }");
-                    pw.println();
-                }
-
-                if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) {
-                    pw.println();
-                    pw.println("     for(int idx = 0; idx < " + anAttribute.getName() + ".size(); idx++)");
-                    pw.println("     {");
-                    // pw.println(" " + anAttribute.getType() + " x = ("
-                    // + anAttribute.getType() + ")" + anAttribute.getName() +
-                    // ".get(idx);");
-                    pw.println("        if( ! ( " + anAttribute.getName() + ".get(idx).equals(rhs."
-                            + anAttribute.getName() + ".get(idx)))) ivarsEqual = false;");
-                    pw.println("     }");
-                    pw.println();
+                String same = this.sameValueTest(anAttribute, "rhs");
+                if (same != null) {
+                    pw.println("     if( ! (" + same + ")) ivarsEqual = false;");
                 }
 
             }
@@ -1740,6 +3631,399 @@ public class JavaGenerator extends Generator {
 
     }
 
+    /**
+     * The test that an attribute has the same value in this and other, as equalsImpl() and diff() compare it, or null
+     * for an attribute of a kind they don't compare
+     */
+    private String sameValueTest(ClassAttribute anAttribute, String other) {
+        String name = anAttribute.getName();
+        switch (anAttribute.getAttributeKind()) {
+        case PRIMITIVE:
+            String javaType = types.getProperty(anAttribute.getType());
+            if (javaType.equals("float")) {
+                return "Float.floatToIntBits(" + name + ") == Float.floatToIntBits(" + other + "." + name + ")";
+            }
+            if (javaType.equals("double")) {
+                return "Double.doubleToLongBits(" + name + ") == Double.doubleToLongBits(" + other + "." + name + ")";
+            }
+            return name + " == " + other + "." + name;
+        case FIXED_LIST:
+            return "java.util.Arrays.equals(" + name + ", " + other + "." + name + ")";
+        case CLASSREF:
+        case VARIABLE_LIST:
+            return name + ".equals(" + other + "." + name + ")";
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Writes hashCode(), built from the same fields that equalsImpl() compares
+     *
+     * @param pw
+     * @param aClass
+     */
+    private void writeHashCodeMethod(PrintWriter pw, GeneratedClass aClass) {
+        pw.println();
+        pw.println("@Override");
+        pw.println(" public int hashCode()");
+        pw.println(" {");
+        if (lazyUnmarshal) {
+            pw.println("     materialize();");
+        }
+        if (aClass.getParentClass().equalsIgnoreCase("root")) {
+            pw.println("     int result = 1;");
+        } else {
+            pw.println("     int result = super.hashCode();");
+        }
+
+        List ivars = aClass.getClassAttributes();
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            String name = anAttribute.getName();
+            String hash = null;
+
+            switch (anAttribute.getAttributeKind()) {
+            case PRIMITIVE:
+                String wrapper = this.initialCap(types.getProperty(anAttribute.getType()));
+                if (wrapper.equals("Int")) {
+                    wrapper = "Integer";
+                } else if (wrapper.equals("Char")) {
+                    wrapper = "Character";
+                }
+                hash = wrapper + ".hashCode(" + name + ")";
+                break;
+            case FIXED_LIST:
+                hash = "java.util.Arrays.hashCode(" + name + ")";
+                break;
+            case CLASSREF:
+            case VARIABLE_LIST:
+                hash = name + ".hashCode()";
+                break;
+            default:
+                continue;
+            }
+            pw.println("     result = 31 * result + " + hash + ";");
+        }
+        pw.println("     return result;");
+        pw.println(" }");
+    }
+
+    /**
+     * Writes equalsBytes() and hashBytes(), which compare and hash a marshalled instance in a buffer without
+     * unmarshalling it. The length comes from MARSHALLED_SIZE, or for a message of variable size from the length field
+     * in its header when a factory is generated; otherwise MarshalledBytes has to be given the length.
+     */
+    private void writeBytesMethods(PrintWriter pw, GeneratedClass aClass) {
+        ProtocolLayout layout = model.getLayout();
+        String name = aClass.getName();
+        String aLength;
+        String bLength;
+        String length;
+
+        if (!this.hasBytesMethods(aClass)) {
+            return;
+        }
+        if (layout.isFixedSize(aClass)) {
+            aLength = bLength = length = "MARSHALLED_SIZE";
+        } else {
+            aLength = "marshalledLengthAt(a, aOffset)";
+            bLength = "marshalledLengthAt(b, bOffset)";
+            length = "marshalledLengthAt(buff, offset)";
+
+            pw.println();
+            pw.println("/** The " + dispatchTable.getLengthAttribute().getName() + " of the " + name
+                    + " marshalled at offset in buff */");
+            pw.println("private static int marshalledLengthAt(java.nio.ByteBuffer buff, int offset)");
+            pw.println("{");
+            pw.println("    return (int) (" + this.viewRead(dispatchTable.getLengthAttribute().getType(),
+                    "offset + " + dispatchTable.getLengthOffset()) + ");");
+            pw.println("}");
+        }
+
+        pw.println();
+        pw.println("/**");
+        pw.println(" * True if the " + name
+                + " marshalled at aOffset in a has the same bytes as the one at bOffset in b.");
+        pw.println(" * Nothing is unmarshalled, and the buffers' positions are not changed.");
+        pw.println(" */");
+        pw.println(
+                "public static boolean equalsBytes(java.nio.ByteBuffer a, int aOffset, java.nio.ByteBuffer b, int bOffset)");
+        pw.println("{");
+        if (aLength.equals("MARSHALLED_SIZE")) {
+            pw.println("    return MarshalledBytes.equals(a, aOffset, b, bOffset, MARSHALLED_SIZE);");
+        } else {
+            pw.println("    int length = " + aLength + ";");
+            pw.println(
+                    "    return length == " + bLength + " && MarshalledBytes.equals(a, aOffset, b, bOffset, length);");
+        }
+        pw.println("}");
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Hash of the bytes of the " + name + " marshalled at offset in buff, the same for any two that");
+        pw.println(" * equalsBytes() finds equal. It is not the same as hashCode() of the unmarshalled " + name + ".");
+        pw.println(" */");
+        pw.println("public static int hashBytes(java.nio.ByteBuffer buff, int offset)");
+        pw.println("{");
+        pw.println("    return MarshalledBytes.hash(buff, offset, " + length + ");");
+        pw.println("}");
+        pw.println();
+    }
+
+    /**
+     * True if the class gets equalsBytes() and hashBytes(): it is of fixed size, or a message whose length the factory
+     * can read
+     */
+    private boolean hasBytesMethods(GeneratedClass aClass) {
+        return model.getLayout().isFixedSize(aClass)
+                || (dispatchTable != null && dispatchTable.getClassesByType().containsValue(aClass));
+    }
+
+    /**
+     * True if some class written in this run calls MarshalledBytes, so it has to be generated too
+     */
+    private boolean usesMarshalledBytes() {
+        for (Object aClass : this.getClassesToWrite()) {
+            if (this.hasBytesMethods((GeneratedClass) aClass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The attributes of a class that have a bit of their own in the masks diff() returns: those that are marshalled,
+     * apart from list lengths, which share the bit of their list
+     */
+    private List<ClassAttribute> getDeltaAttributes(GeneratedClass aClass) {
+        List<ClassAttribute> result = new ArrayList<ClassAttribute>();
+        List ivars = aClass.getClassAttributes();
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            if (anAttribute.shouldSerialize && !anAttribute.getIsDynamicListLengthField()) {
+                result.add(anAttribute);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Number of bits the superclasses of a class use in the masks diff() returns
+     */
+    private int getDeltaBitBase(GeneratedClass aClass) {
+        int base = 0;
+        for (GeneratedClass parent = model.getParent(aClass); parent != null; parent = model.getParent(parent)) {
+            base = base + this.getDeltaAttributes(parent).size();
+        }
+        return base;
+    }
+
+    /**
+     * Name of the constant for an attribute's bit in the masks diff() returns
+     */
+    private String changedConstant(ClassAttribute anAttribute) {
+        if (anAttribute.getIsDynamicListLengthField()) {
+            anAttribute = anAttribute.getDynamicListClassAttribute();
+        }
+        return "CHANGED_" + this.constantName(anAttribute.getName());
+    }
+
+    /**
+     * Writes diff(), which compares this with another instance field by field and returns a bit for each field that
+     * differs, and marshalDelta() and applyDelta(), which write and read the fields given by such a mask. A class
+     * reference or list is one field; it differs if anything in it does, and the whole of it is sent. The mask is a
+     * long, so a class and its superclasses can have at most 64 fields between them.
+     */
+    private void writeDeltaMethods(PrintWriter pw, GeneratedClass aClass) {
+        String name = aClass.getName();
+        boolean isRoot = aClass.getParentClass().equalsIgnoreCase("root");
+        List<ClassAttribute> deltaAttributes = this.getDeltaAttributes(aClass);
+        int base = this.getDeltaBitBase(aClass);
+
+        if (base + deltaAttributes.size() > 64) {
+            System.out.println("Not generating diff() for " + name + ": it has more than 64 fields");
+            return;
+        }
+
+        pw.println();
+        for (int idx = 0; idx < deltaAttributes.size(); idx++) {
+            ClassAttribute anAttribute = deltaAttributes.get(idx);
+            pw.println("/** Bit in the mask from diff() for " + anAttribute.getName() + " */");
+            pw.println(
+                    "public static final long " + this.changedConstant(anAttribute) + " = 1L << " + (base + idx) + ";");
+            pw.println();
+        }
+
+        pw.println("/**");
+        pw.println(" * Mask of the CHANGED_ bits of the fields that differ between this and rhs. A class reference or");
+        pw.println(
+                " * list differs if anything in it does. The fields of subclasses are only compared by their own diff().");
+        pw.println(" */");
+        pw.println("public long diff(" + name + " rhs)");
+        pw.println("{");
+        if (lazyUnmarshal) {
+            pw.println("    materialize();");
+            pw.println("    rhs.materialize();");
+        }
+        if (isRoot) {
+            pw.println("    long changed = 0;");
+        } else {
+            pw.println("    long changed = super.diff(rhs);");
+        }
+        for (int idx = 0; idx < deltaAttributes.size(); idx++) {
+            ClassAttribute anAttribute = deltaAttributes.get(idx);
+            pw.println("    if( ! (" + this.sameValueTest(anAttribute, "rhs") + ")) changed |= "
+                    + this.changedConstant(anAttribute) + ";");
+        }
+        pw.println("    return changed;");
+        pw.println("}");
+        pw.println();
+
+        if (isRoot) {
+            pw.println("/**");
+            pw.println(
+                    " * Writes the mask from diff() and then the fields in it, in the order marshal() writes them, so that");
+            pw.println(" * applyDelta() can bring an earlier copy up to date. A list is written with its length.");
+            pw.println(" */");
+            pw.println("public void marshalDelta(long changed, java.nio.ByteBuffer buff)");
+            pw.println("{");
+            pw.println("    buff.putLong(changed);");
+            pw.println("    marshalChanged(changed, buff);");
+            pw.println("}");
+            pw.println();
+            pw.println("/**");
+            pw.println(
+                    " * Reads what marshalDelta() wrote and sets the fields in it; the other fields are left as they are.");
+            pw.println(" * @return the mask of the fields that were set");
+            pw.println(" */");
+            pw.println("public long applyDelta(java.nio.ByteBuffer buff)");
+            pw.println("{");
+            pw.println("    long changed = buff.getLong();");
+            pw.println("    unmarshalChanged(changed, buff);");
+            pw.println("    return changed;");
+            pw.println("}");
+            pw.println();
+        }
+
+        List ivars = aClass.getClassAttributes();
+        pw.println("/** Writes the fields whose bits are set in changed, for marshalDelta() */");
+        pw.println("protected void marshalChanged(long changed, java.nio.ByteBuffer buff)");
+        pw.println("{");
+        this.writeMaterializeCall(pw, "    ");
+        if (!isRoot) {
+            pw.println("    super.marshalChanged(changed, buff);");
+        }
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            if (anAttribute.shouldSerialize) {
+                pw.println("    if((changed & " + this.changedConstant(anAttribute) + ") != 0)");
+                pw.println("    {");
+                this.writeBufferMarshal(pw, anAttribute);
+                pw.println("    }");
+            }
+        }
+        pw.println("}");
+        pw.println();
+
+        pw.println("/** Reads the fields whose bits are set in changed, for applyDelta() */");
+        pw.println("protected void unmarshalChanged(long changed, java.nio.ByteBuffer buff)");
+        pw.println("{");
+        this.writeMaterializeCall(pw, "    ");
+        if (!isRoot) {
+            pw.println("    super.unmarshalChanged(changed, buff);");
+        }
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            if (anAttribute.shouldSerialize) {
+                pw.println("    if((changed & " + this.changedConstant(anAttribute) + ") != 0)");
+                pw.println("    {");
+                if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST
+                        && !reuseOnUnmarshal) {
+                    pw.println("       " + anAttribute.getName() + ".clear();");
+                }
+                this.writeBufferUnmarshal(pw, anAttribute);
+                pw.println("    }");
+            }
+        }
+        pw.println("}");
+        pw.println();
+    }
+
+    /**
+     * Writes MarshalledBytes, which compares and hashes regions of ByteBuffers a long at a time. The generated code may
+     * run on Java 8, which has no Arrays.mismatch(), so the longs are compared with absolute getLong(); that allocates
+     * nothing and the JIT unrolls it.
+     */
+    private void writeMarshalledBytesClass(PrintWriter pw) {
+        String packageName = languageProperties.getProperty("package");
+
+        if (packageName != null) {
+            pw.println("package " + packageName + ";");
+        }
+        pw.println();
+        pw.println("import java.nio.ByteBuffer;");
+        pw.println("import java.nio.ByteOrder;");
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Compares and hashes marshalled messages where they are in a buffer, eight bytes at a time, so");
+        pw.println(" * that duplicates can be found without unmarshalling them. The bytes are compared, so buffers of");
+        pw.println(" * either byte order can be mixed. Positions and limits are not changed.");
+        pw.println(" */");
+        pw.println("public final class MarshalledBytes");
+        pw.println("{");
+        pw.println("   private MarshalledBytes()");
+        pw.println("   {");
+        pw.println("   }");
+        pw.println();
+        pw.println(
+                "   /** True if the length bytes at aOffset in a are the same as the length bytes at bOffset in b */");
+        pw.println("   public static boolean equals(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length)");
+        pw.println("   {");
+        pw.println("       boolean swap = a.order() != b.order();");
+        pw.println("       int idx = 0;");
+        pw.println("       for(; idx <= length - 8; idx += 8)");
+        pw.println("       {");
+        pw.println("           long word = b.getLong(bOffset + idx);");
+        pw.println("           if(a.getLong(aOffset + idx) != (swap ? Long.reverseBytes(word) : word))");
+        pw.println("           {");
+        pw.println("               return false;");
+        pw.println("           }");
+        pw.println("       }");
+        pw.println("       for(; idx < length; idx++)");
+        pw.println("       {");
+        pw.println("           if(a.get(aOffset + idx) != b.get(bOffset + idx))");
+        pw.println("           {");
+        pw.println("               return false;");
+        pw.println("           }");
+        pw.println("       }");
+        pw.println("       return true;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** Hash of the length bytes at offset in buff, the same whatever the byte order of buff */");
+        pw.println("   public static int hash(ByteBuffer buff, int offset, int length)");
+        pw.println("   {");
+        pw.println("       boolean swap = buff.order() == ByteOrder.LITTLE_ENDIAN;");
+        pw.println("       int hash = 1;");
+        pw.println("       int idx = 0;");
+        pw.println("       for(; idx <= length - 8; idx += 8)");
+        pw.println("       {");
+        pw.println("           long word = buff.getLong(offset + idx);");
+        pw.println("           if(swap)");
+        pw.println("           {");
+        pw.println("               word = Long.reverseBytes(word);");
+        pw.println("           }");
+        pw.println("           hash = 31 * hash + (int) (word ^ (word >>> 32));");
+        pw.println("       }");
+        pw.println("       for(; idx < length; idx++)");
+        pw.println("       {");
+        pw.println("           hash = 31 * hash + buff.get(offset + idx);");
+        pw.println("       }");
+        pw.println("       return hash;");
+        pw.println("   }");
+        pw.println("}");
+        pw.flush();
+    }
+
     /**
      * This should be needed only for the XmlRoot class(es).
      *
@@ -1768,4 +4052,414 @@ public class JavaGenerator extends Generator {
         }
 
     }
+
+    /**
+     * The view's version of writeTextMethods(), reading the text from the buffer
+     */
+    private void writeViewTextMethods(PrintWriter pw, ClassAttribute anAttribute, String start) {
+        String name = anAttribute.getName();
+        String capped = this.initialCap(name);
+
+        pw.println("   private ByteText.Buffer " + name + "Text;");
+        pw.println();
+        pw.println("   /** " + name + " as text, read from the buffer; the same object is returned on every call */");
+        pw.println("   public ByteText get" + capped + "Text()");
+        pw.println("   {");
+        pw.println("      if(" + name + "Text == null)");
+        pw.println("      {");
+        pw.println("         " + name + "Text = new ByteText.Buffer();");
+        pw.println("      }");
+        pw.println("      " + name + "Text.wrap(buff, " + start + ", " + anAttribute.getListLength() + ");");
+        pw.println("      return " + name + "Text;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   /** " + name + " as a String, the same instance as last time if the bytes are in the cache */");
+        pw.println("   public String get" + capped + "String()");
+        pw.println("   {");
+        pw.println("      return get" + capped + "Text().cachedString();");
+        pw.println("   }");
+        pw.println();
+    }
+
+    /**
+     * Generate the flyweight view of one class: XxxView wraps a ByteBuffer and an offset, and reads each field in place
+     * without unmarshalling the object. Fields up to the first variable length field are at offsets computed here; the
+     * ones after it are found by skipping over the variable length data at run time.
+     */
+    private void writeViewClass(PrintWriter pw, GeneratedClass aClass) {
+        String name = aClass.getName();
+        String viewName = name + "View";
+        boolean isRoot = aClass.getParentClass().equalsIgnoreCase("root");
+
+        String packageName = languageProperties.getProperty("package");
+        if (packageName != null) {
+            pw.println("package " + packageName + ";");
+            pw.println();
+        }
+
+        pw.println("/**");
+        pw.println(
+                " * Zero-copy view of a " + name + " in a ByteBuffer. The fields are read in place, in the buffer's");
+        pw.println(" * byte order, without unmarshalling a " + name + ". A view can be pointed at one " + name
+                + " after another with wrap(),");
+        pw.println(
+                " * and the view returned for a nested record or list element is reused, so reading fields allocates");
+        pw.println(" * nothing. A returned view is only valid until the next call on the view that returned it.");
+        pw.println(" *");
+        pw.println(" * Generated from the same description as " + name + "; don't edit.");
+        pw.println(" */");
+        if (isRoot) {
+            pw.println("public class " + viewName);
+        } else {
+            pw.println("public class " + viewName + " extends " + aClass.getParentClass() + "View");
+        }
+        pw.println("{");
+
+        if (isRoot) {
+            pw.println("   /** The buffer the " + name + " is read from */");
+            pw.println("   protected java.nio.ByteBuffer buff;");
+            pw.println();
+            pw.println("   /** Position of the first byte of the " + name + " in the buffer */");
+            pw.println("   protected int offset;");
+            pw.println();
+        }
+
+        List ivars = aClass.getClassAttributes();
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            if (anAttribute.shouldSerialize && this.viewElementIsClass(anAttribute)) {
+                pw.println("   private " + anAttribute.getType() + "View " + anAttribute.getName() + "View;");
+                pw.println();
+            }
+        }
+
+        pw.println("   public " + viewName + "()");
+        pw.println("   {");
+        pw.println("   }");
+        pw.println();
+        pw.println("   public " + viewName + "(java.nio.ByteBuffer buff, int offset)");
+        pw.println("   {");
+        if (isRoot) {
+            pw.println("      wrap(buff, offset);");
+        } else {
+            pw.println("      super(buff, offset);");
+        }
+        pw.println("   }");
+        pw.println();
+
+        // Lists whose elements vary in size remember the last element looked up, until the view is moved
+        List<String> cachedLists = new ArrayList<String>();
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            if (anAttribute.shouldSerialize && this.viewElementIsClass(anAttribute)
+                    && anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.CLASSREF
+                    && model.getLayout().getElementSize(anAttribute) < 0) {
+                cachedLists.add(anAttribute.getName());
+            }
+        }
+
+        if (isRoot || !cachedLists.isEmpty()) {
+            if (isRoot) {
+                pw.println("   /** Points the view at a " + name + " that starts at offset in buff */");
+            } else {
+                pw.println("   @Override");
+            }
+            pw.println("   public void wrap(java.nio.ByteBuffer buff, int offset)");
+            pw.println("   {");
+            if (isRoot) {
+                pw.println("      this.buff = buff;");
+                pw.println("      this.offset = offset;");
+            } else {
+                pw.println("      super.wrap(buff, offset);");
+            }
+            for (String aList : cachedLists) {
+                pw.println("      " + aList + "Index = -1;");
+            }
+            pw.println("   }");
+            pw.println();
+        }
+
+        if (isRoot) {
+            pw.println("   public java.nio.ByteBuffer getBuffer()");
+            pw.println("   {");
+            pw.println("      return buff;");
+            pw.println("   }");
+            pw.println();
+            pw.println("   public int getOffset()");
+            pw.println("   {");
+            pw.println("      return offset;");
+            pw.println("   }");
+            pw.println();
+        }
+
+        // Where the next field starts: base plus a constant. The base is the start of the object until a variable
+        // length field is passed, then a method that finds the end of that field.
+        String base = "offset";
+        int constant = 0;
+        if (!isRoot) {
+            int parentSize = model.getLayout().getMarshalledSize(model.getParent(aClass));
+            if (parentSize >= 0) {
+                constant = parentSize;
+            } else {
+                base = "offset + super.getMarshalledSize()";
+            }
+        }
+
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            if (anAttribute.shouldSerialize == false) {
+                pw.println("   // attribute " + anAttribute.getName() + " marked as not serialized");
+                pw.println();
+                continue;
+            }
+
+            String start = this.viewPosition(base, constant);
+            String capped = this.initialCap(anAttribute.getName());
+            int size = -1;
+            String sizeExpression = null;
+
+            // A list's comment goes on its element accessor, after the count
+            boolean isList = anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST
+                    || anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST;
+            if (anAttribute.getComment() != null && !isList) {
+                pw.println("   /** " + anAttribute.getComment() + " */");
+            }
+
+            switch (anAttribute.getAttributeKind()) {
+            case PRIMITIVE:
+                pw.println("   public " + types.getProperty(anAttribute.getType()) + " get" + capped + "()");
+                pw.println("   {");
+                pw.println("      return " + this.viewRead(anAttribute.getType(), start) + ";");
+                pw.println("   }");
+                pw.println();
+                size = model.getLayout().getSize(anAttribute);
+                break;
+
+            case CLASSREF:
+                pw.println("   public " + anAttribute.getType() + "View get" + capped + "()");
+                pw.println("   {");
+                pw.println("      return " + anAttribute.getName() + "ViewAt(" + start + ");");
+                pw.println("   }");
+                pw.println();
+                this.writeViewAt(pw, anAttribute);
+                size = model.getLayout().getSize(anAttribute);
+                sizeExpression = "get" + capped + "().getMarshalledSize()";
+                break;
+
+            case FIXED_LIST:
+            case VARIABLE_LIST:
+                boolean fixedList = anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST;
+                String countMethod = this.viewCountMethod(aClass, anAttribute);
+                pw.println("   /** Number of elements in " + anAttribute.getName() + " */");
+                pw.println("   public int " + countMethod + "()");
+                pw.println("   {");
+                if (fixedList) {
+                    pw.println("      return " + anAttribute.getListLength() + ";");
+                } else {
+                    pw.println("      return (int) get" + this.initialCap(anAttribute.getCountFieldName()) + "();");
+                }
+                pw.println("   }");
+                pw.println();
+
+                int elementSize = model.getLayout().getElementSize(anAttribute);
+                if (this.isText(anAttribute)) {
+                    this.writeViewTextMethods(pw, anAttribute, start);
+                }
+                if (anAttribute.getComment() != null) {
+                    pw.println("   /** " + anAttribute.getComment() + " */");
+                }
+                if (!this.viewElementIsClass(anAttribute)) {
+                    pw.println(
+                            "   public " + types.getProperty(anAttribute.getType()) + " get" + capped + "(int index)");
+                    pw.println("   {");
+                    pw.println("      return "
+                            + this.viewRead(anAttribute.getType(), start + " + index * " + elementSize) + ";");
+                    pw.println("   }");
+                    pw.println();
+                } else {
+                    pw.println("   public " + anAttribute.getType() + "View get" + capped + "(int index)");
+                    pw.println("   {");
+                    if (elementSize >= 0) {
+                        pw.println("      return " + anAttribute.getName() + "ViewAt(" + start + " + index * "
+                                + elementSize + ");");
+                    } else {
+                        pw.println("      return " + anAttribute.getName() + "ViewAt(" + anAttribute.getName()
+                                + "PositionOf(index));");
+                    }
+                    pw.println("   }");
+                    pw.println();
+                    this.writeViewAt(pw, anAttribute);
+                    if (elementSize < 0) {
+                        this.writeViewPositionOf(pw, anAttribute, start);
+                    }
+                }
+
+                if (elementSize >= 0) {
+                    if (fixedList) {
+                        size = anAttribute.getListLength() * elementSize;
+                    } else {
+                        sizeExpression = countMethod + "() * " + elementSize;
+                    }
+                } else {
+                    pw.println("   /** Position just after " + anAttribute.getName() + " */");
+                    pw.println("   private int endOf" + capped + "()");
+                    pw.println("   {");
+                    pw.println("      return " + anAttribute.getName() + "PositionOf(" + countMethod + "());");
+                    pw.println("   }");
+                    pw.println();
+                    base = "endOf" + capped + "()";
+                    constant = 0;
+                    continue;
+                }
+                break;
+
+            default:
+                break;
+            }
+
+            if (size >= 0) {
+                constant = constant + size;
+            } else {
+                pw.println("   /** Position just after " + anAttribute.getName() + " */");
+                pw.println("   private int endOf" + capped + "()");
+                pw.println("   {");
+                pw.println("      return " + start + " + " + sizeExpression + ";");
+                pw.println("   }");
+                pw.println();
+                base = "endOf" + capped + "()";
+                constant = 0;
+            }
+        }
+
+        pw.println("   /** Number of bytes the " + name + " takes up in the buffer */");
+        pw.println("   public int getMarshalledSize()");
+        pw.println("   {");
+        if (base.equals("offset")) {
+            pw.println("      return " + constant + ";");
+        } else {
+            pw.println("      return " + this.viewPosition(base, constant) + " - offset;");
+        }
+        pw.println("   }");
+        pw.println("}");
+        pw.flush();
+        pw.close();
+    }
+
+    /**
+     * Name of the view method that gives the number of elements in a list, getXxxCount(), or getXxxElementCount() if
+     * the class or a superclass has a field whose getter is already called getXxxCount(). It returns an int even when
+     * the count field is an unsigned int, so that it can be used in positions.
+     */
+    private String viewCountMethod(GeneratedClass aClass, ClassAttribute anAttribute) {
+        String method = "get" + this.initialCap(anAttribute.getName()) + "Count";
+        for (GeneratedClass owner = aClass; owner != null; owner = model.getParent(owner)) {
+            List ivars = owner.getClassAttributes();
+            for (int idx = 0; idx < ivars.size(); idx++) {
+                ClassAttribute other = (ClassAttribute) ivars.get(idx);
+                if (("get" + this.initialCap(other.getName())).equals(method)) {
+                    return "get" + this.initialCap(anAttribute.getName()) + "ElementCount";
+                }
+            }
+        }
+        return method;
+    }
+
+    /**
+     * Writes the method that finds an element of a list whose elements vary in size. It walks from the last element
+     * looked up when that comes before the one wanted, so reading the list in order is linear rather than quadratic;
+     * wrap() forgets the last element.
+     */
+    private void writeViewPositionOf(PrintWriter pw, ClassAttribute anAttribute, String start) {
+        String list = anAttribute.getName();
+        pw.println("   /** Index and position of the element of " + list + " looked up last, or -1 */");
+        pw.println("   private int " + list + "Index = -1;");
+        pw.println();
+        pw.println("   private int " + list + "Position;");
+        pw.println();
+        pw.println("   /** Position of element index of " + list + ", or of the end of the list for the count */");
+        pw.println("   private int " + list + "PositionOf(int index)");
+        pw.println("   {");
+        pw.println("      int idx = 0;");
+        pw.println("      int position;");
+        pw.println("      if(" + list + "Index >= 0 && " + list + "Index <= index)");
+        pw.println("      {");
+        pw.println("         idx = " + list + "Index;");
+        pw.println("         position = " + list + "Position;");
+        pw.println("      }");
+        pw.println("      else");
+        pw.println("      {");
+        pw.println("         position = " + start + ";");
+        pw.println("      }");
+        pw.println("      for(; idx < index; idx++)");
+        pw.println("      {");
+        pw.println("         position = position + " + list + "ViewAt(position).getMarshalledSize();");
+        pw.println("      }");
+        pw.println("      " + list + "Index = index;");
+        pw.println("      " + list + "Position = position;");
+        pw.println("      return position;");
+        pw.println("   }");
+        pw.println();
+    }
+
+    /**
+     * Writes the method that points the reused view of a class reference or list element at a position
+     */
+    private void writeViewAt(PrintWriter pw, ClassAttribute anAttribute) {
+        String viewType = anAttribute.getType() + "View";
+        String viewField = anAttribute.getName() + "View";
+        pw.println("   private " + viewType + " " + viewField + "At(int position)");
+        pw.println("   {");
+        pw.println("      if(" + viewField + " == null)");
+        pw.println("      {");
+        pw.println("         " + viewField + " = new " + viewType + "();");
+        pw.println("      }");
+        pw.println("      " + viewField + ".wrap(buff, position);");
+        pw.println("      return " + viewField + ";");
+        pw.println("   }");
+        pw.println();
+    }
+
+    private String viewPosition(String base, int constant) {
+        if (constant == 0) {
+            return base;
+        }
+        return base + " + " + constant;
+    }
+
+    /**
+     * Java expression that reads a primitive at an absolute position in buff, with the same java type as the getter of
+     * the generated class
+     */
+    private String viewRead(String type, String position) {
+        if (type.equals("unsigned byte")) {
+            return "(short) (buff.get(" + position + ") & 0xFF)";
+        }
+        if (type.equals("unsigned short")) {
+            return "buff.getShort(" + position + ") & 0xFFFF";
+        }
+        if (type.equals("unsigned int")) {
+            return "buff.getInt(" + position + ") & 0xFFFFFFFFL";
+        }
+
+        String capped = this.initialCap(marshalTypes.getProperty(type));
+        if (capped.equals("Byte")) {
+            capped = "";
+        }
+        return "buff.get" + capped + "(" + position + ")";
+    }
+
+    /**
+     * True if the attribute is a class reference, or a list of classes
+     */
+    private boolean viewElementIsClass(ClassAttribute anAttribute) {
+        switch (anAttribute.getAttributeKind()) {
+        case CLASSREF:
+            return true;
+        case FIXED_LIST:
+        case VARIABLE_LIST:
+            return marshalTypes.getProperty(anAttribute.getType()) == null;
+        default:
+            return false;
+        }
+    }
 }
@@ -27,11 +27,13 @@
  */
 package edu.nps.moves.xmlpg;
 
-import java.io.File;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
 import java.util.Properties;
 
@@ -71,8 +73,12 @@ public class JavascriptGenerator extends Generator {
      */
     Properties primitiveSizes = new Properties();
 
-    public JavascriptGenerator(HashMap pClassDescriptions, Properties pJavascriptProperties) {
-        super(pClassDescriptions, pJavascriptProperties);
+    public JavascriptGenerator(ProtocolModel pModel, Properties pJavascriptProperties) {
+        super(pModel, pJavascriptProperties);
+        if (this.isLittleEndian()) {
+            System.out.println("byteOrder little: the generated classes read and write in whatever order the "
+                    + "InputStream and OutputStream library uses");
+        }
         this.javascriptProperties = pJavascriptProperties;
 
         namespace = javascriptProperties.getProperty("namespace");
@@ -170,66 +176,18 @@ public class JavascriptGenerator extends Generator {
     }
 
     /**
-     * Generate the classes and write them to a directory
+     * Generate the source code for one class
      */
     @Override
-    public void writeClasses() {
-
-        this.createDirectory();
-
-        Iterator it = classDescriptions.values().iterator();
-
-        while (it.hasNext()) {
-            try {
-                GeneratedClass aClass = (GeneratedClass) it.next();
-                String name = aClass.getName();
-
-                // Create package structure, if any
-                String pack = languageProperties.getProperty("namespace");
-                String fullPath;
-
-                // If we have a package specified, replace the dots in the package name (edu.nps.moves.dis)
-                // with slashes (edu/nps/moves/dis and create that directory
-                if (pack != null) {
-                    pack = pack.replace(".", "/");
-                    fullPath = getDirectory() + "/" + name + ".js";
-                    // System.out.println("full path is " + fullPath);
-                } else {
-                    fullPath = getDirectory() + "/" + name + ".js";
-                }
-                // System.out.println("Creating Javascript source code file for " + fullPath);
-
-                // Create the new, empty file, and create printwriter object for output to it
-                File outputFile = new File(fullPath);
-                outputFile.getParentFile().mkdirs();
-                outputFile.createNewFile();
-                PrintWriter pw = new PrintWriter(outputFile);
-
-                // print the source code of the class to the file
-                this.writeClass(pw, aClass);
-            } catch (Exception e) {
-                System.out.println("error creating source code " + e);
-                e.printStackTrace();
-            }
-
-        } // End while
-
-        // Write out a require.js exports file. This is later incorporated
-        // into the dis.js file via ant.
-        // (Commented out; trying to keep the exports in each generated file now)
-        /*
-         * try { String fullPath = getDirectory() + "/exports.js"; File outputFile = new File(fullPath);
-         * outputFile.getParentFile().mkdirs(); outputFile.createNewFile(); PrintWriter pw = new
-         * PrintWriter(outputFile);
-         * 
-         * pw.println(); pw.println("// Exports for the dis module, used in require.js");
-         * pw.println("// You should delete this if not using with require.js"); pw.println();
-         * 
-         * it = classDescriptions.values().iterator(); while(it.hasNext()) { GeneratedClass aClass =
-         * (GeneratedClass)it.next(); pw.println("exports." + aClass.getName() + " = dis." + aClass.getName() + ";"); }
-         * pw.println(); pw.close(); } catch(Exception e) { System.out.println(e); }
-         */
-    } // End write classes
+    protected Map<String, String> renderClass(GeneratedClass aClass) {
+        // print the source code of the class to a buffer
+        StringWriter sw = new StringWriter();
+        this.writeClass(new PrintWriter(sw), aClass);
+
+        Map<String, String> files = new LinkedHashMap<String, String>();
+        files.put(aClass.getName() + ".js", sw.toString());
+        return files;
+    }
 
     /**
      * Generate a source code file with a psuedo-classical constructor. No getters or setters; that's sorta not the
@@ -238,22 +196,29 @@ public class JavascriptGenerator extends Generator {
     private void writeClass(PrintWriter pw, GeneratedClass aClass) {
         this.writeClassComments(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeClassComments");
         this.writeClassDeclaration(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeClassDeclaration");
         this.writeIvars(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeIvars");
 
         this.writeDecoder(pw, aClass);
+        GenerationProfile.section("writeDecoder");
         this.writeEncoder(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeEncoder");
 
         this.writeFlagMethods(pw, aClass);
         pw.flush();
+        GenerationProfile.section("writeFlagMethods");
 
         pw.println("}; // end of class");
         pw.println();
 
         this.writeNodeJsExports(pw, aClass);
+        GenerationProfile.section("writeNodeJsExports");
 
         pw.println("// End of " + aClass.getName() + " class");
         pw.println();
@@ -283,23 +248,7 @@ public class JavascriptGenerator extends Generator {
     private void writeEncoder(PrintWriter pw, GeneratedClass aClass) {
         // Get all the attributes of the class in the correct order
 
-        List classHierarchy = new ArrayList();
-        GeneratedClass otherClass = aClass;
-        do {
-            classHierarchy.add(otherClass);
-            if (otherClass.getParentClass().equalsIgnoreCase("root")) {
-                break;
-            }
-            String pClassName = otherClass.getParentClass();
-            otherClass = (GeneratedClass) classDescriptions.get(pClassName);
-        } while (true);
-
-        List allAttributes = new ArrayList();
-        for (int jdx = classHierarchy.size() - 1; jdx >= 0; jdx--) {
-            GeneratedClass thisLevel = (GeneratedClass) classHierarchy.get(jdx);
-            List ivars = thisLevel.getClassAttributes();
-            allAttributes.addAll(ivars);
-        }
+        List allAttributes = model.getFlattenedAttributes(aClass);
 
         // Start writing the function
         pw.println();
@@ -400,23 +349,7 @@ public class JavascriptGenerator extends Generator {
      */
     private void writeDecoder(PrintWriter pw, GeneratedClass aClass) {
 
-        List classHierarchy = new ArrayList();
-        GeneratedClass otherClass = aClass;
-        do {
-            classHierarchy.add(otherClass);
-            if (otherClass.getParentClass().equalsIgnoreCase("root")) {
-                break;
-            }
-            String pClassName = otherClass.getParentClass();
-            otherClass = (GeneratedClass) classDescriptions.get(pClassName);
-        } while (true);
-
-        List allAttributes = new ArrayList();
-        for (int jdx = classHierarchy.size() - 1; jdx >= 0; jdx--) {
-            GeneratedClass thisLevel = (GeneratedClass) classHierarchy.get(jdx);
-            List ivars = thisLevel.getClassAttributes();
-            allAttributes.addAll(ivars);
-        }
+        List allAttributes = model.getFlattenedAttributes(aClass);
 
         // pw.println(" this.initFromBinary = function(inputStream)");
         pw.println("  " + namespace + "." + aClass.getName() + ".prototype.initFromBinary = function(inputStream)");
@@ -618,16 +551,7 @@ public class JavascriptGenerator extends Generator {
 
     private void writeIvars(PrintWriter pw, GeneratedClass aClass) {
         // List ivars = aClass.getClassAttributes();
-        List classHierarchy = new ArrayList();
-        GeneratedClass otherClass = aClass;
-        do {
-            classHierarchy.add(otherClass);
-            if (otherClass.getParentClass().equalsIgnoreCase("root")) {
-                break;
-            }
-            String pClassName = otherClass.getParentClass();
-            otherClass = (GeneratedClass) classDescriptions.get(pClassName);
-        } while (true);
+        List classHierarchy = model.getHierarchy(aClass);
 
         for (int jdx = classHierarchy.size() - 1; jdx >= 0; jdx--) {
             GeneratedClass thisLevel = (GeneratedClass) classHierarchy.get(jdx);
@@ -648,7 +572,7 @@ public class JavascriptGenerator extends Generator {
 
                     pw.print("   this." + anAttribute.getName() + " = ");
 
-                    String iv = this.getInitialValue(anAttribute.getName(), classHierarchy);
+                    String iv = model.getInitialValue(aClass, anAttribute.getName());
                     if (iv == null) {
                         iv = anAttribute.getDefaultValue();
                         if (iv == null) {
@@ -717,32 +641,4 @@ public class JavascriptGenerator extends Generator {
         } // end of loop through class hierarchy stack
     }
 
-    private String getInitialValue(String attributeName, List classHierarchy) {
-        boolean log = false;
-        if (attributeName.equals("protocolVersion")) {
-            log = true;
-        }
-
-        // Start looking at the lowest level of the class hierarchy and
-        // work up.
-        for (int idx = 0; idx < classHierarchy.size(); idx++) {
-            GeneratedClass aClass = (GeneratedClass) classHierarchy.get(idx);
-            // if(log) System.out.println("Class name: " + aClass.getName());
-
-            List initialValues = aClass.getInitialValues();
-            for (int jdx = 0; jdx < initialValues.size(); jdx++) {
-                InitialValue aVal = (InitialValue) initialValues.get(jdx);
-                if (aVal.getVariable().equalsIgnoreCase(attributeName)) {
-                    // if(log) System.out.println("Variable name:" + aVal.getVariable());
-
-                    // if(log) System.out.println("found match in " + aClass.getName() + ":" + aVal.getVariable());
-                    return aVal.getVariableValue();
-                }
-
-            }
-
-        }
-        return null;
-    }
-
 }
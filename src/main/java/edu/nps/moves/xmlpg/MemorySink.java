@@ -0,0 +1,39 @@
+package edu.nps.moves.xmlpg;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the generated files in memory, for tools that compile or inspect the source code directly and for tests.
+ */
+public class MemorySink implements OutputSink {
+
+    /**
+     * The files, key = relative path, value = contents
+     */
+    private Map<String, String> files = new ConcurrentHashMap<String, String>();
+
+    @Override
+    public void write(String relativePath, CharSequence contents) {
+        files.put(relativePath, contents.toString());
+    }
+
+    @Override
+    public boolean supportsConcurrentWrites() {
+        return true;
+    }
+
+    /**
+     * The files written so far, key = relative path, value = contents, sorted by path
+     */
+    public SortedMap<String, String> getFiles() {
+        return new TreeMap<String, String>(files);
+    }
+
+    /**
+     * The contents of one file, or null if it wasn't written
+     */
+    public String getFile(String relativePath) {
+        return files.get(relativePath);
+    }
+}
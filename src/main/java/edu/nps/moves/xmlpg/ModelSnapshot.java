@@ -0,0 +1,326 @@
+package edu.nps.moves.xmlpg;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A compact binary copy of everything read from an XML file: the classes with their attributes, flags and initial
+ * values, plus the language properties. The snapshot records a digest of the XML file it was made from, so it is only
+ * used while the XML file is unchanged. Reading a snapshot memory-maps the file and skips both the SAX parse and the
+ * plausibility check, which was done before the snapshot was written.
+ * <p>
+ *
+ * The format is private to this class and carries a version number; a snapshot with the wrong version, the wrong
+ * digest, or that can't be read for any other reason is ignored and the XML file is parsed as usual.
+ */
+public class ModelSnapshot {
+
+    /**
+     * Identifies a snapshot file ("XPGS")
+     */
+    private static final int MAGIC = 0x58504753;
+
+    /**
+     * Bump this whenever the layout written by write() changes. Version 1 snapshots were also written after a parse
+     * with errors, so they are not trusted.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The classes, key = name, value = GeneratedClass, in the order they were read
+     */
+    private Map<String, GeneratedClass> classDescriptions = new LinkedHashMap<String, GeneratedClass>();
+
+    /**
+     * Language properties, key = language name as used on the command line
+     */
+    private Map<String, Properties> languageProperties = new HashMap<String, Properties>();
+
+    private ModelSnapshot() {
+    }
+
+    /**
+     * The classes, key = name, value = GeneratedClass, in the order they were read from the XML file
+     */
+    public Map<String, GeneratedClass> getClassDescriptions() {
+        return classDescriptions;
+    }
+
+    /**
+     * The properties for a language, or an empty set if the XML file had none
+     */
+    public Properties getLanguageProperties(String language) {
+        Properties properties = languageProperties.get(language);
+        return (properties == null) ? new Properties() : properties;
+    }
+
+    /**
+     * SHA-256 digest of the contents of a file
+     */
+    public static byte[] digest(File aFile) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(aFile.toPath()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * SHA-256 digest of a set of XML files. A single file has the same digest as above; for several files the name and
+     * length of each file are included, so moving a class from one file to another changes the digest.
+     */
+    public static byte[] digest(List<File> files) throws IOException {
+        if (files.size() == 1) {
+            return ModelSnapshot.digest(files.get(0));
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (File aFile : files) {
+                byte[] contents = Files.readAllBytes(aFile.toPath());
+                digest.update(aFile.getName().getBytes(StandardCharsets.UTF_8));
+                digest.update(ByteBuffer.allocate(8).putLong(contents.length).array());
+                digest.update(contents);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The snapshot file for an XML file or directory: the same name with .snapshot added, in the same directory. For a
+     * list of files it goes next to the first one.
+     */
+    public static File snapshotFileFor(String xmlFileName) {
+        String firstEntry = xmlFileName.split(File.pathSeparator)[0];
+        File aFile = new File(firstEntry);
+        if (aFile.isDirectory()) {
+            return new File(aFile.getAbsoluteFile().getParentFile(), aFile.getName() + ".snapshot");
+        }
+        return new File(firstEntry + ".snapshot");
+    }
+
+    /**
+     * Reads a snapshot.
+     *
+     * @param snapshotFile
+     *            the snapshot
+     * @param digest
+     *            digest of the XML file the snapshot must have been made from
+     * @return the snapshot, or null if there is none, it was made from a different XML file, or it can't be read
+     */
+    public static ModelSnapshot read(File snapshotFile, byte[] digest) {
+        if (!snapshotFile.isFile()) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            byte[] snapshotDigest = new byte[buffer.getInt()];
+            buffer.get(snapshotDigest);
+            if (!Arrays.equals(digest, snapshotDigest)) {
+                return null;
+            }
+
+            ModelSnapshot snapshot = new ModelSnapshot();
+
+            int languageCount = buffer.getInt();
+            for (int idx = 0; idx < languageCount; idx++) {
+                String language = readString(buffer);
+                Properties properties = new Properties();
+                int propertyCount = buffer.getInt();
+                for (int jdx = 0; jdx < propertyCount; jdx++) {
+                    properties.setProperty(readString(buffer), readString(buffer));
+                }
+                snapshot.languageProperties.put(language, properties);
+            }
+
+            int classCount = buffer.getInt();
+            for (int idx = 0; idx < classCount; idx++) {
+                GeneratedClass aClass = readClass(buffer);
+                snapshot.classDescriptions.put(aClass.getName(), aClass);
+            }
+
+            return snapshot;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring unreadable snapshot " + snapshotFile + " " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot. The file is written under a temporary name and then moved into place, so a run that reads the
+     * snapshot at the same time sees either the old one or the new one.
+     *
+     * @param snapshotFile
+     *            the snapshot
+     * @param digest
+     *            digest of the XML file the classes were read from
+     * @param classDescriptions
+     *            the classes, key = name, value = GeneratedClass
+     * @param languageProperties
+     *            language properties, key = language name as used on the command line
+     */
+    public static void write(File snapshotFile, byte[] digest, Map classDescriptions,
+            Map<String, Properties> languageProperties) throws IOException {
+        File directory = snapshotFile.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(snapshotFile.getName(), ".tmp", directory);
+
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(digest.length);
+            dos.write(digest);
+
+            dos.writeInt(languageProperties.size());
+            for (Map.Entry<String, Properties> aLanguage : languageProperties.entrySet()) {
+                writeString(dos, aLanguage.getKey());
+                Set<String> names = aLanguage.getValue().stringPropertyNames();
+                dos.writeInt(names.size());
+                for (String aName : names) {
+                    writeString(dos, aName);
+                    writeString(dos, aLanguage.getValue().getProperty(aName));
+                }
+            }
+
+            dos.writeInt(classDescriptions.size());
+            Iterator it = classDescriptions.values().iterator();
+            while (it.hasNext()) {
+                writeClass(dos, (GeneratedClass) it.next());
+            }
+        }
+
+        try {
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeClass(DataOutputStream dos, GeneratedClass aClass) throws IOException {
+        writeString(dos, aClass.getName());
+        writeString(dos, aClass.getParentClass());
+        writeString(dos, aClass.getClassComments());
+        dos.writeBoolean(aClass.isXmlRootElement());
+
+        List attributes = aClass.getClassAttributes();
+        dos.writeInt(attributes.size());
+        for (int idx = 0; idx < attributes.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) attributes.get(idx);
+            writeString(dos, anAttribute.getName());
+            dos.writeByte(anAttribute.getAttributeKind().ordinal());
+            writeString(dos, anAttribute.getType());
+            writeString(dos, anAttribute.getComment());
+            dos.writeInt(anAttribute.getListLength());
+            writeString(dos, anAttribute.getCountFieldName());
+            writeString(dos, anAttribute.getDefaultValue());
+            dos.writeBoolean(anAttribute.getUnderlyingTypeIsPrimitive());
+            dos.writeBoolean(anAttribute.getCouldBeString());
+            dos.writeBoolean(anAttribute.shouldSerialize);
+            dos.writeBoolean(anAttribute.getIsBitField());
+            dos.writeBoolean(anAttribute.getIsDynamicListLengthField());
+
+            // The list a length field counts is always in the same class, so it's kept as an index
+            dos.writeInt(attributes.indexOf(anAttribute.getDynamicListClassAttribute()));
+
+            dos.writeInt(anAttribute.bitFieldList.size());
+            for (int jdx = 0; jdx < anAttribute.bitFieldList.size(); jdx++) {
+                BitField aBitField = (BitField) anAttribute.bitFieldList.get(jdx);
+                writeString(dos, aBitField.name);
+                writeString(dos, aBitField.mask);
+                writeString(dos, aBitField.comment);
+            }
+        }
+
+        List initialValues = aClass.getInitialValues();
+        dos.writeInt(initialValues.size());
+        for (int idx = 0; idx < initialValues.size(); idx++) {
+            InitialValue anInitialValue = (InitialValue) initialValues.get(idx);
+            writeString(dos, anInitialValue.getVariable());
+            writeString(dos, anInitialValue.getVariableValue());
+        }
+    }
+
+    private static GeneratedClass readClass(ByteBuffer buffer) {
+        GeneratedClass aClass = new GeneratedClass();
+        aClass.setName(readString(buffer));
+        aClass.setParentClass(readString(buffer));
+        aClass.setComment(readString(buffer));
+        aClass.setXmlRootElement(buffer.get() != 0);
+
+        int attributeCount = buffer.getInt();
+        int[] dynamicListIndexes = new int[attributeCount];
+        for (int idx = 0; idx < attributeCount; idx++) {
+            ClassAttribute anAttribute = new ClassAttribute();
+            anAttribute.setName(readString(buffer));
+            anAttribute.setAttributeKind(ClassAttribute.ClassAttributeType.values()[buffer.get()]);
+            anAttribute.setType(readString(buffer));
+            anAttribute.setComment(readString(buffer));
+            anAttribute.setListLength(buffer.getInt());
+            anAttribute.setCountFieldName(readString(buffer));
+            anAttribute.setDefaultValue(readString(buffer));
+            anAttribute.setUnderlyingTypeIsPrimitive(buffer.get() != 0);
+            anAttribute.setCouldBeString(buffer.get() != 0);
+            anAttribute.shouldSerialize = buffer.get() != 0;
+            anAttribute.setIsBitField(buffer.get() != 0);
+            anAttribute.setIsDynamicListLengthField(buffer.get() != 0);
+            dynamicListIndexes[idx] = buffer.getInt();
+
+            int bitFieldCount = buffer.getInt();
+            for (int jdx = 0; jdx < bitFieldCount; jdx++) {
+                anAttribute.bitFieldList
+                        .add(new BitField(readString(buffer), readString(buffer), readString(buffer), anAttribute));
+            }
+            aClass.addClassAttribute(anAttribute);
+        }
+
+        List attributes = aClass.getClassAttributes();
+        for (int idx = 0; idx < attributeCount; idx++) {
+            if (dynamicListIndexes[idx] >= 0) {
+                ((ClassAttribute) attributes.get(idx))
+                        .setDynamicListClassAttribute((ClassAttribute) attributes.get(dynamicListIndexes[idx]));
+            }
+        }
+
+        int initialValueCount = buffer.getInt();
+        for (int idx = 0; idx < initialValueCount; idx++) {
+            aClass.addInitialValue(new InitialValue(readString(buffer), readString(buffer)));
+        }
+
+        return aClass;
+    }
+
+    /**
+     * Writes a string as a length and UTF-8 bytes; a length of -1 is null
+     */
+    private static void writeString(DataOutputStream dos, String aString) throws IOException {
+        if (aString == null) {
+            dos.writeInt(-1);
+            return;
+        }
+        byte[] bytes = aString.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -42,8 +42,12 @@ public class ObjcGenerator extends Generator {
      */
     Properties objcProperties;
 
-    public ObjcGenerator(HashMap pClassDescriptions, Properties pObjcProperties) {
-        super(pClassDescriptions, pObjcProperties);
+    public ObjcGenerator(ProtocolModel pModel, Properties pObjcProperties) {
+        super(pModel, pObjcProperties);
+        if (this.isLittleEndian()) {
+            System.out.println("byteOrder little: the generated classes read and write in whatever order the "
+                    + "DataStream library uses");
+        }
 
         pObjcProperties.setProperty("directory", getDirectory());
 
@@ -95,40 +99,32 @@ public class ObjcGenerator extends Generator {
     }
 
     /**
-     * Generates the cpp source code classes
+     * Generates the header and objc source code files for one class
      */
     @Override
-    public void writeClasses() {
-        this.createDirectory();
-
-        Iterator it = classDescriptions.values().iterator();
-
-        // Loop through all the class descriptions, generating a header file and cpp file for each.
-        while (it.hasNext()) {
-            try {
-                GeneratedClass aClass = (GeneratedClass) it.next();
-                // System.out.println("Generating class " + aClass.getName());
-                this.writeHeaderFile(aClass);
-                this.writeObjcFile(aClass);
-            } catch (Exception e) {
-                System.out.println("error creating source code " + e);
-            }
+    protected Map<String, String> renderClass(GeneratedClass aClass) {
+        Map<String, String> files = new LinkedHashMap<String, String>();
+
+        // System.out.println("Generating class " + aClass.getName());
+        StringWriter header = new StringWriter();
+        this.writeHeaderFile(new PrintWriter(header), aClass);
+        GenerationProfile.section("writeHeaderFile");
+        files.put(aClass.getName() + ".h", header.toString());
 
-        } // End while
+        StringWriter objc = new StringWriter();
+        this.writeObjcFile(new PrintWriter(objc), aClass);
+        files.put(aClass.getName() + ".m", objc.toString());
 
+        return files;
     }
 
     /**
      * Generate a c++ header file for the classes
      */
-    public void writeHeaderFile(GeneratedClass aClass) {
+    public void writeHeaderFile(PrintWriter pw, GeneratedClass aClass) {
         try {
             String name = aClass.getName();
             // System.out.println("Creating cpp and .h source code files for " + name);
-            String headerFullPath = getDirectory() + "/" + name + ".h";
-            File outputFile = new File(headerFullPath);
-            outputFile.createNewFile();
-            PrintWriter pw = new PrintWriter(outputFile);
 
             // Write includes for any classes we may reference. this generates multiple #includes if we
             // use a class multiple times, but that's innocuous. We could sort and do a unqiue to prevent
@@ -286,14 +282,10 @@ public class ObjcGenerator extends Generator {
 
     } // End write header file
 
-    public void writeObjcFile(GeneratedClass aClass) {
+    public void writeObjcFile(PrintWriter pw, GeneratedClass aClass) {
         try {
             String name = aClass.getName();
             System.out.println("Creating Objc .m and .h source code files for " + name);
-            String headerFullPath = getDirectory() + "/" + name + ".m";
-            File outputFile = new File(headerFullPath);
-            outputFile.createNewFile();
-            PrintWriter pw = new PrintWriter(outputFile);
 
             pw.println("#import \"" + aClass.getName() + ".h\" ");
             pw.println();
@@ -319,16 +311,21 @@ public class ObjcGenerator extends Generator {
             // possible to do this via properties.
             // Write initalizer
             this.writeInitializer(pw, aClass);
+            GenerationProfile.section("writeInitializer");
             this.writeDeallocMethod(pw, aClass);
+            GenerationProfile.section("writeDeallocMethod");
 
             // Write marshal and unmarshal methods
             this.writeMarshalMethod(pw, aClass);
+            GenerationProfile.section("writeMarshalMethod");
             this.writeUnmarshalMethod(pw, aClass);
+            GenerationProfile.section("writeUnmarshalMethod");
 
             // Write a comparision operator
             // this.writeEqualityOperator(pw, aClass);
             // Method to determine the marshalled length of the PDU
             this.writeGetMarshalledSizeMethod(pw, aClass);
+            GenerationProfile.section("writeGetMarshalledSizeMethod");
             pw.println("@end\n");
             pw.println("\n");
 
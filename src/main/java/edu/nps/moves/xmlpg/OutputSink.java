@@ -0,0 +1,36 @@
+package edu.nps.moves.xmlpg;
+
+import java.io.*;
+
+/**
+ * Where generated source files go. A generator hands each file to the sink with its path relative to the root of the
+ * output (for example edu/nps/moves/dis/EntityID.java); the sink decides whether that ends up in a directory, in
+ * memory, or in a zip file.
+ */
+public interface OutputSink extends Closeable {
+
+    /**
+     * Adds one file.
+     *
+     * @param relativePath
+     *            path of the file, relative to the root of the output, with / as the separator
+     * @param contents
+     *            the contents of the file
+     */
+    void write(String relativePath, CharSequence contents) throws IOException;
+
+    /**
+     * True if write() may be called from several threads at once. Sinks that can't take advantage of that, or that must
+     * keep files in order, return false and are written from one thread.
+     */
+    default boolean supportsConcurrentWrites() {
+        return false;
+    }
+
+    /**
+     * Finishes the output. Nothing may be written afterwards.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,182 @@
+package edu.nps.moves.xmlpg;
+
+import java.util.*;
+
+/**
+ * Where the fields of each class are when it is marshalled, worked out once from the model so generators can emit
+ * constants instead of code that adds up sizes at run time.
+ * <p>
+ *
+ * A class is fixed size if it always marshals to the same number of bytes: it and every class it contains have no
+ * variable length lists, and it refers to no class that has subclasses, since such a reference can hold a larger
+ * subclass at run time. For every field the offset from the start of the marshalled object is known up to the first
+ * member whose size can vary; after that it is VARIABLE. Attributes that are not serialized take no space and have no
+ * offset.
+ */
+public class ProtocolLayout {
+
+    /**
+     * Size or offset that depends on the contents of the object
+     */
+    public static final int VARIABLE = -1;
+
+    private static final Map<String, Integer> primitiveSizes = new HashMap<String, Integer>();
+
+    static {
+        primitiveSizes.put("unsigned byte", 1);
+        primitiveSizes.put("unsigned short", 2);
+        primitiveSizes.put("unsigned int", 4);
+        primitiveSizes.put("unsigned long", 8);
+        primitiveSizes.put("byte", 1);
+        primitiveSizes.put("short", 2);
+        primitiveSizes.put("int", 4);
+        primitiveSizes.put("long", 8);
+        primitiveSizes.put("float", 4);
+        primitiveSizes.put("double", 8);
+    }
+
+    private final ProtocolModel model;
+
+    /**
+     * Marshalled size of each class by id, VARIABLE if it can vary
+     */
+    private final int[] sizes;
+
+    /**
+     * Offset of each attribute from the start of the object that holds it, VARIABLE if it can vary
+     */
+    private final Map<ClassAttribute, Integer> offsets = new IdentityHashMap<ClassAttribute, Integer>();
+
+    /**
+     * Works out the layout of every class in the model
+     */
+    public ProtocolLayout(ProtocolModel pModel) {
+        model = pModel;
+        sizes = new int[model.size()];
+
+        // 0 = not done yet, 1 = in progress, 2 = done. A class that contains itself is treated as variable.
+        byte[] state = new byte[model.size()];
+        for (int id = 0; id < model.size(); id++) {
+            this.layOut(id, state);
+        }
+    }
+
+    private int layOut(int id, byte[] state) {
+        if (state[id] == 2) {
+            return sizes[id];
+        }
+        if (state[id] == 1) {
+            return VARIABLE;
+        }
+        state[id] = 1;
+
+        GeneratedClass aClass = model.getGeneratedClass(id);
+        GeneratedClass parent = model.getParent(aClass);
+        int position = (parent == null) ? 0 : this.layOut(model.getId(parent), state);
+
+        List ownAttributes = aClass.getClassAttributes();
+        for (int idx = 0; idx < ownAttributes.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ownAttributes.get(idx);
+            if (anAttribute.shouldSerialize == false) {
+                offsets.put(anAttribute, VARIABLE);
+                continue;
+            }
+
+            offsets.put(anAttribute, position);
+            int size = this.attributeSize(anAttribute, state);
+            position = (position == VARIABLE || size == VARIABLE) ? VARIABLE : position + size;
+        }
+
+        sizes[id] = position;
+        state[id] = 2;
+        return position;
+    }
+
+    private int attributeSize(ClassAttribute anAttribute, byte[] state) {
+        switch (anAttribute.getAttributeKind()) {
+        case PRIMITIVE:
+            return ProtocolLayout.getPrimitiveSize(anAttribute.getType());
+        case CLASSREF:
+            return this.referenceSize(anAttribute, state);
+        case FIXED_LIST:
+            int elementSize = primitiveSizes.containsKey(anAttribute.getType())
+                    ? ProtocolLayout.getPrimitiveSize(anAttribute.getType()) : this.referenceSize(anAttribute, state);
+            return (elementSize == VARIABLE) ? VARIABLE : anAttribute.getListLength() * elementSize;
+        default:
+            return VARIABLE;
+        }
+    }
+
+    /**
+     * Size of the class a classRef or list element refers to
+     */
+    private int referenceSize(ClassAttribute anAttribute, byte[] state) {
+        GeneratedClass referenced = model.getReferencedClass(anAttribute);
+        if (referenced == null || model.hasChildren(referenced)) {
+            return VARIABLE;
+        }
+        return this.layOut(model.getId(referenced), state);
+    }
+
+    /**
+     * Size of a primitive type as named in the XML file, VARIABLE if it isn't one
+     */
+    public static int getPrimitiveSize(String type) {
+        Integer size = primitiveSizes.get(type);
+        return (size == null) ? VARIABLE : size;
+    }
+
+    /**
+     * Number of bytes the class marshals to, including its superclasses, or VARIABLE
+     */
+    public int getMarshalledSize(GeneratedClass aClass) {
+        return sizes[model.getId(aClass)];
+    }
+
+    public boolean isFixedSize(GeneratedClass aClass) {
+        return this.getMarshalledSize(aClass) != VARIABLE;
+    }
+
+    /**
+     * Offset of an attribute from the start of the marshalled object, or VARIABLE
+     */
+    public int getOffset(ClassAttribute anAttribute) {
+        Integer offset = offsets.get(anAttribute);
+        return (offset == null) ? VARIABLE : offset;
+    }
+
+    /**
+     * Number of bytes an attribute marshals to, or VARIABLE. Variable length lists are always VARIABLE.
+     */
+    public int getSize(ClassAttribute anAttribute) {
+        if (anAttribute.shouldSerialize == false) {
+            return 0;
+        }
+        switch (anAttribute.getAttributeKind()) {
+        case PRIMITIVE:
+            return ProtocolLayout.getPrimitiveSize(anAttribute.getType());
+        case CLASSREF:
+            return this.getElementSize(anAttribute);
+        case FIXED_LIST:
+            int elementSize = this.getElementSize(anAttribute);
+            return (elementSize == VARIABLE) ? VARIABLE : anAttribute.getListLength() * elementSize;
+        default:
+            return VARIABLE;
+        }
+    }
+
+    /**
+     * Number of bytes one element of a list marshals to, or the referenced class for a classRef; VARIABLE if it can
+     * vary
+     */
+    public int getElementSize(ClassAttribute anAttribute) {
+        if (primitiveSizes.containsKey(anAttribute.getType())) {
+            return ProtocolLayout.getPrimitiveSize(anAttribute.getType());
+        }
+        GeneratedClass referenced = model.getReferencedClass(anAttribute);
+        if (referenced == null || model.hasChildren(referenced)) {
+            return VARIABLE;
+        }
+        return this.getMarshalledSize(referenced);
+    }
+}
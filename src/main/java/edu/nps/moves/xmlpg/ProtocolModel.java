@@ -0,0 +1,406 @@
+package edu.nps.moves.xmlpg;
+
+import java.util.*;
+
+/**
+ * The classes read from the XML file, with the relationships between them worked out once, after parsing, rather than
+ * by looking names up again in every generator. Each class gets a dense integer id; ids are assigned in topological
+ * order, so a class always has a larger id than its superclass. For each class the model holds its superclass and
+ * subclasses, its inheritance chain, all its attributes including inherited ones, the class each classRef or list of
+ * classes refers to, and lookup tables for attributes and initial values by name.
+ * <p>
+ *
+ * The model does not change once it is built, so it can be shared by generators running concurrently. Problems found
+ * while building it, such as a reference to a class that doesn't exist, are available from getProblems().
+ */
+public class ProtocolModel {
+
+    /**
+     * All the classes, key = name, value = GeneratedClass, in the order they were read
+     */
+    private final Map<String, GeneratedClass> classDescriptions;
+
+    /**
+     * The classes in topological order; the index of a class in this array is its id
+     */
+    private final GeneratedClass[] classes;
+
+    /**
+     * Class ids, key = name
+     */
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    /**
+     * Id of the superclass of each class, or -1 if it inherits from root
+     */
+    private final int[] parentIds;
+
+    /**
+     * Ids of the direct subclasses of each class
+     */
+    private final int[][] childIds;
+
+    /**
+     * For each class, the class followed by its superclass and so on up to root
+     */
+    private final List<GeneratedClass>[] hierarchies;
+
+    /**
+     * For each class, the attributes of all the classes in its hierarchy, superclass attributes first
+     */
+    private final List<ClassAttribute>[] flattenedAttributes;
+
+    /**
+     * For each class, the attributes in its hierarchy by name. Where a subclass repeats a name, the subclass wins.
+     */
+    private final Map<String, ClassAttribute>[] attributesByName;
+
+    /**
+     * For each class, the initial values in its hierarchy by lower-cased attribute name. Where a subclass sets the same
+     * attribute as a superclass, the subclass wins.
+     */
+    private final Map<String, String>[] initialValues;
+
+    /**
+     * The class referred to by each classRef attribute and each list of classes
+     */
+    private final Map<ClassAttribute, GeneratedClass> referencedClasses = new IdentityHashMap<ClassAttribute, GeneratedClass>();
+
+    /**
+     * Language properties read from the XML file, key = language name as used on the command line
+     */
+    private final Map<String, Properties> languageProperties = new HashMap<String, Properties>();
+
+    /**
+     * Problems found while resolving the references between classes
+     */
+    private final List<String> problems = new ArrayList<String>();
+
+    /**
+     * Sizes and field offsets of the marshalled classes
+     */
+    private final ProtocolLayout layout;
+
+    /**
+     * Builds the model from the classes read from the XML file, with no language properties.
+     *
+     * @param pClassDescriptions
+     *            key = class name, value = GeneratedClass
+     */
+    public ProtocolModel(Map pClassDescriptions) {
+        this(pClassDescriptions, new HashMap<String, Properties>());
+    }
+
+    /**
+     * Builds the model from the classes and language properties read from the XML file.
+     *
+     * @param pClassDescriptions
+     *            key = class name, value = GeneratedClass
+     * @param pLanguageProperties
+     *            key = language name as used on the command line (java, cpp, ...), value = its properties
+     */
+    @SuppressWarnings("unchecked")
+    public ProtocolModel(Map pClassDescriptions, Map<String, Properties> pLanguageProperties) {
+        for (Map.Entry<String, Properties> aLanguage : pLanguageProperties.entrySet()) {
+            Properties copy = new Properties();
+            copy.putAll(aLanguage.getValue());
+            languageProperties.put(aLanguage.getKey(), copy);
+        }
+
+        classDescriptions = Collections.unmodifiableMap(new LinkedHashMap<String, GeneratedClass>(pClassDescriptions));
+
+        // Topological order: each class after its superclass, otherwise in the order read
+        List<GeneratedClass> ordered = new ArrayList<GeneratedClass>();
+        Set<String> inProgress = new HashSet<String>();
+        for (GeneratedClass aClass : classDescriptions.values()) {
+            this.addInOrder(aClass, ordered, inProgress);
+        }
+
+        int size = ordered.size();
+        classes = ordered.toArray(new GeneratedClass[size]);
+        for (int id = 0; id < size; id++) {
+            ids.put(classes[id].getName(), id);
+        }
+
+        parentIds = new int[size];
+        List<List<Integer>> children = new ArrayList<List<Integer>>();
+        for (int id = 0; id < size; id++) {
+            children.add(new ArrayList<Integer>());
+        }
+
+        for (int id = 0; id < size; id++) {
+            // A superclass placed after its subclass can only come from an inheritance cycle; cut it there
+            GeneratedClass parent = this.lookupParent(classes[id]);
+            parentIds[id] = (parent == null || ids.get(parent.getName()) >= id) ? -1 : ids.get(parent.getName());
+            if (parentIds[id] >= 0) {
+                children.get(parentIds[id]).add(id);
+            }
+        }
+
+        childIds = new int[size][];
+        hierarchies = new List[size];
+        flattenedAttributes = new List[size];
+        attributesByName = new Map[size];
+        initialValues = new Map[size];
+
+        // Superclasses come first, so their flattened attributes are already done when a subclass gets to them
+        for (int id = 0; id < size; id++) {
+            GeneratedClass aClass = classes[id];
+            int parentId = parentIds[id];
+
+            List<Integer> childList = children.get(id);
+            childIds[id] = new int[childList.size()];
+            for (int idx = 0; idx < childList.size(); idx++) {
+                childIds[id][idx] = childList.get(idx);
+            }
+
+            List<GeneratedClass> hierarchy = new ArrayList<GeneratedClass>();
+            hierarchy.add(aClass);
+            List<ClassAttribute> attributes = new ArrayList<ClassAttribute>();
+            Map<String, ClassAttribute> byName = new HashMap<String, ClassAttribute>();
+            Map<String, String> values = new HashMap<String, String>();
+            if (parentId >= 0) {
+                hierarchy.addAll(hierarchies[parentId]);
+                attributes.addAll(flattenedAttributes[parentId]);
+                byName.putAll(attributesByName[parentId]);
+                values.putAll(initialValues[parentId]);
+            }
+
+            List ownAttributes = aClass.getClassAttributes();
+            for (int idx = 0; idx < ownAttributes.size(); idx++) {
+                ClassAttribute anAttribute = (ClassAttribute) ownAttributes.get(idx);
+                attributes.add(anAttribute);
+                byName.put(anAttribute.getName(), anAttribute);
+                this.resolveReference(aClass, anAttribute);
+            }
+
+            // The first initial value in a class for an attribute is the one used
+            List ownInitialValues = aClass.getInitialValues();
+            Set<String> seen = new HashSet<String>();
+            for (int idx = 0; idx < ownInitialValues.size(); idx++) {
+                InitialValue anInitialValue = (InitialValue) ownInitialValues.get(idx);
+                String key = anInitialValue.getVariable().toLowerCase();
+                if (seen.add(key)) {
+                    values.put(key, anInitialValue.getVariableValue());
+                }
+            }
+
+            hierarchies[id] = Collections.unmodifiableList(hierarchy);
+            flattenedAttributes[id] = Collections.unmodifiableList(attributes);
+            attributesByName[id] = byName;
+            initialValues[id] = values;
+        }
+
+        layout = new ProtocolLayout(this);
+    }
+
+    /**
+     * Adds a class to the ordered list after its superclasses, unless it's already there
+     */
+    private void addInOrder(GeneratedClass aClass, List<GeneratedClass> ordered, Set<String> inProgress) {
+        if (ids.containsKey(aClass.getName())) {
+            return;
+        }
+        if (!inProgress.add(aClass.getName())) {
+            problems.add("Class " + aClass.getName() + " inherits from itself");
+            return;
+        }
+
+        GeneratedClass parent = this.lookupParent(aClass);
+        if (parent != null) {
+            this.addInOrder(parent, ordered, inProgress);
+        } else if (!aClass.getParentClass().equalsIgnoreCase("root")) {
+            problems.add("Class " + aClass.getName() + " inherits from " + aClass.getParentClass()
+                    + " but no user-defined class of that name can be found in the document");
+        }
+
+        // The position of a class in the order is its id
+        ids.put(aClass.getName(), ordered.size());
+        ordered.add(aClass);
+    }
+
+    /**
+     * The superclass of a class, or null if it inherits from root (or from a class that doesn't exist)
+     */
+    private GeneratedClass lookupParent(GeneratedClass aClass) {
+        if (aClass.getParentClass().equalsIgnoreCase("root")) {
+            return null;
+        }
+        return classDescriptions.get(aClass.getParentClass());
+    }
+
+    /**
+     * Records the class a classRef or list of classes refers to
+     */
+    private void resolveReference(GeneratedClass aClass, ClassAttribute anAttribute) {
+        if (anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.CLASSREF
+                && !anAttribute.listIsClass()) {
+            return;
+        }
+
+        GeneratedClass referenced = classDescriptions.get(anAttribute.getType());
+        if (referenced != null) {
+            referencedClasses.put(anAttribute, referenced);
+        } else if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
+            problems.add("Makes reference to a class of name " + anAttribute.getType() + " in class " + aClass.getName()
+                    + " but no user-defined class of that type can be found in the document");
+        }
+    }
+
+    /**
+     * All the classes, key = name, value = GeneratedClass, in the order they were read. The map can't be modified.
+     */
+    public Map<String, GeneratedClass> getClassDescriptions() {
+        return classDescriptions;
+    }
+
+    /**
+     * Number of classes; ids run from 0 to size() - 1
+     */
+    public int size() {
+        return classes.length;
+    }
+
+    /**
+     * The class with the given id
+     */
+    public GeneratedClass getGeneratedClass(int id) {
+        return classes[id];
+    }
+
+    /**
+     * The class with the given name, or null if there is none
+     */
+    public GeneratedClass getGeneratedClass(String name) {
+        return classDescriptions.get(name);
+    }
+
+    /**
+     * The id of the class with the given name, or -1 if there is none
+     */
+    public int getId(String name) {
+        Integer id = ids.get(name);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * The id of a class in the model
+     */
+    public int getId(GeneratedClass aClass) {
+        return this.getId(aClass.getName());
+    }
+
+    /**
+     * All the classes, each after its superclass
+     */
+    public List<GeneratedClass> getClassesInTopologicalOrder() {
+        return Collections.unmodifiableList(Arrays.asList(classes));
+    }
+
+    /**
+     * The superclass of a class, or null if it inherits from root
+     */
+    public GeneratedClass getParent(GeneratedClass aClass) {
+        int parentId = parentIds[this.getId(aClass)];
+        return (parentId < 0) ? null : classes[parentId];
+    }
+
+    /**
+     * The direct subclasses of a class
+     */
+    public List<GeneratedClass> getChildren(GeneratedClass aClass) {
+        int[] children = childIds[this.getId(aClass)];
+        List<GeneratedClass> result = new ArrayList<GeneratedClass>(children.length);
+        for (int idx = 0; idx < children.length; idx++) {
+            result.add(classes[children[idx]]);
+        }
+        return result;
+    }
+
+    /**
+     * True if any class inherits from this one
+     */
+    public boolean hasChildren(GeneratedClass aClass) {
+        return childIds[this.getId(aClass)].length > 0;
+    }
+
+    /**
+     * The class, followed by its superclass, and so on up to the class that inherits from root
+     */
+    public List<GeneratedClass> getHierarchy(GeneratedClass aClass) {
+        return hierarchies[this.getId(aClass)];
+    }
+
+    /**
+     * True if the class, or one of its superclasses, has the given name (ignoring case)
+     */
+    public boolean isKindOf(GeneratedClass aClass, String className) {
+        List<GeneratedClass> hierarchy = this.getHierarchy(aClass);
+        for (int idx = 0; idx < hierarchy.size(); idx++) {
+            if (hierarchy.get(idx).getName().equalsIgnoreCase(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * All the attributes of a class including inherited ones, in marshalling order: the attributes of the class that
+     * inherits from root first, the class's own attributes last
+     */
+    public List<ClassAttribute> getFlattenedAttributes(GeneratedClass aClass) {
+        return flattenedAttributes[this.getId(aClass)];
+    }
+
+    /**
+     * The attribute with the given name in the class or one of its superclasses, or null if there is none
+     */
+    public ClassAttribute findAttribute(GeneratedClass aClass, String attributeName) {
+        return attributesByName[this.getId(aClass)].get(attributeName);
+    }
+
+    /**
+     * The initial value set for an attribute by the class or the nearest superclass that sets one, or null. Attribute
+     * names are matched ignoring case.
+     */
+    public String getInitialValue(GeneratedClass aClass, String attributeName) {
+        return initialValues[this.getId(aClass)].get(attributeName.toLowerCase());
+    }
+
+    /**
+     * The class a classRef attribute or list of classes refers to, or null for primitives and unresolved names
+     */
+    public GeneratedClass getReferencedClass(ClassAttribute anAttribute) {
+        return referencedClasses.get(anAttribute);
+    }
+
+    /**
+     * The properties read from the XML file for a language, such as the package or namespace. This is a copy, since
+     * generators add their own settings to the properties they are given.
+     *
+     * @param language
+     *            the language name as used on the command line (java, cpp, ...)
+     */
+    public Properties getLanguageProperties(String language) {
+        Properties copy = new Properties();
+        Properties properties = languageProperties.get(language);
+        if (properties != null) {
+            copy.putAll(properties);
+        }
+        return copy;
+    }
+
+    /**
+     * The marshalled size of each class and the offset of each field, where they don't depend on the contents
+     */
+    public ProtocolLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Problems found while resolving inheritance and class references. Empty if the model is consistent.
+     */
+    public List<String> getProblems() {
+        return Collections.unmodifiableList(problems);
+    }
+}
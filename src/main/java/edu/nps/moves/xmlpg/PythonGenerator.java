@@ -5,11 +5,14 @@
  */
 package edu.nps.moves.xmlpg;
 
-import java.io.File;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.ArrayList;
 import java.util.ListIterator;
@@ -25,8 +28,14 @@ public class PythonGenerator extends Generator {
     public Properties marshalTypes = new Properties();
     public Properties unmarshalTypes = new Properties();
 
-    public PythonGenerator(HashMap pClassDescriptions, Properties pythonProperties) {
-        super(pClassDescriptions, pythonProperties);
+    /**
+     * True for byteOrder little: every field is packed with the struct module in little endian order
+     */
+    private boolean littleEndian;
+
+    public PythonGenerator(ProtocolModel pModel, Properties pythonProperties) {
+        super(pModel, pythonProperties);
+        littleEndian = this.isLittleEndian();
 
         marshalTypes.setProperty("unsigned short", "unsigned_short");
         marshalTypes.setProperty("unsigned byte", "unsigned_byte");
@@ -57,48 +66,195 @@ public class PythonGenerator extends Generator {
         unmarshalTypes.setProperty("float", "float");
     }
 
+    /**
+     * All the classes go into one file, which starts with the license and imports
+     */
     @Override
-    public void writeClasses() {
-        List sortedClasses = this.sortClasses();
+    protected void renderSharedFiles(Map<String, StringBuilder> files) {
+        String outputFileName = (String) languageProperties.getProperty("filename");
+        System.out.println("putting network code in " + getDirectory() + "/" + outputFileName);
+
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        this.writeLicense(pw);
+        pw.println();
+
+        if (this.hasPrimitiveArrays() || littleEndian) {
+            pw.println("import struct");
+        }
+        pw.println("import DataInputStream");
+        pw.println("import DataOutputStream");
+        pw.println();
+        pw.flush();
+
+        files.put(outputFileName, new StringBuilder(sw.toString()));
+
+        // The factory refers to the classes, so it is a module of its own that imports the classes
+        DispatchTable table = this.getDispatchTable();
+        if (table != null) {
+            StringWriter factory = new StringWriter();
+            this.writeFactoryModule(new PrintWriter(factory), table, outputFileName);
+            files.put(this.getFactoryName() + ".py", new StringBuilder(factory.toString()));
+        }
+    }
+
+    /**
+     * Writes a module that creates messages from their type with a dictionary lookup, and decodes them from a string of
+     * bytes
+     */
+    private void writeFactoryModule(PrintWriter pw, DispatchTable table, String outputFileName) {
+        String module = outputFileName.endsWith(".py") ? outputFileName.substring(0, outputFileName.length() - 3)
+                : outputFileName;
+        String typeField = table.getTypeAttribute().getName();
+        String lengthField = table.getLengthAttribute().getName();
+        String header = table.getHeaderClass().getName();
+
+        this.writeLicense(pw);
+        pw.println();
+        pw.println("\"\"\"Creates and decodes messages by their " + typeField
+                + ", generated from the initial values of " + typeField + " in the XML file.\"\"\"");
+        pw.println();
+        pw.println("import io");
+        pw.println("import struct");
+        pw.println();
+        pw.println("import DataInputStream");
+        pw.println("import " + module);
+        pw.println();
+        pw.println("# Position of " + typeField + " in a marshalled " + header);
+        pw.println("TYPE_OFFSET = " + table.getTypeOffset());
+        pw.println("# Position of " + lengthField + " in a marshalled " + header);
+        pw.println("LENGTH_OFFSET = " + table.getLengthOffset());
+        pw.println("# No message is shorter than this");
+        pw.println("MINIMUM_LENGTH = " + table.getMinimumLength());
+        pw.println();
+        pw.println("# Message class by " + typeField);
+        pw.println("MESSAGE_CLASSES = {");
+        for (Map.Entry<Integer, GeneratedClass> anEntry : table.getClassesByType().entrySet()) {
+            pw.println(INDENT + anEntry.getKey() + ": " + module + "." + anEntry.getValue().getName() + ",");
+        }
+        pw.println("}");
+        pw.println();
+        pw.println();
+        pw.println("def create(" + typeField + "):");
+        pw.println(INDENT
+                + "\"\"\"Makes a new, empty message of the given type, or returns None if there is no class for it\"\"\"");
+        pw.println(INDENT + "messageClass = MESSAGE_CLASSES.get(" + typeField + ")");
+        pw.println(INDENT + "if messageClass is None:");
+        pw.println(INDENT + INDENT + "return None");
+        pw.println(INDENT + "return messageClass()");
+        pw.println();
+        pw.println();
+        pw.println("def decode(data, offset=0):");
+        pw.println(INDENT
+                + "\"\"\"Decodes the message at offset in data. Returns the message, or None for a type with no class, and");
+        pw.println(INDENT + "the offset of the next message as given by its " + lengthField + ". If the " + lengthField
+                + " is too short or runs past the end");
+        pw.println(INDENT + "of data, returns None and the end of data.\"\"\"");
+        pw.println(INDENT + "if len(data) - offset < MINIMUM_LENGTH:");
+        pw.println(INDENT + INDENT + "return None, len(data)");
+        String order = littleEndian ? "<" : ">";
+        pw.println(INDENT + "length = struct.unpack_from('" + order
+                + this.structFormat(table.getLengthAttribute().getType()) + "', data, offset + LENGTH_OFFSET)[0]");
+        pw.println(INDENT + "if length < MINIMUM_LENGTH or offset + length > len(data):");
+        pw.println(INDENT + INDENT + "return None, len(data)");
+        pw.println();
+        pw.println(INDENT + "message = create(struct.unpack_from('" + order
+                + this.structFormat(table.getTypeAttribute().getType()) + "', data, offset + TYPE_OFFSET)[0])");
+        pw.println(INDENT + "if message is not None:");
+        pw.println(INDENT + INDENT
+                + "message.parse(DataInputStream.DataInputStream(io.BytesIO(data[offset:offset + length])))");
+        pw.println(INDENT + "return message, offset + length");
+        pw.flush();
+    }
 
-        this.createDirectory();
-
-        PrintWriter pw = null;
-
-        try {
-            // Create the new, empty file, and create printwriter object for output to it
-            String outputFileName = (String) languageProperties.getProperty("filename");
-            String directoryName = getDirectory();
-            System.out.println("putting network code in " + directoryName + "/" + outputFileName);
-            File outputFile = new File(directoryName + "/" + outputFileName);
-            outputFile.getParentFile().mkdirs();
-            outputFile.createNewFile();
-            pw = new PrintWriter(outputFile);
-            this.writeLicense(pw);
-            pw.println();
-
-            pw.println("import DataInputStream");
-            pw.println("import DataOutputStream");
-            pw.println();
-
-            System.out.println("number of classes: " + sortedClasses.size());
-            Iterator it = sortedClasses.iterator();
-            while (it.hasNext()) {
-
-                GeneratedClass aClass = (GeneratedClass) it.next();
-                String name = aClass.getName();
-                System.out.println("creating python class " + name);
-                // print the source code of the class to the file
-                this.writeClass(pw, aClass);
+    /**
+     * The struct module format character for a primitive type
+     */
+    private String structFormat(String type) {
+        String[] types = { "unsigned byte", "B", "unsigned short", "H", "unsigned int", "I", "unsigned long", "Q",
+                "byte", "b", "short", "h", "int", "i", "long", "q", "float", "f", "double", "d" };
+        for (int idx = 0; idx < types.length; idx += 2) {
+            if (types[idx].equals(type)) {
+                return types[idx + 1];
             }
+        }
+        return "B";
+    }
 
-            pw.flush();
-            pw.close();
-        } catch (Exception e) {
-            System.out.println("problem creating class " + e);
+    /**
+     * A statement that writes one primitive. The DataOutputStream library is big endian, so for byteOrder little the
+     * value is packed with the struct module, like the fixed length arrays, and the whole message has one byte order.
+     */
+    private String scalarWrite(String type, String value) {
+        return "outputStream.stream.write(struct.pack('<" + this.structFormat(type) + "', " + value + "))";
+    }
+
+    /**
+     * An expression that reads one primitive written by scalarWrite()
+     */
+    private String scalarRead(String type) {
+        return "struct.unpack('<" + this.structFormat(type) + "', inputStream.stream.read("
+                + ProtocolLayout.getPrimitiveSize(type) + "))[0]";
+    }
+
+    /**
+     * The struct format for a whole fixed length array of primitives, such as >512b
+     */
+    private String arrayFormat(ClassAttribute anAttribute) {
+        return (littleEndian ? "<" : ">") + anAttribute.getListLength() + this.structFormat(anAttribute.getType());
+    }
+
+    /**
+     * True if some class has a fixed length array of primitives, which is packed with the struct module
+     */
+    private boolean hasPrimitiveArrays() {
+        for (Object aClass : classDescriptions.values()) {
+            List attributes = ((GeneratedClass) aClass).getClassAttributes();
+            for (int idx = 0; idx < attributes.size(); idx++) {
+                ClassAttribute anAttribute = (ClassAttribute) attributes.get(idx);
+                if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST
+                        && anAttribute.getUnderlyingTypeIsPrimitive() && anAttribute.shouldSerialize) {
+                    return true;
+                }
+            }
         }
+        return false;
+    }
 
-    } // end of writeClasses
+    /**
+     * Superclasses must be written before their subclasses
+     */
+    @Override
+    protected Collection getClassesToWrite() {
+        List sortedClasses = this.sortClasses();
+        System.out.println("number of classes: " + sortedClasses.size());
+        return sortedClasses;
+    }
+
+    /**
+     * All the classes go into one file
+     */
+    @Override
+    protected boolean classesShareFiles() {
+        return true;
+    }
+
+    /**
+     * Generate the source code for one class, to be appended to the single output file
+     */
+    @Override
+    protected Map<String, String> renderClass(GeneratedClass aClass) {
+        String name = aClass.getName();
+        System.out.println("creating python class " + name);
+
+        // print the source code of the class to a buffer
+        StringWriter sw = new StringWriter();
+        this.writeClass(new PrintWriter(sw), aClass);
+
+        Map<String, String> files = new LinkedHashMap<String, String>();
+        files.put(languageProperties.getProperty("filename"), sw.toString());
+        return files;
+    }
 
     public void writeClass(PrintWriter pw, GeneratedClass aClass) {
         pw.println();
@@ -110,6 +266,7 @@ public class PythonGenerator extends Generator {
 
         pw.println("class " + aClass.getName() + "( " + parentClassName + " ):");
         this.writeClassComments(pw, aClass);
+        GenerationProfile.section("writeClassComments");
 
         pw.println(INDENT + "def __init__(self):");
         pw.println(INDENT + INDENT + "\"\"\" Initializer for " + aClass.getName() + "\"\"\"");
@@ -200,23 +357,7 @@ public class PythonGenerator extends Generator {
         List inits = aClass.getInitialValues();
         for (int idx = 0; idx < inits.size(); idx++) {
             InitialValue anInit = (InitialValue) inits.get(idx);
-            GeneratedClass currentClass = aClass;
-            boolean found = false;
-
-            while (currentClass != null) {
-                List thisClassesAttributes = currentClass.getClassAttributes();
-                for (int jdx = 0; jdx < thisClassesAttributes.size(); jdx++) {
-                    ClassAttribute anAttribute = (ClassAttribute) thisClassesAttributes.get(jdx);
-                    // System.out.println("--checking " + anAttribute.getName() + " against inital value " +
-                    // anInitialValue.getVariable());
-                    if (anInit.getVariable().equals(anAttribute.getName())) {
-                        found = true;
-                        break;
-                    }
-                }
-                currentClass = (GeneratedClass) classDescriptions.get(currentClass.getParentClass());
-            }
-            if (!found) {
+            if (model.findAttribute(aClass, anInit.getVariable()) == null) {
                 System.out.println("Could not find initial value matching attribute name for " + anInit.getVariable()
                         + " in class " + aClass.getName());
             } else {
@@ -226,8 +367,11 @@ public class PythonGenerator extends Generator {
         } // End initialize initial values
 
         this.writeMarshal(pw, aClass);
+        GenerationProfile.section("writeMarshal");
         this.writeUnmarshal(pw, aClass);
+        GenerationProfile.section("writeUnmarshal");
         this.writeFlagMethods(pw, aClass);
+        GenerationProfile.section("writeFlagMethods");
         pw.println();
         pw.println();
 
@@ -264,7 +408,12 @@ public class PythonGenerator extends Generator {
 
                 // If we're a normal primitivetype, marshal out directly; otherwise, marshall out
                 // the list length.
-                if (anAttribute.getIsDynamicListLengthField() == true) {
+                if (littleEndian) {
+                    String value = anAttribute.getIsDynamicListLengthField()
+                            ? "len(self." + anAttribute.getDynamicListClassAttribute().getName() + ")"
+                            : "self." + anAttribute.getName();
+                    pw.println(INDENT + INDENT + this.scalarWrite(anAttribute.getType(), value));
+                } else if (anAttribute.getIsDynamicListLengthField() == true) {
                     ClassAttribute listAttribute = anAttribute.getDynamicListClassAttribute();
                     pw.println(INDENT + INDENT + "outputStream.write_" + marshalType + "( len(self."
                             + listAttribute.getName() + "));");
@@ -282,14 +431,17 @@ public class PythonGenerator extends Generator {
             case FIXED_LIST:
                 // Write out the method call to encode a fixed length list, aka an array.
 
-                pw.println(INDENT + INDENT + "for idx in range(0, " + anAttribute.getListLength() + "):");
-
                 if (anAttribute.getUnderlyingTypeIsPrimitive() == true) {
-                    marshalType = unmarshalTypes.getProperty(anAttribute.getType());
+                    // One struct call for the whole array rather than one per element
+                    pw.println(INDENT + INDENT + "outputStream.stream.write(struct.pack('"
+                            + this.arrayFormat(anAttribute) + "', *self." + anAttribute.getName() + "))");
+                    pw.println();
+                    break;
+                }
 
-                    pw.println(INDENT + INDENT + INDENT + "outputStream.write_" + marshalType + "( self."
-                            + anAttribute.getName() + "[ idx ] );");
-                } else if (anAttribute.listIsClass() == true) {
+                pw.println(INDENT + INDENT + "for idx in range(0, " + anAttribute.getListLength() + "):");
+
+                if (anAttribute.listIsClass() == true) {
                     pw.println(INDENT + INDENT + INDENT + "self." + anAttribute.getName()
                             + "[ idx ].serialize(outputStream);");
                 }
@@ -311,6 +463,8 @@ public class PythonGenerator extends Generator {
                 if (marshalType == null) // It's a class
                 {
                     pw.println(INDENT + INDENT + INDENT + "anObj.serialize(outputStream)");
+                } else if (littleEndian) {
+                    pw.println(INDENT + INDENT + INDENT + this.scalarWrite(anAttribute.getType(), "anObj"));
                 } else // It's a primitive
                 {
                     pw.println(INDENT + INDENT + INDENT + "outputStream.write_" + marshalType + "( anObj )");
@@ -349,6 +503,11 @@ public class PythonGenerator extends Generator {
             switch (anAttribute.getAttributeKind()) {
             case PRIMITIVE:
                 String marshalType = marshalTypes.getProperty(anAttribute.getType());
+                if (littleEndian) {
+                    pw.println(INDENT + INDENT + "self." + anAttribute.getName() + " = "
+                            + this.scalarRead(anAttribute.getType()));
+                    break;
+                }
                 pw.println(INDENT + INDENT + "self." + anAttribute.getName() + " = inputStream.read_" + marshalType
                         + "();");
                 break;
@@ -360,17 +519,18 @@ public class PythonGenerator extends Generator {
             case FIXED_LIST:
                 // Write out the method call to parse a fixed length list, aka an array.
 
+                if (anAttribute.getUnderlyingTypeIsPrimitive() == true) {
+                    pw.println(INDENT + INDENT + "self." + anAttribute.getName() + " = list(struct.unpack('"
+                            + this.arrayFormat(anAttribute) + "', inputStream.stream.read("
+                            + anAttribute.getListLength() * ProtocolLayout.getPrimitiveSize(anAttribute.getType())
+                            + ")))");
+                    pw.println();
+                    break;
+                }
+
                 pw.println(INDENT + INDENT + "self." + anAttribute.getName() + " = [0]*" + anAttribute.getListLength());
 
                 pw.println(INDENT + INDENT + "for idx in range(0, " + anAttribute.getListLength() + "):");
-
-                if (anAttribute.getUnderlyingTypeIsPrimitive() == true) {
-                    marshalType = unmarshalTypes.getProperty(anAttribute.getType());
-                    pw.println(INDENT + INDENT + INDENT + "val = inputStream.read_" + marshalType);
-                    pw.println(INDENT + INDENT + INDENT + "self." + anAttribute.getName() + "[  idx  ] = val");
-                    // pw.println(INDENT + INDENT + INDENT +"inputStream.read_" + marshalType + "( self." +
-                    // anAttribute.getName() + "[ idx ] );");
-                }
                 // else if(anAttribute.listIsClass() == true)
                 /// {
                 // pw.println(INDENT + INDENT + INDENT+ "self." + anAttribute.getName() + "[ idx
@@ -394,6 +554,9 @@ public class PythonGenerator extends Generator {
                     pw.println(INDENT + INDENT + INDENT + "element = " + anAttribute.dynamicListClassAttribute + "()");
                     pw.println(INDENT + INDENT + INDENT + "element.parse(inputStream)");
                     pw.println(INDENT + INDENT + INDENT + "self." + anAttribute.getName() + ".append(element)");
+                } else if (littleEndian) {
+                    pw.println(INDENT + INDENT + INDENT + "self." + anAttribute.getName() + ".append("
+                            + this.scalarRead(anAttribute.getType()) + ")");
                 } else // It's a primitive
                 {
                     pw.println(INDENT + INDENT + INDENT + "self." + anAttribute.getName() + ".add( inputStream.read_"
@@ -487,52 +650,11 @@ public class PythonGenerator extends Generator {
     }
 
     /**
-     * Python doesn't like forward-declaring classes, so a subclass must be declared after its superclass. This reorders
-     * the list of classes so that this is the case. This re-creates the semantic class inheritance tree structure, then
-     * traverses the tree in preorder fashion to ensure that a base class is written before a subclass. The
-     * implementation is a little wonky in places.
+     * Python doesn't like forward-declaring classes, so a subclass must be declared after its superclass. The model
+     * already keeps the classes in that order.
      */
     public List sortClasses() {
-        List allClasses = new ArrayList(classDescriptions.values());
-        List sortedClasses = new ArrayList();
-
-        TreeNode root = new TreeNode(null);
-
-        while (allClasses.size() > 0) {
-            ListIterator li = allClasses.listIterator();
-            while (li.hasNext()) {
-                GeneratedClass aClass = (GeneratedClass) li.next();
-                if (aClass.getParentClass().equalsIgnoreCase("root")) {
-                    root.addClass(aClass);
-                    li.remove();
-                }
-            }
-
-            li = allClasses.listIterator();
-            while (li.hasNext()) {
-                GeneratedClass aClass = (GeneratedClass) li.next();
-                TreeNode aNode = root.findClass(aClass.getParentClass());
-                if (aNode != null) {
-                    aNode.addClass(aClass);
-                    li.remove();
-                }
-            }
-
-        } // while all classes still has content
-
-        // Get a sorted list
-        List blah = new ArrayList();
-        root.getList(blah);
-
-        Iterator it = blah.iterator();
-        while (it.hasNext()) {
-            TreeNode node = (TreeNode) it.next();
-            if (node.aClass != null) {
-                sortedClasses.add(node.aClass);
-            }
-        }
-
-        return sortedClasses;
+        return new ArrayList(model.getClassesInTopologicalOrder());
     }
 
 }
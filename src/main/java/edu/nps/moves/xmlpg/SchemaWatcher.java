@@ -0,0 +1,134 @@
+package edu.nps.moves.xmlpg;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stays running and regenerates the source code whenever the XML file, or any of the XML files, changes. Each change is
+ * parsed again and generated incrementally, so only the classes affected by the edit are rewritten. Since everything
+ * happens in one JVM there is no Maven or JVM startup per save, and after the first few runs the generators are already
+ * compiled by the JIT.
+ * <p>
+ *
+ * A save that leaves the XML file broken is reported and otherwise ignored; the next good save regenerates as usual.
+ */
+public class SchemaWatcher {
+
+    /**
+     * How long to wait for the file to stop changing before regenerating. Editors often save in several steps, for
+     * example by writing a temporary file and renaming it.
+     */
+    private static final long SETTLE_MILLIS = 50;
+
+    private String xmlFile;
+
+    private String[] languages;
+
+    /**
+     * XML files given by name
+     */
+    private Set<Path> schemaFiles = new HashSet<Path>();
+
+    /**
+     * Directories given as the schema; every XML file in them is part of it
+     */
+    private Set<Path> schemaDirectories = new HashSet<Path>();
+
+    /**
+     * Digest of the XML file when it was last generated, so saves that don't change anything are skipped
+     */
+    private byte[] lastDigest = null;
+
+    public SchemaWatcher(String pXmlFile, String[] pLanguages) {
+        xmlFile = pXmlFile;
+        languages = pLanguages;
+    }
+
+    /**
+     * Generates once, then watches the XML files and regenerates after every change. Doesn't return unless the watch
+     * fails or the thread is interrupted.
+     */
+    public void run() throws IOException, InterruptedException {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            // A file can't be watched directly, only the directory it's in. A directory given as the schema is watched
+            // for any XML file, so files can be added to it.
+            String[] entries = xmlFile.split(File.pathSeparator);
+            for (int idx = 0; idx < entries.length; idx++) {
+                Path anEntry = Paths.get(entries[idx]).toAbsolutePath();
+                if (Files.isDirectory(anEntry)) {
+                    schemaDirectories.add(anEntry);
+                } else {
+                    schemaFiles.add(anEntry);
+                    anEntry = anEntry.getParent();
+                }
+                anEntry.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+
+            this.regenerateIfChanged();
+            System.out.println("Watching " + xmlFile + " for changes");
+
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = this.affects(key);
+
+                WatchKey more;
+                while ((more = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed = this.affects(more) || changed;
+                }
+
+                if (changed) {
+                    this.regenerateIfChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * True if any of the events on the key are for one of the XML files. Resets the key so it keeps reporting events.
+     */
+    private boolean affects(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        boolean affected = false;
+        for (WatchEvent<?> anEvent : key.pollEvents()) {
+            if (anEvent.kind() == StandardWatchEventKinds.OVERFLOW) {
+                affected = true;
+                continue;
+            }
+            Path changedFile = directory.resolve((Path) anEvent.context());
+            if (schemaFiles.contains(changedFile) || (schemaDirectories.contains(directory)
+                    && changedFile.getFileName().toString().toLowerCase().endsWith(".xml"))) {
+                affected = true;
+            }
+        }
+        key.reset();
+        return affected;
+    }
+
+    /**
+     * Regenerates all the languages, unless the contents of the XML files are the same as last time
+     */
+    private void regenerateIfChanged() {
+        byte[] digest;
+        try {
+            digest = ModelSnapshot.digest(Xmlpg.schemaFiles(xmlFile));
+        } catch (IOException e) {
+            // Probably caught in the middle of a save; there will be another event when it's done
+            return;
+        }
+        if (Arrays.equals(digest, lastDigest)) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            new Xmlpg(xmlFile, languages, true);
+            lastDigest = digest;
+            System.out.println("Regenerated in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            System.out.println("Not regenerated, " + e.getMessage());
+        }
+    }
+}
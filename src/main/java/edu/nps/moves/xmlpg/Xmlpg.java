@@ -2,6 +2,7 @@ package edu.nps.moves.xmlpg;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.xml.parsers.*;
 import org.xml.sax.*;
 import org.xml.sax.helpers.*;
@@ -29,24 +30,44 @@ public class Xmlpg {
     /**
      * Contains the database of all the classes described by the XML document
      */
-    protected HashMap generatedClassNames = new HashMap();
+    protected HashMap generatedClassNames = new LinkedHashMap();
 
     /**
-     * The language types we generate
+     * The classes with their inheritance and references resolved, built once the XML document has been read
      */
-    public enum LanguageType {
-        CPP, JAVA, CSHARP, OBJECTIVEC, JAVASCRIPT, PYTHON
-    }
+    protected ProtocolModel model;
 
     /**
-     * As we parse the XML document, this is the class we are currently working on
+     * The language types we generate
      */
-    private GeneratedClass currentGeneratedClass = null;
+    public enum LanguageType {
+        CPP("cpp"), JAVA("java"), CSHARP("csharp"), OBJECTIVEC("objc"), JAVASCRIPT("javascript"), PYTHON("python");
 
-    /**
-     * As we parse the XML document, this is the current attribute
-     */
-    private ClassAttribute currentClassAttribute = null;
+        /**
+         * The name used for this language on the command line, and for its output directory
+         */
+        private final String commandLineName;
+
+        LanguageType(String commandLineName) {
+            this.commandLineName = commandLineName;
+        }
+
+        public String getCommandLineName() {
+            return commandLineName;
+        }
+
+        /**
+         * Returns the language with the given command line name, ignoring case, or null if there is no such language.
+         */
+        public static LanguageType forCommandLineName(String aName) {
+            for (LanguageType aType : LanguageType.values()) {
+                if (aType.commandLineName.equalsIgnoreCase(aName)) {
+                    return aType;
+                }
+            }
+            return null;
+        }
+    }
 
     // The languages may have language-specific properties, such as libraries that they
     // depend on. Each language has its own set of properties.
@@ -85,11 +106,6 @@ public class Xmlpg {
      */
     Properties pythonProperties = new Properties();
 
-    /**
-     * Hash table of all the primitive types we can use (short, long, byte, etc.)
-     */
-    private HashSet primitiveTypes = new HashSet();
-
     /**
      * Directory in which the java class package is created
      */
@@ -111,137 +127,524 @@ public class Xmlpg {
      */
     private String objcDirectory = null;
 
-    private int classCount = 0;
+    /**
+     * Set if the same class name is defined in more than one XML file
+     */
+    private boolean duplicateClasses = false;
+
+    /**
+     * Pool the classes are rendered on, or null to render them one at a time
+     */
+    private ForkJoinPool renderPool = null;
+
+    /**
+     * True if this is one of many runs in the same JVM, as in watch mode
+     */
+    private boolean resident = false;
+
+    /**
+     * Used by readModel(), which only reads
+     */
+    private Xmlpg() {
+    }
 
     /**
      * Create a new collection of Java objects by reading an XML file; these java objects can be used to generate code
      * templates of any language, once you write the translator.
      */
     public Xmlpg(String xmlDescriptionFileName, String languageToGenerate) {
-        // Which languages to generate
-        boolean generateJava = false, generateCpp = false, generateCs = false, generateObjc = false,
-                generatePython = false;
-        LanguageType toGenerate = null;
-
-        if (languageToGenerate.equalsIgnoreCase("java")) {
-            toGenerate = Xmlpg.LanguageType.JAVA;
-        } else if (languageToGenerate.equalsIgnoreCase("cpp")) {
-            toGenerate = Xmlpg.LanguageType.CPP;
-        } else if (languageToGenerate.equalsIgnoreCase("objc")) {
-            toGenerate = Xmlpg.LanguageType.OBJECTIVEC;
-        } else if (languageToGenerate.equalsIgnoreCase("csharp")) {
-            toGenerate = Xmlpg.LanguageType.CSHARP;
-        } else if (languageToGenerate.equalsIgnoreCase("javascript")) {
-            toGenerate = Xmlpg.LanguageType.JAVASCRIPT;
-        } else if (languageToGenerate.equalsIgnoreCase("python")) {
-            toGenerate = Xmlpg.LanguageType.PYTHON;
-        }
-
-        Properties sourceGenerationOptions = new Properties();
+        this(xmlDescriptionFileName, new String[] { languageToGenerate });
+    }
+
+    /**
+     * Reads and checks the XML file once, then generates source code for each of the languages from the same set of
+     * Java objects. When more than one language is requested the generators run concurrently, at most xmlpg.threads (by
+     * default the number of processors) at a time, and each language is written to its own subdirectory of
+     * xmlpg.generatedSourceDir, named after the language (java, cpp, ...).
+     */
+    public Xmlpg(String xmlDescriptionFileName, String[] languagesToGenerate) {
+        this(xmlDescriptionFileName, languagesToGenerate, false);
+    }
+
+    /**
+     * Reads, checks and generates as above. A resident run is one of many in the same JVM, as in watch mode: it
+     * regenerates incrementally, and gives up on an XML file with parse errors rather than using what it could read.
+     *
+     * @throws IllegalStateException
+     *             if the XML files can't be used
+     */
+    protected Xmlpg(String xmlDescriptionFileName, String[] languagesToGenerate, boolean resident) {
+        this.resident = resident;
+        GenerationProfile.reset();
+
+        // Which languages to generate, in the order given, without duplicates
+        Set<LanguageType> toGenerate = new LinkedHashSet<LanguageType>();
+        for (int idx = 0; idx < languagesToGenerate.length; idx++) {
+            LanguageType aLanguage = LanguageType.forCommandLineName(languagesToGenerate[idx]);
+            if (aLanguage != null) {
+                toGenerate.add(aLanguage);
+            }
+        }
+
+        model = this.load(xmlDescriptionFileName, resident);
+
+        // Classes are rendered in parallel on a pool shared by all the languages
+        int threads = Integer.getInteger("xmlpg.threads", Runtime.getRuntime().availableProcessors());
+        if (threads > 1) {
+            renderPool = new ForkJoinPool(threads);
+        }
 
         try {
-            DefaultHandler handler = new MyHandler();
+            if (toGenerate.size() == 1) {
+                this.generate(toGenerate.iterator().next(), null);
+            } else {
+                this.generateConcurrently(toGenerate, threads);
+            }
+        } finally {
+            if (renderPool != null) {
+                renderPool.shutdown();
+            }
+
+            // With -Dxmlpg.profile=reportFile, where the time went
+            GenerationProfile.save();
+        }
+    }
 
+    /**
+     * Reads and checks the XML files of a protocol description. Parse errors are reported; a strict load gives up on
+     * them, otherwise whatever could be read is used. A class defined in two files, or a set of classes that is not
+     * internally consistent, always fails.
+     *
+     * @throws IllegalStateException
+     *             if the protocol description can't be used
+     */
+    private ProtocolModel load(String xmlDescriptionFileName, boolean strict) {
+        List<File> schemaFiles = Xmlpg.schemaFiles(xmlDescriptionFileName);
+
+        // With xmlpg.snapshot=true the classes are read from a snapshot of an earlier parse of the same XML file, if
+        // there is one, and a snapshot is written after a parse without errors
+        boolean useSnapshot = Boolean.getBoolean("xmlpg.snapshot");
+        File snapshotFile = ModelSnapshot.snapshotFileFor(xmlDescriptionFileName);
+        byte[] digest = null;
+        boolean fromSnapshot = false;
+
+        if (useSnapshot) {
+            try {
+                GenerationProfile.Mark snapshotMark = GenerationProfile.start();
+                digest = ModelSnapshot.digest(schemaFiles);
+                fromSnapshot = this.loadSnapshot(ModelSnapshot.read(snapshotFile, digest));
+                if (fromSnapshot) {
+                    GenerationProfile.end(snapshotMark, "snapshot", null, snapshotFile.getPath(),
+                            snapshotFile.length());
+                }
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+
+        boolean parsedCleanly = true;
+        if (!fromSnapshot) {
+            List<MyHandler> handlers = this.parse(schemaFiles);
+            parsedCleanly = this.merge(schemaFiles, handlers);
+            if (!parsedCleanly && useSnapshot && snapshotFile.exists()) {
+                // Whatever the snapshot holds, it isn't what the XML files say now
+                snapshotFile.delete();
+            }
+            if (!parsedCleanly && (strict || duplicateClasses)) {
+                System.out.println("There are one or more errors in the XML files. See output for details.");
+                throw new IllegalStateException("could not parse " + xmlDescriptionFileName);
+            }
+        }
+
+        Map<String, Properties> allLanguageProperties = new LinkedHashMap<String, Properties>();
+        for (LanguageType aLanguage : LanguageType.values()) {
+            allLanguageProperties.put(aLanguage.getCommandLineName(), this.getLanguageProperties(aLanguage));
+        }
+        GenerationProfile.Mark validateMark = GenerationProfile.start();
+        model = new ProtocolModel(generatedClassNames, allLanguageProperties);
+
+        // This does at least a cursory santity check on the data that has been read in from XML
+        // It is far from complete. A snapshot is only written once the check has passed.
+        if (!fromSnapshot && !Xmlpg.astIsPlausible(model)) {
+            System.out.println("The generated XML file is not internally consistent according to astIsPlausible()");
+            System.out.println("There are one or more errors in the XML file. See output for details.");
+            throw new IllegalStateException(xmlDescriptionFileName + " is not internally consistent");
+        }
+        GenerationProfile.end(validateMark, "validate", null, xmlDescriptionFileName, -1);
+
+        if (useSnapshot && !fromSnapshot && parsedCleanly && digest != null) {
+            try {
+                ModelSnapshot.write(snapshotFile, digest, generatedClassNames, allLanguageProperties);
+            } catch (IOException e) {
+                System.out.println("Could not write snapshot " + snapshotFile + " " + e);
+            }
+        }
+
+        return model;
+    }
+
+    /**
+     * Reads and checks a protocol description, for use with generate(). Unlike the command line this never exits; any
+     * problem with the XML files is reported and thrown.
+     *
+     * @param schema
+     *            an XML file, a directory of XML files, or a list of them separated by the path separator
+     * @throws IllegalStateException
+     *             if the XML files can't be parsed or are not internally consistent
+     */
+    public static ProtocolModel readModel(String schema) {
+        return new Xmlpg().load(schema, true);
+    }
+
+    /**
+     * Generates the source code for one language into a sink, in the calling thread.
+     *
+     * @param model
+     *            from readModel()
+     * @param language
+     *            the language to generate
+     * @param sink
+     *            where the files go; it is not closed
+     */
+    public static void generate(ProtocolModel model, LanguageType language, OutputSink sink) {
+        Xmlpg.generate(model, language, sink, null);
+    }
+
+    /**
+     * Generates the source code for one language into a sink, rendering classes on a pool.
+     *
+     * @param renderPool
+     *            pool to render on, or null to render in the calling thread
+     */
+    public static void generate(ProtocolModel model, LanguageType language, OutputSink sink, ForkJoinPool renderPool) {
+        Properties languageProperties = model.getLanguageProperties(language.getCommandLineName());
+        Xmlpg.createGenerator(model, language, languageProperties).writeClasses(sink, renderPool);
+    }
+
+    /**
+     * The XML files that make up a protocol description. This may be a single file, a directory, in which case every
+     * .xml file in it is used in name order, or a list of files and directories separated by the path separator (":" on
+     * Unix, ";" on Windows).
+     */
+    public static List<File> schemaFiles(String schema) {
+        List<File> files = new ArrayList<File>();
+        String[] entries = schema.split(File.pathSeparator);
+        for (int idx = 0; idx < entries.length; idx++) {
+            File anEntry = new File(entries[idx]);
+            if (anEntry.isDirectory()) {
+                File[] xmlFiles = anEntry.listFiles((dir, name) -> name.toLowerCase().endsWith(".xml"));
+                Arrays.sort(xmlFiles);
+                files.addAll(Arrays.asList(xmlFiles));
+            } else if (!entries[idx].isEmpty()) {
+                files.add(anEntry);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Parses each XML file with its own handler. When there is more than one file they are parsed concurrently, at most
+     * xmlpg.threads at a time. The handlers are returned in the same order as the files.
+     */
+    private List<MyHandler> parse(List<File> files) {
+        List<MyHandler> handlers = new ArrayList<MyHandler>();
+        if (files.size() == 1) {
+            handlers.add(Xmlpg.parseFile(files.get(0)));
+            return handlers;
+        }
+
+        int threads = Integer.getInteger("xmlpg.threads", Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(Math.min(files.size(), threads), 1));
+        List<Future<MyHandler>> results = new ArrayList<Future<MyHandler>>();
+        for (final File aFile : files) {
+            results.add(executor.submit(() -> Xmlpg.parseFile(aFile)));
+        }
+        executor.shutdown();
+
+        for (int idx = 0; idx < results.size(); idx++) {
+            try {
+                handlers.add(results.get(idx).get());
+            } catch (ExecutionException e) {
+                // parseFile reports its own problems, so this is unexpected
+                System.out.println("error parsing " + files.get(idx) + " " + e.getCause());
+                handlers.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                handlers.add(null);
+            }
+        }
+        return handlers;
+    }
+
+    /**
+     * Parses one XML file. A parse error is reported, and whatever was read before it is kept.
+     */
+    private static MyHandler parseFile(File aFile) {
+        GenerationProfile.Mark parseMark = GenerationProfile.start();
+        MyHandler handler = new MyHandler();
+        try {
             SAXParserFactory factory = SAXParserFactory.newInstance();
             factory.setValidating(false);
-            factory.newSAXParser().parse(new File(xmlDescriptionFileName), handler);
+            factory.newSAXParser().parse(aFile, handler);
         } catch (Exception e) {
             System.out.println(e);
+            handler.parseFailed = true;
         }
+        GenerationProfile.end(parseMark, "parse", null, aFile.getPath(), aFile.length());
+        return handler;
+    }
+
+    /**
+     * Combines what was read from each of the files, in file order. A class defined in more than one file is an error.
+     * Language properties from different files are combined; if two files give a property different values the first
+     * one is kept and the conflict reported.
+     *
+     * @return true if every file was parsed without errors and no class was defined in two files
+     */
+    private boolean merge(List<File> files, List<MyHandler> handlers) {
+        boolean clean = true;
+        Map<String, File> definedIn = new HashMap<String, File>();
+
+        for (int idx = 0; idx < handlers.size(); idx++) {
+            MyHandler handler = handlers.get(idx);
+            File aFile = files.get(idx);
+            if (handler == null || handler.parseFailed) {
+                clean = false;
+                if (handler == null) {
+                    continue;
+                }
+            }
 
-        Iterator iterator = generatedClassNames.values().iterator();
+            // Within one file the last definition has always won; keep that, but say so
+            for (int jdx = 0; jdx < handler.duplicateClassNames.size(); jdx++) {
+                System.out.println("Class " + handler.duplicateClassNames.get(jdx) + " is defined more than once in "
+                        + aFile + ", using the last definition");
+            }
 
-        // This does at least a cursory santity check on the data that has been read in from XML
-        // It is far from complete.
-        if (!this.astIsPlausible()) {
-            System.out.println("The generated XML file is not internally consistent according to astIsPlausible()");
-            System.out.println("There are one or more errors in the XML file. See output for details.");
-            System.exit(1);
+            Iterator it = handler.generatedClassNames.values().iterator();
+            while (it.hasNext()) {
+                GeneratedClass aClass = (GeneratedClass) it.next();
+                File firstFile = definedIn.put(aClass.getName(), aFile);
+                if (firstFile != null) {
+                    System.out.println(
+                            "Class " + aClass.getName() + " is defined in both " + firstFile + " and " + aFile);
+                    duplicateClasses = true;
+                    clean = false;
+                    continue;
+                }
+                generatedClassNames.put(aClass.getName(), aClass);
+            }
+
+            for (LanguageType aLanguage : LanguageType.values()) {
+                Properties merged = this.getLanguageProperties(aLanguage);
+                Properties fromFile = handler.getLanguageProperties(aLanguage);
+                for (String aName : fromFile.stringPropertyNames()) {
+                    String existing = merged.getProperty(aName);
+                    if (existing == null) {
+                        merged.setProperty(aName, fromFile.getProperty(aName));
+                    } else if (!existing.equals(fromFile.getProperty(aName))) {
+                        System.out.println("Ignoring " + aLanguage.getCommandLineName() + " property " + aName + "="
+                                + fromFile.getProperty(aName) + " in " + aFile + ", already set to " + existing);
+                    }
+                }
+            }
         }
+        return clean;
+    }
 
-        // System.out.println("putting java files in " + javaDirectory);
-        // Create a new generator object to write out the source code for all the classes in java
-        if (toGenerate == Xmlpg.LanguageType.JAVA) {
-            JavaGenerator javaGenerator = new JavaGenerator(generatedClassNames, javaProperties);
-            javaGenerator.writeClasses();
+    /**
+     * Runs the generators for several languages on a bounded thread pool. The parsed classes are only read by the
+     * generators, so they can safely be shared between them. A failure in one language is reported and does not stop
+     * the others, but is thrown once they have all finished.
+     *
+     * @throws IllegalStateException
+     *             if any of the languages could not be generated, or the wait was interrupted
+     */
+    private void generateConcurrently(Set<LanguageType> languages, int threads) {
+        String baseDirectory = System.getProperty("xmlpg.generatedSourceDir");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(Math.min(languages.size(), threads), 1));
+
+        Map<LanguageType, Future<?>> results = new LinkedHashMap<LanguageType, Future<?>>();
+        for (final LanguageType aLanguage : languages) {
+            final String directory = (baseDirectory == null ? "" : baseDirectory + "/")
+                    + aLanguage.getCommandLineName();
+            results.put(aLanguage, executor.submit(() -> this.generate(aLanguage, directory)));
+        }
+        executor.shutdown();
+
+        List<String> failed = new ArrayList<String>();
+        for (Map.Entry<LanguageType, Future<?>> aResult : results.entrySet()) {
+            try {
+                aResult.getValue().get();
+            } catch (ExecutionException e) {
+                System.out.println(
+                        "error generating " + aResult.getKey().getCommandLineName() + " source code " + e.getCause());
+                failed.add(aResult.getKey().getCommandLineName());
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while generating source code");
+            }
         }
 
-        // Use the same information to generate classes in C++
-        if (toGenerate == Xmlpg.LanguageType.CPP) {
-            CppGenerator cppGenerator = new CppGenerator(generatedClassNames, cppProperties);
-            cppGenerator.writeClasses();
+        if (!failed.isEmpty()) {
+            throw new IllegalStateException("could not generate " + String.join(", ", failed) + " source code");
         }
+    }
 
-        if (toGenerate == Xmlpg.LanguageType.CSHARP) {
-            // Create a new generator object to write out the source code for all the classes in csharp
-            CsharpGenerator csharpGenerator = new CsharpGenerator(generatedClassNames, csharpProperties);
-            csharpGenerator.writeClasses();
+    /**
+     * Create a new generator object to write out the source code for all the classes in one language.
+     *
+     * @param toGenerate
+     *            the language
+     * @param directory
+     *            directory to write to, or null to use xmlpg.generatedSourceDir
+     */
+    private void generate(LanguageType toGenerate, String directory) {
+        Properties languageProperties = model.getLanguageProperties(toGenerate.getCommandLineName());
+        if (directory != null) {
+            languageProperties.setProperty("generatedSourceDir", directory);
         }
 
-        if (toGenerate == Xmlpg.LanguageType.OBJECTIVEC) {
-            // create a new generator object for objc
-            ObjcGenerator objcGenerator = new ObjcGenerator(generatedClassNames, objcProperties);
-            objcGenerator.writeClasses();
+        Generator generator = Xmlpg.createGenerator(model, toGenerate, languageProperties);
+        if (resident) {
+            generator.setIncremental(true);
         }
 
-        if (toGenerate == Xmlpg.LanguageType.JAVASCRIPT) {
-            // create a new generator object for javascript
-            JavascriptGenerator javascriptGenerator = new JavascriptGenerator(generatedClassNames,
-                    javascriptProperties);
-            javascriptGenerator.writeClasses();
+        if (renderPool == null) {
+            generator.writeClasses();
+        } else {
+            generator.writeClassesParallel(renderPool);
         }
+    }
 
-        if (toGenerate == Xmlpg.LanguageType.PYTHON) {
-            // create a new generator object for Python
-            PythonGenerator pythonGenerator = new PythonGenerator(generatedClassNames, pythonProperties);
-            pythonGenerator.writeClasses();
+    /**
+     * Creates the generator for a language
+     *
+     * @throws IllegalArgumentException
+     *             if a property the generator needs is missing
+     */
+    private static Generator createGenerator(ProtocolModel model, LanguageType language,
+            Properties languageProperties) {
+        switch (language) {
+        case JAVA:
+            return new JavaGenerator(model, languageProperties);
+        case CPP:
+            return new CppGenerator(model, languageProperties);
+        case CSHARP:
+            return new CsharpGenerator(model, languageProperties);
+        case OBJECTIVEC:
+            return new ObjcGenerator(model, languageProperties);
+        case JAVASCRIPT:
+            return new JavascriptGenerator(model, languageProperties);
+        default:
+            return new PythonGenerator(model, languageProperties);
         }
     }
 
     /**
-     * entry point. Pass in two arguments, the language you want to generate for and the XML file that describes the
-     * classes
+     * Takes the classes and language properties from a snapshot in place of parsing the XML file.
+     *
+     * @return false if there is no usable snapshot
      */
-    public static void main(String args[]) {
-        String language = null;
+    private boolean loadSnapshot(ModelSnapshot snapshot) {
+        if (snapshot == null) {
+            return false;
+        }
 
-        Properties props = System.getProperties();
-        // props.list(System.out);
+        generatedClassNames.putAll(snapshot.getClassDescriptions());
+        for (LanguageType aLanguage : LanguageType.values()) {
+            this.getLanguageProperties(aLanguage)
+                    .putAll(snapshot.getLanguageProperties(aLanguage.getCommandLineName()));
+        }
+        return true;
+    }
 
-        if (args.length < 2 || args.length > 2) {
-            System.out.println("Usage: Xmlpg xmlFile language");
-            System.out.println("Allowable languages are java, cpp, objc, python, and csharp");
+    /**
+     * Returns the language-specific properties read from the XML file for a language
+     */
+    private Properties getLanguageProperties(LanguageType aLanguage) {
+        switch (aLanguage) {
+        case JAVA:
+            return javaProperties;
+        case CPP:
+            return cppProperties;
+        case CSHARP:
+            return csharpProperties;
+        case OBJECTIVEC:
+            return objcProperties;
+        case JAVASCRIPT:
+            return javascriptProperties;
+        default:
+            return pythonProperties;
+        }
+    }
+
+    /**
+     * entry point. Pass in the XML file that describes the classes followed by one or more languages you want to
+     * generate for
+     */
+    public static void main(String args[]) {
+        if (args.length < 2) {
+            System.out.println("Usage: Xmlpg xmlFile language [language ...]");
+            System.out.println("Allowable languages are java, cpp, objc, javascript, python, and csharp");
             System.exit(0);
         }
 
-        Xmlpg.preflightArgs(args[0], args[1]);
+        String[] languages = Arrays.copyOfRange(args, 1, args.length);
+        for (int idx = 0; idx < languages.length; idx++) {
+            Xmlpg.preflightArgs(args[0], languages[idx]);
+        }
+
+        // With xmlpg.watch=true, stay running and regenerate whenever the XML file changes
+        if (Boolean.getBoolean("xmlpg.watch")) {
+            try {
+                new SchemaWatcher(args[0], languages).run();
+            } catch (Exception e) {
+                System.out.println("Stopped watching " + args[0] + " " + e);
+            }
+            return;
+        }
 
-        Xmlpg gen = new Xmlpg(args[0], args[1]);
+        try {
+            Xmlpg gen = new Xmlpg(args[0], languages);
+        } catch (IllegalStateException e) {
+            // The problems have already been reported
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
     } // end of main
 
     /**
-     * Does a sanity check on the args passed in: does the XML file exist, and is the language valid.
+     * Does a sanity check on the args passed in: do the XML files exist, and is the language valid.
      */
     public static void preflightArgs(String xmlFile, String language) {
         try {
-            FileInputStream fis = new FileInputStream(xmlFile);
-            fis.close();
+            // Every file of a schema split across several files must be readable
+            List<File> files = Xmlpg.schemaFiles(xmlFile);
+            if (files.isEmpty()) {
+                throw new FileNotFoundException(xmlFile);
+            }
+            for (File aFile : files) {
+                FileInputStream fis = new FileInputStream(aFile);
+                fis.close();
+            }
 
-            if (!(language.equalsIgnoreCase("java") || language.equalsIgnoreCase("cpp")
-                    || language.equalsIgnoreCase("objc") || language.equalsIgnoreCase("csharp")
-                    || language.equalsIgnoreCase("javascript") || language.equalsIgnoreCase("python"))) {
+            if (LanguageType.forCommandLineName(language) == null) {
                 System.out.println(
                         "Not a valid language to generate. The options are java, cpp, objc, javascript, python and csharp");
-                System.out.println("Usage: Xmlpg xmlFile language");
+                System.out.println("Usage: Xmlpg xmlFile language [language ...]");
                 System.exit(0);
             }
         } catch (FileNotFoundException fnfe) {
             System.out.println("XML file " + xmlFile + " not found. Please check the path and try again");
-            System.out.println("Usage: Xmlpg xmlFile language");
+            System.out.println("Usage: Xmlpg xmlFile language [language ...]");
             System.exit(0);
         } catch (Exception e) {
             System.out.println("Problem with arguments to Xmlpg. Please check them.");
-            System.out.println("Usage: Xmlpg xmlFile language");
+            System.out.println("Usage: Xmlpg xmlFile language [language ...]");
 
             System.exit(0);
         }
@@ -258,9 +661,10 @@ public class Xmlpg {
      *
      * AST is a reference to "abstract syntax tree", which this really isn't, but sort of is.
      */
-    private boolean astIsPlausible() {
+    public static boolean astIsPlausible(ProtocolModel model) {
 
         // Create a list of primitive types we can use to check against
+        HashSet primitiveTypes = new HashSet();
         primitiveTypes.add("byte");
         primitiveTypes.add("short");
         primitiveTypes.add("int");
@@ -272,70 +676,44 @@ public class Xmlpg {
         primitiveTypes.add("float");
         primitiveTypes.add("double");
 
+        // Inheritance and references to other classes were checked when the model was built
+        List problems = model.getProblems();
+        for (int idx = 0; idx < problems.size(); idx++) {
+            System.out.println(problems.get(idx));
+        }
+        if (!problems.isEmpty()) {
+            return false;
+        }
+
         // trip through every class specified
-        Iterator iterator = generatedClassNames.values().iterator();
+        Iterator iterator = model.getClassesInTopologicalOrder().iterator();
         while (iterator.hasNext()) {
             GeneratedClass aClass = (GeneratedClass) iterator.next();
 
-            // Trip through every class attribute in this class and confirm that the type is either a primitive or
-            // references
-            // another class defined in the document.
+            // Trip through every class attribute in this class and confirm that the type is a known primitive
             List attribs = aClass.getClassAttributes();
             for (int idx = 0; idx < attribs.size(); idx++) {
                 ClassAttribute anAttribute = (ClassAttribute) attribs.get(idx);
 
-                ClassAttribute.ClassAttributeType kindOfNode = anAttribute.getAttributeKind();
-
                 // The primitive type is on the known list of primitives.
-                if (kindOfNode == ClassAttribute.ClassAttributeType.PRIMITIVE) {
+                if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
                     if (primitiveTypes.contains(anAttribute.getType()) == false) {
                         System.out.println("Cannot find a primitive type of " + anAttribute.getType() + " in class "
                                 + aClass.getName());
                         return false;
                     }
                 }
-
-                // The class referenced is available elsewehere in the document
-                if (kindOfNode == ClassAttribute.ClassAttributeType.CLASSREF) {
-                    if (generatedClassNames.get(anAttribute.getType()) == null) {
-                        System.out.println("Makes reference to a class of name " + anAttribute.getType() + " in class "
-                                + aClass.getName()
-                                + " but no user-defined class of that type can be found in the document");
-                        return false;
-                    }
-
-                }
             } // end of trip through one class' attributes
 
             // Run through the list of initial values, ensuring that the initial values mentioned actually exist as
-            // attributes
-            // somewhere up the inheritance chain.
+            // attributes somewhere up the inheritance chain.
             List initialValues = aClass.getInitialValues();
-
             for (int idx = 0; idx < initialValues.size(); idx++) {
                 InitialValue anInitialValue = (InitialValue) initialValues.get(idx);
-                GeneratedClass currentClass = aClass;
-                boolean found = false;
-
-                // System.out.println("----Looking for matches of inital value " + anInitialValue.getVariable());
-                while (currentClass != null) {
-                    List thisClassesAttributes = currentClass.getClassAttributes();
-                    for (int jdx = 0; jdx < thisClassesAttributes.size(); jdx++) {
-                        ClassAttribute anAttribute = (ClassAttribute) thisClassesAttributes.get(jdx);
-                        // System.out.println("--checking " + anAttribute.getName() + " against inital value " +
-                        // anInitialValue.getVariable());
-                        if (anInitialValue.getVariable().equals(anAttribute.getName())) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    currentClass = (GeneratedClass) generatedClassNames.get(currentClass.getParentClass());
-                }
-                if (!found) {
+                if (model.findAttribute(aClass, anInitialValue.getVariable()) == null) {
                     System.out.println("Could not find initial value matching attribute name for "
                             + anInitialValue.getVariable() + " in class " + aClass.getName());
                 }
-
             } // end of for loop thorugh initial values
 
         } // End of trip through classes
@@ -347,7 +725,62 @@ public class Xmlpg {
      * inner class that handles the SAX parsing of the XML file. This is relatively simnple, if a little verbose.
      * Basically we just create the appropriate objects as we come across the XML elements in the file.
      */
-    public class MyHandler extends DefaultHandler {
+    public static class MyHandler extends DefaultHandler {
+
+        /**
+         * The classes read from this file, key = name, value = GeneratedClass, in the order they were read
+         */
+        HashMap generatedClassNames = new LinkedHashMap();
+
+        /**
+         * Names of classes defined more than once in this file
+         */
+        List<String> duplicateClassNames = new ArrayList<String>();
+
+        /**
+         * Set if the file could not be parsed to the end
+         */
+        boolean parseFailed = false;
+
+        /**
+         * As we parse the XML document, this is the class we are currently working on
+         */
+        private GeneratedClass currentGeneratedClass = null;
+
+        /**
+         * As we parse the XML document, this is the current attribute
+         */
+        private ClassAttribute currentClassAttribute = null;
+
+        private int classCount = 0;
+
+        // Language-specific properties read from this file
+        Properties javaProperties = new Properties();
+        Properties cppProperties = new Properties();
+        Properties csharpProperties = new Properties();
+        Properties objcProperties = new Properties();
+        Properties javascriptProperties = new Properties();
+        Properties pythonProperties = new Properties();
+
+        /**
+         * The properties read from this file for a language
+         */
+        Properties getLanguageProperties(LanguageType aLanguage) {
+            switch (aLanguage) {
+            case JAVA:
+                return javaProperties;
+            case CPP:
+                return cppProperties;
+            case CSHARP:
+                return csharpProperties;
+            case OBJECTIVEC:
+                return objcProperties;
+            case JAVASCRIPT:
+                return javascriptProperties;
+            default:
+                return pythonProperties;
+            }
+        }
 
         /**
          * We've come across a start element
@@ -402,6 +835,33 @@ public class Xmlpg {
                 }
             }
 
+            // A projection, the fields of a class that some reader needs. Only Java generates projections, so it is
+            // kept as the java property projection.Name=Class:fields
+            if (qName.equalsIgnoreCase("projection")) {
+                String projectionName = null;
+                String projectedClass = null;
+                String fields = null;
+                for (int idx = 0; idx < attributes.getLength(); idx++) {
+                    if (attributes.getQName(idx).equalsIgnoreCase("name")) {
+                        projectionName = attributes.getValue(idx);
+                    }
+                    if (attributes.getQName(idx).equalsIgnoreCase("class")) {
+                        projectedClass = attributes.getValue(idx);
+                    }
+                    if (attributes.getQName(idx).equalsIgnoreCase("fields")) {
+                        fields = attributes.getValue(idx);
+                    }
+                }
+                if (projectedClass == null || fields == null) {
+                    System.out.println("A projection needs class and fields attributes; ignoring it");
+                } else {
+                    if (projectionName == null) {
+                        projectionName = projectedClass + "Projection";
+                    }
+                    javaProperties.setProperty("projection." + projectionName, projectedClass + ":" + fields);
+                }
+            }
+
             // We've hit the start of a class element. Pick up the attributes of this (name, and any comments)
             // and then prepare for reading attributes.
             if (qName.compareToIgnoreCase("class") == 0) {
@@ -643,6 +1103,9 @@ public class Xmlpg {
                 classCount--;
                 // System.out.println("classCount is " + classCount);
                 // System.out.println("---#End of class" + currentGeneratedClass.getName());
+                if (generatedClassNames.containsKey(currentGeneratedClass.getName())) {
+                    duplicateClassNames.add(currentGeneratedClass.getName());
+                }
                 generatedClassNames.put(currentGeneratedClass.getName(), currentGeneratedClass);
             }
 
@@ -0,0 +1,52 @@
+package edu.nps.moves.xmlpg;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.jar.*;
+import java.util.zip.*;
+
+/**
+ * Streams the generated files into a zip file, or a jar if the file name ends in .jar, without creating any other
+ * files. The entries are written from one thread, in the order the generator assembles them.
+ */
+public class ZipSink implements OutputSink {
+
+    private ZipOutputStream zipStream;
+
+    /**
+     * Writes to a new zip or jar file
+     */
+    public ZipSink(File zipFile) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(zipFile)), zipFile.getName().toLowerCase().endsWith(".jar"));
+    }
+
+    /**
+     * Writes a zip or jar to a stream. The stream is closed when the sink is.
+     *
+     * @param outputStream
+     *            where the archive goes
+     * @param jar
+     *            true to write a jar, with a manifest as its first entry
+     */
+    public ZipSink(OutputStream outputStream, boolean jar) throws IOException {
+        if (jar) {
+            Manifest manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            zipStream = new JarOutputStream(outputStream, manifest);
+        } else {
+            zipStream = new ZipOutputStream(outputStream);
+        }
+    }
+
+    @Override
+    public synchronized void write(String relativePath, CharSequence contents) throws IOException {
+        zipStream.putNextEntry(new ZipEntry(relativePath));
+        zipStream.write(contents.toString().getBytes(Charset.defaultCharset()));
+        zipStream.closeEntry();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        zipStream.close();
+    }
+}
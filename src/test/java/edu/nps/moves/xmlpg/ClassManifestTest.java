@@ -0,0 +1,112 @@
+package edu.nps.moves.xmlpg;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that the hash of a class changes whenever the code generated for it would
+ */
+public class ClassManifestTest {
+
+    private static final String SCHEMA = "src/test/resources/lists.xml";
+
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<classes>\n"
+            + "<java package=\"inc\" imports=\"java.util.*, java.io.*\" useHibernate=\"false\" useJaxb=\"false\"/>\n"
+            + "<class name=\"Id\" inheritsFrom=\"root\" comment=\"id\">\n"
+            + "  <attribute name=\"a\" comment=\"a\"><primitive type=\"int\"/></attribute>\n</class>\n"
+            + "<class name=\"FixedPdu\" inheritsFrom=\"root\" comment=\"pdu\">\n"
+            + "  <attribute name=\"id\" comment=\"id\"><classRef name=\"Id\"/></attribute>\n</class>\n";
+
+    private static final String SUBCLASS = "<class name=\"IdX\" inheritsFrom=\"Id\" comment=\"idx\">\n"
+            + "  <attribute name=\"b\" comment=\"b\"><primitive type=\"int\"/></attribute>\n</class>\n";
+
+    @Test
+    public void referencedClassGainingASubclassChangesTheHash() throws IOException {
+        String before = this.hashOf(HEADER + "</classes>\n", "FixedPdu");
+        String after = this.hashOf(HEADER + SUBCLASS + "</classes>\n", "FixedPdu");
+        assertNotEquals("FixedPdu is no longer fixed size once Id has a subclass", before, after);
+    }
+
+    @Test
+    public void unrelatedClassLeavesTheHashAlone() throws IOException {
+        String before = this.hashOf(HEADER + "</classes>\n", "FixedPdu");
+        String after = this.hashOf(
+                HEADER + SUBCLASS.replace("inheritsFrom=\"Id\"", "inheritsFrom=\"root\"") + "</classes>\n", "FixedPdu");
+        assertEquals(before, after);
+    }
+
+    @After
+    public void clearOptions() {
+        System.clearProperty("xmlpg.incremental");
+        System.clearProperty("xmlpg.generateFactory");
+        System.clearProperty("xmlpg.byteOrder");
+    }
+
+    @Test
+    public void commandLineOptionRegeneratesClasses() throws IOException {
+        this.assertIncrementalRunMatchesFullRun("xmlpg.generateFactory", "true");
+    }
+
+    @Test
+    public void commandLineByteOrderRegeneratesClasses() throws IOException {
+        this.assertIncrementalRunMatchesFullRun("xmlpg.byteOrder", "little");
+    }
+
+    private String hashOf(String schema, String className) throws IOException {
+        Path file = Files.createTempFile("manifest", ".xml");
+        try {
+            Files.write(file, schema.getBytes(StandardCharsets.UTF_8));
+            ProtocolModel model = Xmlpg.readModel(file.toString());
+            return ClassManifest.hashClass(model.getGeneratedClass(className), model);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Generates lists.xml incrementally into a directory, sets an option on the command line, generates again and
+     * checks that each class in the directory is the same as in a full run with that option
+     */
+    private void assertIncrementalRunMatchesFullRun(String option, String value) throws IOException {
+        Path dir = Files.createTempDirectory("manifest");
+        try {
+            System.setProperty("xmlpg.incremental", "true");
+            DirectorySink directory = new DirectorySink(dir.toFile());
+            Xmlpg.generate(Xmlpg.readModel(SCHEMA), Xmlpg.LanguageType.JAVA, directory);
+
+            System.setProperty(option, value);
+            Xmlpg.generate(Xmlpg.readModel(SCHEMA), Xmlpg.LanguageType.JAVA, directory);
+
+            System.clearProperty("xmlpg.incremental");
+            MemorySink full = new MemorySink();
+            Xmlpg.generate(Xmlpg.readModel(SCHEMA), Xmlpg.LanguageType.JAVA, full);
+
+            for (Map.Entry<String, String> aFile : full.getFiles().entrySet()) {
+                Path generated = dir.resolve(aFile.getKey());
+                assertTrue(aFile.getKey() + " missing", Files.isRegularFile(generated));
+                assertEquals(aFile.getKey() + " is stale after setting " + option, aFile.getValue(),
+                        new String(Files.readAllBytes(generated), Charset.defaultCharset()));
+            }
+        } finally {
+            this.delete(dir.toFile());
+        }
+    }
+
+    private void delete(File aFile) {
+        File[] children = aFile.listFiles();
+        if (children != null) {
+            for (File aChild : children) {
+                this.delete(aChild);
+            }
+        }
+        aFile.delete();
+    }
+}
@@ -0,0 +1,387 @@
+package edu.nps.moves.xmlpg;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Generates Java from a small protocol with each combination of options that changes the generated code, and checks
+ * that it compiles; some combinations are also loaded and run against a message with a known byte layout.
+ */
+public class GeneratedJavaTest {
+
+    private static final String SCHEMA = "src/test/resources/lists.xml";
+
+    /** Every boolean option of the Java generator */
+    private static final String[] OPTIONS = { "generateViews", "reuseOnUnmarshal", "generatePools", "generateStrings",
+            "lazyUnmarshal", "generateDeltas", "generateFactory" };
+
+    private static final String PACKAGE = "edu.nps.moves.lists.";
+
+    /** Directories the generated code was compiled to, deleted after each test */
+    private List<Path> compiled = new ArrayList<Path>();
+
+    @After
+    public void clearOptions() {
+        for (String anOption : OPTIONS) {
+            System.clearProperty("xmlpg." + anOption);
+        }
+        System.clearProperty("xmlpg.byteOrder");
+        for (Path aDir : compiled) {
+            this.delete(aDir.toFile());
+        }
+    }
+
+    @Test
+    public void compilesWithoutOptions() throws IOException {
+        this.assertCompiles();
+    }
+
+    @Test
+    public void compilesWithEveryOption() throws IOException {
+        for (String anOption : OPTIONS) {
+            System.setProperty("xmlpg." + anOption, "true");
+        }
+        this.assertCompiles();
+    }
+
+    @Test
+    public void compilesWithEveryOptionLittleEndian() throws IOException {
+        for (String anOption : OPTIONS) {
+            System.setProperty("xmlpg." + anOption, "true");
+        }
+        System.setProperty("xmlpg.byteOrder", "little");
+        this.assertCompiles();
+    }
+
+    @Test
+    public void compilesWithEachOption() throws IOException {
+        for (String anOption : OPTIONS) {
+            System.setProperty("xmlpg." + anOption, "true");
+            this.assertCompiles();
+            System.clearProperty("xmlpg." + anOption);
+        }
+    }
+
+    @Test
+    public void lazyUnmarshalMatchesEagerUnmarshal() throws Exception {
+        System.setProperty("xmlpg.lazyUnmarshal", "true");
+        ClassLoader loader = this.compile();
+        byte[] message = this.entityStatePdu(ByteOrder.BIG_ENDIAN);
+
+        Object eager = this.newInstance(loader, "EntityStatePdu");
+        this.call(eager, "unmarshal", new DataInputStream(new ByteArrayInputStream(message)));
+
+        // The message sits between other bytes, which the lazy members must not read
+        ByteBuffer buff = ByteBuffer.allocate(message.length + 20);
+        buff.put((byte) 0x55).put(message).put(new byte[19]).flip();
+        buff.get();
+        buff.limit(1 + message.length);
+        Object lazy = this.newInstance(loader, "EntityStatePdu");
+        this.call(lazy, "unmarshal", buff);
+        assertEquals(1 + message.length, buff.position());
+        buff.limit(buff.capacity());
+        Arrays.fill(buff.array(), 1 + message.length, buff.capacity(), (byte) 0x77);
+
+        assertEquals(this.call(eager, "getEntityID"), this.call(lazy, "getEntityID"));
+        assertEquals(this.call(eager, "getFixedDatums"), this.call(lazy, "getFixedDatums"));
+        assertEquals(eager, lazy);
+
+        Object undecoded = this.newInstance(loader, "EntityStatePdu");
+        this.call(undecoded, "unmarshal", ByteBuffer.wrap(message));
+        assertArrayEquals(message, this.marshal(undecoded, ByteOrder.BIG_ENDIAN));
+    }
+
+    @Test
+    public void unmarshalReadsKnownLayout() throws Exception {
+        ClassLoader loader = this.compile();
+        byte[] message = this.entityStatePdu(ByteOrder.BIG_ENDIAN);
+
+        Object pdu = this.newInstance(loader, "EntityStatePdu");
+        this.call(pdu, "unmarshal", ByteBuffer.wrap(message));
+        assertEquals(message.length, this.call(pdu, "getMarshalledSize"));
+        assertEquals(3, this.call(this.call(pdu, "getEntityID"), "getEntity"));
+        assertArrayEquals(new float[] { 1.5f, -2f, 3.25f }, (float[]) this.call(pdu, "getVelocity"), 0f);
+        assertEquals(2, ((List) this.call(pdu, "getFixedDatums")).size());
+        assertEquals(200L, this.call(((List) this.call(pdu, "getFixedDatums")).get(1), "getFixedDatumValue"));
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        this.call(pdu, "marshal", new DataOutputStream(stream));
+        assertArrayEquals(message, stream.toByteArray());
+        assertArrayEquals(message, this.marshal(pdu, ByteOrder.BIG_ENDIAN));
+    }
+
+    @Test
+    public void littleEndianMatchesKnownLayout() throws Exception {
+        System.setProperty("xmlpg.byteOrder", "little");
+        System.setProperty("xmlpg.lazyUnmarshal", "true");
+        ClassLoader loader = this.compile();
+        byte[] message = this.entityStatePdu(ByteOrder.LITTLE_ENDIAN);
+
+        Object fromStream = this.newInstance(loader, "EntityStatePdu");
+        this.call(fromStream, "unmarshal", new DataInputStream(new ByteArrayInputStream(message)));
+        Object fromBuffer = this.newInstance(loader, "EntityStatePdu");
+        this.call(fromBuffer, "unmarshal", ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN));
+        assertEquals(fromStream, fromBuffer);
+        assertEquals(3, this.call(this.call(fromStream, "getEntityID"), "getEntity"));
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        this.call(fromBuffer, "marshal", new DataOutputStream(stream));
+        assertArrayEquals(message, stream.toByteArray());
+        assertArrayEquals(message, this.marshal(fromStream, ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Test
+    public void applyDeltaOfDiffGivesTheNewerCopy() throws Exception {
+        System.setProperty("xmlpg.generateDeltas", "true");
+        ClassLoader loader = this.compile();
+        byte[] message = this.entityStatePdu(ByteOrder.BIG_ENDIAN);
+
+        Object older = this.newInstance(loader, "EntityStatePdu");
+        this.call(older, "unmarshal", ByteBuffer.wrap(message));
+        Object newer = this.newInstance(loader, "EntityStatePdu");
+        this.call(newer, "unmarshal", ByteBuffer.wrap(message));
+        this.call(newer, "setVelocity", (Object) new float[] { 9f, 8f, 7f });
+        ((List) this.call(newer, "getFixedDatums")).remove(0);
+        this.call(newer, "setNumberOfFixedDatumRecords", 1L);
+
+        long changed = (Long) this.call(older, "diff", newer);
+        Class<?> pduClass = loader.loadClass(PACKAGE + "EntityStatePdu");
+        assertEquals(pduClass.getField("CHANGED_VELOCITY").getLong(null)
+                | pduClass.getField("CHANGED_FIXED_DATUMS").getLong(null), changed);
+
+        ByteBuffer delta = ByteBuffer.allocate(message.length + 8);
+        this.call(newer, "marshalDelta", changed, delta);
+        delta.flip();
+        assertEquals(changed, this.call(older, "applyDelta", delta));
+        assertEquals(0, delta.remaining());
+        assertEquals(newer, older);
+    }
+
+    @Test
+    public void factoryFramesEachMessageByItsLength() throws Exception {
+        System.setProperty("xmlpg.generateFactory", "true");
+        ClassLoader loader = this.compile();
+        Class<?> factory = loader.loadClass(PACKAGE + "PduFactory");
+        Method decode = factory.getMethod("decode", ByteBuffer.class);
+        byte[] message = this.entityStatePdu(ByteOrder.BIG_ENDIAN);
+        assertEquals(7, factory.getField("MINIMUM_LENGTH").getInt(null));
+
+        // A length shorter than the header is rejected and the rest of the buffer skipped
+        ByteBuffer tooShort = ByteBuffer.allocate(message.length).put(message);
+        tooShort.putShort(1, (short) 6).flip();
+        assertNull(decode.invoke(null, tooShort));
+        assertEquals(0, tooShort.remaining());
+
+        // A length shorter than the fields stops at the end of the message instead of reading the next one
+        ByteBuffer two = ByteBuffer.allocate(2 * message.length).put(message).put(message);
+        two.putShort(1, (short) 50).flip();
+        try {
+            decode.invoke(null, two);
+            fail("decoded a message past its length");
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof java.nio.BufferUnderflowException);
+        }
+        assertEquals(two.capacity(), two.limit());
+
+        // A batch stops at a message cut short by the end of the buffer
+        ByteBuffer truncated = ByteBuffer.allocate(2 * message.length - 10).put(message).put(message, 0,
+                message.length - 10);
+        truncated.flip();
+        Object[] reuse = (Object[]) java.lang.reflect.Array.newInstance(loader.loadClass(PACKAGE + "Pdu"), 4);
+        Method decodeAll = factory.getMethod("decodeAll", ByteBuffer.class, reuse.getClass());
+        assertEquals(1, decodeAll.invoke(null, truncated, reuse));
+        assertEquals(0, truncated.remaining());
+        Object expected = this.newInstance(loader, "EntityStatePdu");
+        this.call(expected, "unmarshal", ByteBuffer.wrap(message));
+        assertEquals(expected, reuse[0]);
+    }
+
+    @Test
+    public void viewFindsVariableSizeElementsInAnyOrder() throws Exception {
+        System.setProperty("xmlpg.generateViews", "true");
+        ClassLoader loader = this.compile();
+        ByteBuffer buff = ByteBuffer.wrap(this.variableDatums(2, 1));
+        Object view = loader.loadClass(PACKAGE + "EntityStatePduView").getConstructor(ByteBuffer.class, int.class)
+                .newInstance(buff, 0);
+
+        assertEquals(6L, this.call(this.call(view, "getVariableDatums", 1), "getVariableDatumID"));
+        assertEquals(108, this.call(this.call(view, "getVariableDatums", 1), "getOffset"));
+        assertEquals(5L, this.call(this.call(view, "getVariableDatums", 0), "getVariableDatumID"));
+        assertEquals(84, this.call(this.call(view, "getVariableDatums", 0), "getOffset"));
+        assertEquals(124, this.call(view, "getMarshalledSize"));
+        assertEquals(108, this.call(this.call(view, "getVariableDatums", 1), "getOffset"));
+
+        // New bytes at the same offset, where the second element starts earlier
+        System.arraycopy(this.variableDatums(1, 2), 0, buff.array(), 0, buff.capacity());
+        this.call(view, "wrap", buff, 0);
+        assertEquals(100, this.call(this.call(view, "getVariableDatums", 1), "getOffset"));
+        assertEquals(124, this.call(view, "getMarshalledSize"));
+    }
+
+    @Test
+    public void marshalledBytesOnlyWhenAClassUsesIt() throws IOException {
+        MemorySink sink = new MemorySink();
+        Xmlpg.generate(Xmlpg.readModel(SCHEMA), Xmlpg.LanguageType.JAVA, sink);
+        assertTrue(sink.getFiles().containsKey("edu/nps/moves/lists/MarshalledBytes.java"));
+
+        Path schema = Files.createTempFile("variable", ".xml");
+        try {
+            Files.write(schema, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<classes>\n"
+                    + "<java package=\"var\" imports=\"java.util.*, java.io.*\" useHibernate=\"false\" useJaxb=\"false\"/>\n"
+                    + "<class name=\"Chunk\" inheritsFrom=\"root\" comment=\"chunk\">\n"
+                    + "  <attribute name=\"count\" comment=\"count\"><primitive type=\"int\"/></attribute>\n"
+                    + "  <attribute name=\"values\" comment=\"values\">"
+                    + "<variablelist countFieldName=\"count\"><classRef name=\"Chunk\"/></variablelist></attribute>\n"
+                    + "</class>\n</classes>\n").getBytes(StandardCharsets.UTF_8));
+            sink = new MemorySink();
+            Xmlpg.generate(Xmlpg.readModel(schema.toString()), Xmlpg.LanguageType.JAVA, sink);
+            assertTrue(sink.getFiles().containsKey("var/Chunk.java"));
+            assertFalse(sink.getFiles().containsKey("var/MarshalledBytes.java"));
+        } finally {
+            Files.delete(schema);
+        }
+    }
+
+    /**
+     * An EntityStatePdu with two fixed datums and one variable datum of two chunks, written field by field
+     */
+    private byte[] entityStatePdu(ByteOrder order) {
+        ByteBuffer buff = ByteBuffer.allocate(108).order(order);
+        buff.put((byte) 1).putShort((short) 108).putInt(1234);
+        buff.putShort((short) 1).putShort((short) 2).putShort((short) 3);
+        buff.putFloat(1.5f).putFloat(-2f).putFloat(3.25f);
+        buff.putDouble(1.0).putDouble(2.0).putDouble(-3.5);
+        buff.put("ENTITY\0\0\0\0\0".getBytes(StandardCharsets.US_ASCII));
+        buff.putInt(2).putInt(10).putInt(100).putInt(20).putInt(200);
+        buff.putInt(1).putInt(5).putInt(2);
+        for (int idx = 0; idx < 16; idx++) {
+            buff.put((byte) idx);
+        }
+        assertEquals(0, buff.remaining());
+        return buff.array();
+    }
+
+    /**
+     * The known EntityStatePdu with two variable datums, IDs 5 and 6, of the given numbers of eight byte chunks
+     */
+    private byte[] variableDatums(int firstChunks, int secondChunks) {
+        ByteBuffer buff = ByteBuffer.allocate(100 + 8 * (firstChunks + secondChunks));
+        buff.put(this.entityStatePdu(ByteOrder.BIG_ENDIAN), 0, 80).putInt(2);
+        buff.putInt(5).putInt(firstChunks).put(new byte[8 * firstChunks]);
+        buff.putInt(6).putInt(secondChunks).put(new byte[8 * secondChunks]);
+        return buff.array();
+    }
+
+    /**
+     * Marshals a generated object with marshal(ByteBuffer)
+     */
+    private byte[] marshal(Object message, ByteOrder order) throws Exception {
+        ByteBuffer buff = ByteBuffer.allocate((Integer) this.call(message, "getMarshalledSize")).order(order);
+        this.call(message, "marshal", buff);
+        assertEquals(0, buff.remaining());
+        return buff.array();
+    }
+
+    private Object newInstance(ClassLoader loader, String className) throws Exception {
+        return loader.loadClass(PACKAGE + className).getConstructor().newInstance();
+    }
+
+    /**
+     * Calls the public method with the given name whose parameters accept the arguments
+     */
+    private Object call(Object target, String name, Object... args) throws Exception {
+        for (Method aMethod : target.getClass().getMethods()) {
+            if (aMethod.getName().equals(name) && this.accepts(aMethod.getParameterTypes(), args)) {
+                return aMethod.invoke(target, args);
+            }
+        }
+        throw new NoSuchMethodException(target.getClass().getName() + "." + name);
+    }
+
+    private boolean accepts(Class<?>[] types, Object[] args) {
+        if (types.length != args.length) {
+            return false;
+        }
+        for (int idx = 0; idx < types.length; idx++) {
+            Class<?> type = types[idx] == long.class ? Long.class
+                    : types[idx] == int.class ? Integer.class : types[idx];
+            if (!type.isInstance(args[idx])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generates the schema with the options set now, compiles the result and fails with the compiler's messages if it
+     * doesn't compile
+     */
+    private void assertCompiles() throws IOException {
+        this.compile();
+    }
+
+    /**
+     * Generates the schema with the options set now and compiles it, failing with the compiler's messages if it doesn't
+     * compile
+     *
+     * @return a class loader for the compiled classes
+     */
+    private ClassLoader compile() throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertNotNull("tests need a JDK", compiler);
+
+        MemorySink sink = new MemorySink();
+        Xmlpg.generate(Xmlpg.readModel(SCHEMA), Xmlpg.LanguageType.JAVA, sink);
+        assertFalse("nothing generated", sink.getFiles().isEmpty());
+
+        Path dir = Files.createTempDirectory("xmlpg");
+        compiled.add(dir);
+        List<String> args = new ArrayList<String>(Arrays.asList("-nowarn", "-d", dir.toString()));
+        for (Map.Entry<String, String> aFile : sink.getFiles().entrySet()) {
+            Path source = dir.resolve(aFile.getKey());
+            Files.createDirectories(source.getParent());
+            Files.write(source, aFile.getValue().getBytes(StandardCharsets.UTF_8));
+            args.add(source.toString());
+        }
+
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        int status = compiler.run(null, messages, messages, args.toArray(new String[args.size()]));
+        assertEquals("generated with " + this.options() + "\n" + messages.toString("UTF-8"), 0, status);
+        return new URLClassLoader(new URL[] { dir.toUri().toURL() }, this.getClass().getClassLoader());
+    }
+
+    private String options() {
+        StringBuilder sb = new StringBuilder();
+        for (String aName : System.getProperties().stringPropertyNames()) {
+            if (aName.startsWith("xmlpg.")) {
+                sb.append(aName).append('=').append(System.getProperty(aName)).append(' ');
+            }
+        }
+        return sb.toString();
+    }
+
+    private void delete(File aFile) {
+        File[] children = aFile.listFiles();
+        if (children != null) {
+            for (File aChild : children) {
+                this.delete(aChild);
+            }
+        }
+        aFile.delete();
+    }
+}
@@ -0,0 +1,29 @@
+package edu.nps.moves.xmlpg.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.nps.moves.xmlpg.Xmlpg;
+
+/**
+ * Generating every class for one language, in one thread, into a sink that throws the files away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class GenerateBenchmark {
+
+    @Param({ "java", "cpp", "csharp", "objc", "javascript", "python" })
+    public String language;
+
+    @Benchmark
+    public long generate(Schema aSchema) {
+        NullSink sink = new NullSink();
+        Xmlpg.generate(aSchema.model, Xmlpg.LanguageType.forCommandLineName(language), sink);
+        return sink.getCharacters();
+    }
+}
@@ -0,0 +1,33 @@
+package edu.nps.moves.xmlpg.benchmarks;
+
+import edu.nps.moves.xmlpg.OutputSink;
+
+/**
+ * Throws the generated files away, so the benchmarks measure the generators and not the disk. The characters are
+ * counted so the output can't be optimized away.
+ */
+public class NullSink implements OutputSink {
+
+    private long characters = 0;
+
+    private int files = 0;
+
+    @Override
+    public synchronized void write(String relativePath, CharSequence contents) {
+        characters = characters + contents.length();
+        files++;
+    }
+
+    @Override
+    public boolean supportsConcurrentWrites() {
+        return true;
+    }
+
+    public synchronized long getCharacters() {
+        return characters;
+    }
+
+    public synchronized int getFiles() {
+        return files;
+    }
+}
@@ -0,0 +1,29 @@
+package edu.nps.moves.xmlpg.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.nps.moves.xmlpg.Xmlpg;
+
+/**
+ * SAX parsing of the XML file into Xmlpg.MyHandler, the first thing every run does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ParseBenchmark {
+
+    @Benchmark
+    public Xmlpg.MyHandler parse(Schema aSchema) throws Exception {
+        Xmlpg.MyHandler handler = new Xmlpg.MyHandler();
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setValidating(false);
+        factory.newSAXParser().parse(aSchema.xmlFile, handler);
+        return handler;
+    }
+}
@@ -0,0 +1,86 @@
+package edu.nps.moves.xmlpg.benchmarks;
+
+import java.io.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.nps.moves.xmlpg.*;
+
+/**
+ * The protocol description a benchmark runs against: DIS2012.xml, or a synthetic schema with the given number of
+ * classes. DIS2012.xml is looked for in the parent directory, or wherever -Dxmlpg.benchmarks.dis points.
+ * <p>
+ *
+ * Xmlpg reports progress and problems on System.out, which would end up in the middle of the JMH output and in the
+ * measurements, so System.out is thrown away while the benchmarks run.
+ */
+@State(Scope.Benchmark)
+public class Schema {
+
+    @Param({ "DIS2012", "1000", "10000", "50000" })
+    public String schema;
+
+    /**
+     * Depth of the inheritsFrom chains in the synthetic schemas
+     */
+    @Param({ "32" })
+    public int chainLength;
+
+    /**
+     * The XML file
+     */
+    public File xmlFile;
+
+    /**
+     * The XML file after parsing and checking, for the benchmarks that start from there
+     */
+    public ProtocolModel model;
+
+    private File syntheticFile = null;
+
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        originalOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        // DIS2012.xml predates these java properties
+        if (System.getProperty("xmlpg.useHibernate") == null) {
+            System.setProperty("xmlpg.useHibernate", "false");
+        }
+        if (System.getProperty("xmlpg.useJaxb") == null) {
+            System.setProperty("xmlpg.useJaxb", "false");
+        }
+
+        if (schema.equals("DIS2012")) {
+            xmlFile = new File(System.getProperty("xmlpg.benchmarks.dis", "../DIS2012.xml"));
+            if (!xmlFile.isFile()) {
+                throw new FileNotFoundException(
+                        xmlFile.getAbsolutePath() + " not found, set -Dxmlpg.benchmarks.dis to DIS2012.xml");
+            }
+        } else {
+            syntheticFile = File.createTempFile("xmlpg-synthetic-" + schema + "-", ".xml");
+            SyntheticSchema.write(syntheticFile, Integer.parseInt(schema), chainLength);
+            xmlFile = syntheticFile;
+        }
+
+        model = Xmlpg.readModel(xmlFile.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(originalOut);
+        if (syntheticFile != null) {
+            syntheticFile.delete();
+        }
+    }
+}
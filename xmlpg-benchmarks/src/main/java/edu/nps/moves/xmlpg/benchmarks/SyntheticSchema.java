@@ -0,0 +1,97 @@
+package edu.nps.moves.xmlpg.benchmarks;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a made-up protocol description of any size, for benchmarking. The classes form chains where each class
+ * inherits from the one before it, so the hierarchy is as deep as the chain length. Every class has a few primitive
+ * attributes and, in turn, a reference to a record class, a fixed length list, or a variable length list with its count
+ * field. Every chain starts with an initial value for a field of its first class.
+ */
+public class SyntheticSchema {
+
+    /**
+     * Number of small classes that the others refer to with classRef
+     */
+    private static final int RECORD_CLASSES = 16;
+
+    private static final String[] PRIMITIVE_TYPES = { "unsigned byte", "unsigned short", "unsigned int", "short",
+            "int", "long", "float", "double" };
+
+    /**
+     * Writes a protocol description.
+     *
+     * @param xmlFile
+     *            file to write
+     * @param classCount
+     *            total number of classes, including the record classes
+     * @param chainLength
+     *            number of classes in each inheritance chain
+     */
+    public static void write(File xmlFile, int classCount, int chainLength) throws IOException {
+        try (PrintWriter pw = new PrintWriter(
+                new BufferedWriter(new OutputStreamWriter(new FileOutputStream(xmlFile), StandardCharsets.UTF_8)))) {
+            pw.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            pw.println("<classes>");
+            pw.println("<java package=\"edu.nps.moves.synthetic\" imports=\"java.util.*, java.io.*\""
+                    + " useHibernate=\"false\" useJaxb=\"false\"/>");
+            pw.println("<csharp namespace=\"Synthetic\" using=\"System, System.Collections.Generic, System.Text\""
+                    + " useDotNet=\"false\"/>");
+            pw.println("<cpp namespace=\"Synthetic\"/>");
+            pw.println("<objc namespace=\"Synthetic\"/>");
+            pw.println("<javascript namespace=\"synthetic\"/>");
+            pw.println("<python namespace=\"synthetic\" filename=\"synthetic.py\"/>");
+
+            int records = Math.min(RECORD_CLASSES, classCount);
+            for (int idx = 0; idx < records; idx++) {
+                pw.println("<class name=\"Record" + idx + "\" inheritsFrom=\"root\" comment=\"record " + idx + "\">");
+                writePrimitive(pw, "first", idx);
+                writePrimitive(pw, "second", idx + 1);
+                pw.println("</class>");
+            }
+
+            for (int idx = 0; idx < classCount - records; idx++) {
+                int position = idx % chainLength;
+                String parent = (position == 0) ? "root" : "Synthetic" + (idx - 1);
+                pw.println("<class name=\"Synthetic" + idx + "\" inheritsFrom=\"" + parent + "\" comment=\"class " + idx
+                        + ", " + position + " levels deep\">");
+                if (position == 0) {
+                    pw.println("  <initialValue name=\"field" + idx + "a\" value=\"" + (idx % 100) + "\"/>");
+                }
+                writePrimitive(pw, "field" + idx + "a", idx);
+                writePrimitive(pw, "field" + idx + "b", idx + 3);
+
+                switch (idx % 3) {
+                case 0:
+                    pw.println("  <attribute name=\"record" + idx + "\" comment=\"a record\">");
+                    pw.println("    <classRef name=\"Record" + (idx % records) + "\"/>");
+                    pw.println("  </attribute>");
+                    break;
+                case 1:
+                    pw.println("  <attribute name=\"fixed" + idx + "\" comment=\"a fixed length list\">");
+                    pw.println("    <fixedlist length=\"8\" couldBeString=\"true\">");
+                    pw.println("      <primitive type=\"unsigned byte\"/>");
+                    pw.println("    </fixedlist>");
+                    pw.println("  </attribute>");
+                    break;
+                default:
+                    writePrimitive(pw, "count" + idx, 1);
+                    pw.println("  <attribute name=\"list" + idx + "\" comment=\"a variable length list\">");
+                    pw.println("    <variablelist countFieldName=\"count" + idx + "\">");
+                    pw.println("      <classRef name=\"Record" + (idx % records) + "\"/>");
+                    pw.println("    </variablelist>");
+                    pw.println("  </attribute>");
+                }
+                pw.println("</class>");
+            }
+            pw.println("</classes>");
+        }
+    }
+
+    private static void writePrimitive(PrintWriter pw, String name, int typeIndex) {
+        pw.println("  <attribute name=\"" + name + "\" comment=\"" + name + "\">");
+        pw.println("    <primitive type=\"" + PRIMITIVE_TYPES[typeIndex % PRIMITIVE_TYPES.length] + "\"/>");
+        pw.println("  </attribute>");
+    }
+}
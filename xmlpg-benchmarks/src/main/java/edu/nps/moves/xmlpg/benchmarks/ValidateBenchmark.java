@@ -0,0 +1,35 @@
+package edu.nps.moves.xmlpg.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.nps.moves.xmlpg.*;
+
+/**
+ * Resolving the parsed classes into a ProtocolModel and checking it with astIsPlausible(), which together sit between
+ * parsing and generating.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ValidateBenchmark {
+
+    @Benchmark
+    public ProtocolModel validate(Schema aSchema) {
+        Map<String, Properties> languageProperties = new HashMap<String, Properties>();
+        for (Xmlpg.LanguageType aLanguage : Xmlpg.LanguageType.values()) {
+            languageProperties.put(aLanguage.getCommandLineName(),
+                    aSchema.model.getLanguageProperties(aLanguage.getCommandLineName()));
+        }
+
+        ProtocolModel model = new ProtocolModel(aSchema.model.getClassDescriptions(), languageProperties);
+        if (!Xmlpg.astIsPlausible(model)) {
+            throw new IllegalStateException(aSchema.schema + " is not internally consistent");
+        }
+        return model;
+    }
+}